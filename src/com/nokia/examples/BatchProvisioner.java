@@ -0,0 +1,242 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Writes the same message to many tags, personalizing each tag with a
+ * serial number.
+ * The message is encoded once and kept as a byte template. Serial number
+ * fields are marked with a run of '#' characters in the text of a record
+ * (e.g., "http://nokia.com/t/#####" or a custom payload). Before each tag
+ * is written, the current serial is patched into these fields as decimal
+ * digits with leading zeros. As the width of the fields doesn't change,
+ * all record lengths of the template stay valid.
+ *
+ * The settings can be changed by the UI thread while a tag is written by
+ * the worker thread. invalidate() therefore only marks the template as
+ * outdated; it is replaced by the next compile(), which is called by the
+ * thread that also calls nextMessage().
+ *
+ * @author Andreas Jakl
+ */
+public class BatchProvisioner {
+    /** Character that marks a serial number field in the message. */
+    public static final char SERIAL_PLACEHOLDER = '#';
+    /** Minimum number of placeholder characters that form a serial number field. */
+    private static final int minPlaceholderLength = 2;
+    /** Maximum number of serial number fields in a message. */
+    private static final int maxFields = 8;
+
+    /** Compiled message, serial number fields are patched in place. */
+    private byte[] template = null;
+    /** False if the template doesn't match the current settings. */
+    private boolean compiled = false;
+    /** Start of each serial number field in the template. */
+    private final int[] fieldOffsets = new int[maxFields];
+    /** Number of digits of each serial number field. */
+    private final int[] fieldWidths = new int[maxFields];
+    /** Number of serial number fields found in the template. */
+    private int numFields = 0;
+
+    /** Serial number to write to the next tag. */
+    private long nextSerial = 1;
+    /** Number of tags written since the batch was started. */
+    private int tagsWritten = 0;
+    /** Time when the first tag of the batch was written. */
+    private long firstTagTime = 0;
+    /** Time when the last tag of the batch was written. */
+    private long lastTagTime = 0;
+
+    /**
+     * Compile the message into the template and find the serial number fields.
+     * @param data encoded NDEF message.
+     * @param length number of bytes of the message.
+     * @return number of serial number fields found in the message.
+     */
+    public synchronized int compile(final byte[] data, final int length) {
+        template = new byte[length];
+        System.arraycopy(data, 0, template, 0, length);
+        numFields = 0;
+        findFields(new NdefParser(), 0, length);
+        compiled = true;
+        return numFields;
+    }
+
+    /**
+     * @return true if a template matching the current settings is available.
+     */
+    public synchronized boolean isCompiled() {
+        return compiled;
+    }
+
+    /**
+     * Mark the template as outdated, e.g., because the settings in the UI
+     * were changed. The counters of the batch are kept.
+     */
+    public synchronized void invalidate() {
+        compiled = false;
+    }
+
+    /**
+     * Start a new batch: reset the counters.
+     */
+    public synchronized void resetCounters() {
+        tagsWritten = 0;
+        firstTagTime = 0;
+        lastTagTime = 0;
+    }
+
+    public synchronized void setNextSerial(final long serial) {
+        nextSerial = serial;
+    }
+
+    public synchronized long getNextSerial() {
+        return nextSerial;
+    }
+
+    public synchronized int getTagsWritten() {
+        return tagsWritten;
+    }
+
+    /**
+     * @param serial serial number to write.
+     * @return true if the serial number fits into all serial number fields.
+     */
+    public synchronized boolean fitsSerial(final long serial) {
+        if (serial < 0) {
+            return false;
+        }
+        int digits = 1;
+        for (long value = serial; value >= 10; value /= 10) {
+            digits++;
+        }
+        for (int i = 0; i < numFields; i++) {
+            if (fieldWidths[i] < digits) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Patch the serial number into the template.
+     * @param serial serial number to write, see fitsSerial().
+     * @return the template containing the message for the tag, or null if
+     * no template was compiled or the serial number doesn't fit into the
+     * fields. Don't modify or keep the array, it is reused for every tag.
+     */
+    public synchronized byte[] nextMessage(final long serial) {
+        if (template == null || !fitsSerial(serial)) {
+            return null;
+        }
+        for (int i = 0; i < numFields; i++) {
+            // Write the digits from right to left, padded with zeros
+            long value = serial;
+            for (int pos = fieldOffsets[i] + fieldWidths[i] - 1; pos >= fieldOffsets[i]; pos--) {
+                template[pos] = (byte) ('0' + (int) (value % 10));
+                value /= 10;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Inform the provisioner that the message returned by nextMessage()
+     * was successfully written. Advances the serial number.
+     */
+    public synchronized void tagWritten() {
+        final long now = System.currentTimeMillis();
+        if (tagsWritten == 0) {
+            firstTagTime = now;
+        }
+        lastTagTime = now;
+        tagsWritten++;
+        nextSerial++;
+    }
+
+    /**
+     * @return average number of tags written per minute, based on the time
+     * between the first and the last tag of the batch. 0 if not enough
+     * tags have been written yet.
+     */
+    public synchronized int getTagsPerMinute() {
+        final long duration = lastTagTime - firstTagTime;
+        if (tagsWritten < 2 || duration <= 0) {
+            return 0;
+        }
+        return (int) ((tagsWritten - 1) * 60000L / duration);
+    }
+
+    /**
+     * Search the text contents of all records for serial number fields.
+     * Only payload text is searched, as header bytes (e.g., lengths or the
+     * URI identifier code 0x23) can have the same value as the placeholder.
+     */
+    private void findFields(final NdefParser parser, final int offset, final int length) {
+        parser.reset(template, offset, length);
+        while (parser.next()) {
+            final int payloadOffset = parser.getPayloadOffset();
+            final int payloadLength = parser.getPayloadLength();
+            switch (parser.getRecordType()) {
+                case NdefParser.TYPE_URI:
+                    // Skip the identifier code
+                    findFieldsInText(payloadOffset + 1, payloadLength - 1);
+                    break;
+                case NdefParser.TYPE_TEXT: {
+                    if (payloadLength < 1) {
+                        break;
+                    }
+                    // Skip status byte and language code
+                    final int langLength = 1 + (template[payloadOffset] & 0x3F);
+                    findFieldsInText(payloadOffset + langLength, payloadLength - langLength);
+                    break;
+                }
+                case NdefParser.TYPE_SMART_POSTER:
+                    findFields(new NdefParser(), payloadOffset, payloadLength);
+                    break;
+                case NdefParser.TYPE_MIME:
+                    // Binary payloads like images may contain "##" by chance
+                    if (parser.isTextMime()) {
+                        findFieldsInText(payloadOffset, payloadLength);
+                    }
+                    break;
+                case NdefParser.TYPE_EXTERNAL:
+                    findFieldsInText(payloadOffset, payloadLength);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Find runs of placeholder characters within the range of the template.
+     */
+    private void findFieldsInText(final int offset, final int length) {
+        int runStart = -1;
+        for (int i = offset; i <= offset + length; i++) {
+            if (i < offset + length && template[i] == SERIAL_PLACEHOLDER) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+            } else if (runStart >= 0) {
+                if (i - runStart >= minPlaceholderLength && numFields < maxFields) {
+                    fieldOffsets[numFields] = runStart;
+                    fieldWidths[numFields] = i - runStart;
+                    numFields++;
+                }
+                runStart = -1;
+            }
+        }
+    }
+}
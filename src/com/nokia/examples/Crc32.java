@@ -0,0 +1,63 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * CRC-32 checksum as used by zip / PNG (polynomial 0xEDB88320),
+ * as CLDC doesn't include java.util.zip.
+ *
+ * @author Andreas Jakl
+ */
+public class Crc32 {
+    /** Lookup table with the CRC of each byte value. */
+    private static final int[] table = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = ((c & 1) != 0) ? (0xEDB88320 ^ (c >>> 1)) : (c >>> 1);
+            }
+            table[n] = c;
+        }
+    }
+
+    /**
+     * Calculate the checksum of a range of bytes.
+     * @param data buffer containing the data.
+     * @param offset start of the range.
+     * @param length number of bytes.
+     * @return CRC-32 of the range.
+     */
+    public static int calculate(final byte[] data, final int offset, final int length) {
+        return update(0, data, offset, length);
+    }
+
+    /**
+     * Continue calculating a checksum with more data.
+     * @param crc checksum of the previous data, 0 to start.
+     * @param data buffer containing the data.
+     * @param offset start of the range.
+     * @param length number of bytes.
+     * @return CRC-32 of the previous data and the range.
+     */
+    public static int update(final int crc, final byte[] data, final int offset, final int length) {
+        int c = ~crc;
+        for (int i = offset; i < offset + length; i++) {
+            c = table[(c ^ data[i]) & 0xFF] ^ (c >>> 8);
+        }
+        return ~c;
+    }
+}
@@ -0,0 +1,355 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+
+/**
+ * Stores the raw data of Mifare dumps only once.
+ *
+ * The raw data of a dump is kept in a blob file in the store directory,
+ * named after the CRC-32 and the size of the data. Identical data is only
+ * stored once. The data file of a dump (see MifareDump) then contains the
+ * header followed by the changes against a blob instead of the raw data,
+ * and has MifareDump.FLAG_DELTA set:
+ * <pre>
+ *   0  CRC-32 of the base blob (4)
+ *   4  size of the base blob (4)
+ *   8  number of changed blocks (2)
+ *  10  changed blocks: block index (2), followed by the 16 bytes of the block
+ * </pre>
+ * Each UID remembers the blob it was last stored against. Reading the same
+ * tag again only stores the changed blocks, or no blocks at all if nothing
+ * changed. If too many blocks changed, the data is stored as a new blob.
+ *
+ * The changes are always against the blob, not against the previous dump
+ * of the UID: each dump can then be restored from its blob alone, and
+ * deleting or losing a dump file doesn't break the dumps read later. The
+ * price is that a delta repeats all changes since the blob was stored;
+ * once they exceed half of the data, the dump becomes the new blob, which
+ * bounds the size of every delta.
+ * The header checksum covers the complete dump, so it is verified again
+ * after restoring the data.
+ *
+ * @author Andreas Jakl
+ */
+public class DumpStore {
+    /** Directory of the blobs and the base table, below the data directory. */
+    private static final String storeDir = "store/";
+    /** File extension of the blobs. */
+    private static final String blobExt = ".bin";
+    /** Appended records: UID, CRC-32 and size of the UID's blob. */
+    private static final String baseFileName = storeDir + "bases.dat";
+    /** Size of the delta header. */
+    private static final int deltaHeaderSize = 10;
+    /** Size of a changed block in the delta. */
+    private static final int deltaEntrySize = 2 + MifareLayout.BLOCK_SIZE;
+
+    /** Blob of each UID (String -> long: CRC-32 in the low, size in the high bits). */
+    private static Hashtable bases = null;
+    /** True if the store directory is known to exist. */
+    private static boolean dirChecked = false;
+    /** Key of the blob in blobData, 0 if none. */
+    private static long cachedBlobKey = 0;
+    /** Contents of the most recently used blob. */
+    private static byte[] blobData = null;
+
+    /**
+     * Replace the raw data of a dump by its changes against a stored blob.
+     * Stores a new blob if needed.
+     * @param dump contents of a valid dump file.
+     * @return the file to write instead of the dump, or null to write
+     * the complete dump.
+     */
+    public static synchronized byte[] pack(final byte[] dump) {
+        if (!MifareDump.isValid(dump)) {
+            return null;
+        }
+        final int dataSize = dump.length - MifareDump.HEADER_SIZE;
+        if (dataSize % MifareLayout.BLOCK_SIZE != 0) {
+            // Unknown layout - only whole blocks are supported
+            return null;
+        }
+        final String uid = MifareDump.getUid(dump);
+        try {
+            loadBases();
+            final Long base = (Long) bases.get(uid);
+            if (base != null && getSize(base.longValue()) == dataSize && loadBlob(base.longValue())) {
+                final int changed = countChangedBlocks(dump, dataSize);
+                if (deltaHeaderSize + changed * deltaEntrySize < dataSize / 2) {
+                    return createDelta(dump, base.longValue(), changed);
+                }
+            }
+            // Too many changes, or a new tag: store the data as a new blob
+            final long key = toKey(Crc32.calculate(dump, MifareDump.HEADER_SIZE, dataSize), dataSize);
+            if (!storeBlob(key, dump)) {
+                return null;
+            }
+            setBase(uid, key);
+            return createDelta(dump, key, 0);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (SecurityException ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @param file buffer containing a data file.
+     * @param length size of the data file.
+     * @return true if the raw data of the dump has to be restored
+     * through expand().
+     */
+    public static boolean isDelta(final byte[] file, final int length) {
+        return MifareDump.isDump(file, length) && (file[MifareDump.OFFSET_FLAGS] & MifareDump.FLAG_DELTA) != 0;
+    }
+
+    /**
+     * @param file buffer containing a packed dump.
+     * @return size of the dump once it is expanded.
+     */
+    public static int getExpandedSize(final byte[] file) {
+        return MifareDump.getDumpSize(MifareDump.readInt(file, MifareDump.OFFSET_DATA_SIZE));
+    }
+
+    /**
+     * Restore the raw data of a packed dump in place.
+     * @param file buffer containing the packed dump, must be large enough
+     * for the expanded dump (getExpandedSize()).
+     * @param length size of the packed dump.
+     * @return size of the expanded dump, -1 if the blob is missing or the
+     * delta is damaged.
+     */
+    public static synchronized int expand(byte[] file, final int length) {
+        final int expandedSize = getExpandedSize(file);
+        final int dataSize = expandedSize - MifareDump.HEADER_SIZE;
+        final int deltaSize = length - MifareDump.HEADER_SIZE;
+        if (expandedSize > file.length || deltaSize < deltaHeaderSize) {
+            return -1;
+        }
+        // The delta is overwritten by the data
+        byte[] delta = new byte[deltaSize];
+        System.arraycopy(file, MifareDump.HEADER_SIZE, delta, 0, deltaSize);
+        final long key = toKey(MifareDump.readInt(delta, 0), MifareDump.readInt(delta, 4));
+        final int numBlocks = ((delta[8] & 0xFF) << 8) | (delta[9] & 0xFF);
+        if (getSize(key) != dataSize || deltaSize != deltaHeaderSize + numBlocks * deltaEntrySize
+                || !loadBlob(key)) {
+            return -1;
+        }
+        System.arraycopy(blobData, 0, file, MifareDump.HEADER_SIZE, dataSize);
+        for (int i = 0; i < numBlocks; i++) {
+            final int entry = deltaHeaderSize + i * deltaEntrySize;
+            final int offset = (((delta[entry] & 0xFF) << 8) | (delta[entry + 1] & 0xFF)) * MifareLayout.BLOCK_SIZE;
+            if (offset + MifareLayout.BLOCK_SIZE > dataSize) {
+                return -1;
+            }
+            System.arraycopy(delta, entry + 2, file, MifareDump.HEADER_SIZE + offset, MifareLayout.BLOCK_SIZE);
+        }
+        file[MifareDump.OFFSET_FLAGS] &= ~MifareDump.FLAG_DELTA;
+        return expandedSize;
+    }
+
+    /**
+     * Forget the cached state, e.g. when the data directory changed.
+     */
+    public static synchronized void reset() {
+        bases = null;
+        dirChecked = false;
+        cachedBlobKey = 0;
+        blobData = null;
+    }
+
+    /**
+     * @return number of blocks of the dump that differ from blobData.
+     */
+    private static int countChangedBlocks(final byte[] dump, final int dataSize) {
+        int changed = 0;
+        for (int offset = 0; offset < dataSize; offset += MifareLayout.BLOCK_SIZE) {
+            if (!isBlockUnchanged(dump, offset)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if the block at the offset of the raw data has the same
+     * contents in the dump and in blobData.
+     */
+    private static boolean isBlockUnchanged(final byte[] dump, final int offset) {
+        for (int i = offset; i < offset + MifareLayout.BLOCK_SIZE; i++) {
+            if (dump[MifareDump.HEADER_SIZE + i] != blobData[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create the packed dump: the header of the dump, followed by the
+     * blocks that differ from blobData.
+     */
+    private static byte[] createDelta(final byte[] dump, final long key, final int numBlocks) {
+        final int dataSize = dump.length - MifareDump.HEADER_SIZE;
+        byte[] file = new byte[MifareDump.HEADER_SIZE + deltaHeaderSize + numBlocks * deltaEntrySize];
+        System.arraycopy(dump, 0, file, 0, MifareDump.HEADER_SIZE);
+        file[MifareDump.OFFSET_FLAGS] |= MifareDump.FLAG_DELTA;
+        MifareDump.writeInt(file, MifareDump.HEADER_SIZE, (int) key);
+        MifareDump.writeInt(file, MifareDump.HEADER_SIZE + 4, dataSize);
+        file[MifareDump.HEADER_SIZE + 8] = (byte) (numBlocks >> 8);
+        file[MifareDump.HEADER_SIZE + 9] = (byte) numBlocks;
+        int entry = MifareDump.HEADER_SIZE + deltaHeaderSize;
+        for (int offset = 0; offset < dataSize && numBlocks > 0; offset += MifareLayout.BLOCK_SIZE) {
+            if (!isBlockUnchanged(dump, offset)) {
+                final int block = offset / MifareLayout.BLOCK_SIZE;
+                file[entry] = (byte) (block >> 8);
+                file[entry + 1] = (byte) block;
+                System.arraycopy(dump, MifareDump.HEADER_SIZE + offset, file, entry + 2, MifareLayout.BLOCK_SIZE);
+                entry += deltaEntrySize;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Store the raw data of the dump as a blob, unless a blob with the
+     * same contents exists already. Sets blobData to the data.
+     * @return false if a different blob with the same CRC-32 exists.
+     */
+    private static boolean storeBlob(final long key, final byte[] dump) throws IOException {
+        final int dataSize = dump.length - MifareDump.HEADER_SIZE;
+        final String blobName = getBlobName(key);
+        if (TagFileManager.fileExists(blobName)) {
+            if (!loadBlob(key)) {
+                return false;
+            }
+            for (int i = 0; i < dataSize; i++) {
+                if (blobData[i] != dump[MifareDump.HEADER_SIZE + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        ensureDirectory();
+        if (TagFileManager.writeDataFile(blobName, dump, MifareDump.HEADER_SIZE, dataSize) == null) {
+            return false;
+        }
+        if (blobData == null || blobData.length != dataSize) {
+            blobData = new byte[dataSize];
+        }
+        System.arraycopy(dump, MifareDump.HEADER_SIZE, blobData, 0, dataSize);
+        cachedBlobKey = key;
+        return true;
+    }
+
+    /**
+     * Read a blob into blobData, unless it is loaded already.
+     * @return true if the blob was found and has the expected size
+     * and checksum.
+     */
+    private static boolean loadBlob(final long key) {
+        if (key == cachedBlobKey && blobData != null) {
+            return true;
+        }
+        final int size = getSize(key);
+        if (blobData == null || blobData.length != size) {
+            blobData = new byte[size];
+        }
+        cachedBlobKey = 0;
+        if (TagFileManager.readStoredFile(getBlobName(key), blobData, size) != size
+                || Crc32.calculate(blobData, 0, size) != (int) key) {
+            return false;
+        }
+        cachedBlobKey = key;
+        return true;
+    }
+
+    /**
+     * Load the blob of each UID from the base table, only done once.
+     */
+    private static void loadBases() throws IOException {
+        if (bases != null) {
+            return;
+        }
+        bases = new Hashtable();
+        final byte[] data = TagFileManager.readFile(baseFileName);
+        if (data == null) {
+            return;
+        }
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            while (dis.available() > 0) {
+                // Later records replace earlier ones
+                final String uid = dis.readUTF();
+                final int crc = dis.readInt();
+                final int size = dis.readInt();
+                bases.put(uid, new Long(toKey(crc, size)));
+            }
+        } catch (IOException ex) {
+            // Incomplete last record - ignore it
+        }
+    }
+
+    /**
+     * Remember the blob of a UID and append it to the base table.
+     */
+    private static void setBase(final String uid, final long key) throws IOException {
+        final Long previous = (Long) bases.get(uid);
+        if (previous != null && previous.longValue() == key) {
+            return;
+        }
+        bases.put(uid, new Long(key));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeUTF(uid);
+        dos.writeInt((int) key);
+        dos.writeInt(getSize(key));
+        final byte[] record = bos.toByteArray();
+        ensureDirectory();
+        TagFileManager.writeDataFile(baseFileName, record, 0, record.length);
+    }
+
+    private static void ensureDirectory() throws IOException {
+        if (!dirChecked) {
+            TagFileManager.createDirectory(storeDir);
+            dirChecked = true;
+        }
+    }
+
+    /**
+     * @return key of a blob, combining its checksum and its size.
+     */
+    private static long toKey(final int crc, final int size) {
+        return ((long) size << 32) | (crc & 0xFFFFFFFFL);
+    }
+
+    private static int getSize(final long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * @return name of the blob file, relative to the data directory.
+     */
+    private static String getBlobName(final long key) {
+        final String crc = Integer.toHexString((int) key);
+        return storeDir + "00000000".substring(crc.length()) + crc + "-" + getSize(key) + blobExt;
+    }
+}
@@ -0,0 +1,190 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import java.util.Vector;
+import javax.microedition.lcdui.AlertType;
+
+/**
+ * Writes data files in a background thread, so that the tag processing
+ * doesn't have to wait for the file system. Files are queued with their
+ * final name; the thread writes all queued files in one batch and adds
+ * them to the index of the data directory together.
+ * The queue is bounded: if it is full, queueing waits until the background
+ * thread has written a file. If a file can't be written, the callback
+ * that was passed when queueing it is informed.
+ * 
+ * @author Andreas Jakl
+ */
+public class DumpWriter implements Runnable {
+    /** Maximum number of files waiting to be written. */
+    private static final int maxQueueLength = 4;
+    /** Names of the queued files, oldest first. */
+    private final Vector queuedNames = new Vector(maxQueueLength);
+    /** Contents of the queued files, same order as queuedNames. */
+    private final Vector queuedData = new Vector(maxQueueLength);
+    /** InfoInterface to inform about errors for each queued file, same order as queuedNames. */
+    private final Vector queuedCallbacks = new Vector(maxQueueLength);
+    /** Background thread, started with the first file. */
+    private Thread thread = null;
+    /** Set to false to end the background thread. */
+    private boolean running = true;
+    
+    /**
+     * Queue a file to be written by the background thread.
+     * Waits if the queue is full. The data is copied, so the buffer
+     * can be reused right away.
+     * @param fileName name of the file in the data directory.
+     * @param data buffer containing the file contents.
+     * @param length number of bytes of the buffer to write.
+     * @param callback informed if the file can't be written.
+     * @return true if the file was queued, false if the writer was stopped.
+     */
+    public synchronized boolean queue(final String fileName, final byte[] data, final int length, final InfoInterface callback) {
+        while (running && queuedNames.size() >= maxQueueLength) {
+            try {
+                wait();
+            } catch (InterruptedException ex) { }
+        }
+        if (!running) {
+            return false;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        queuedNames.addElement(fileName);
+        queuedData.addElement(copy);
+        queuedCallbacks.addElement(callback);
+        if (thread == null) {
+            thread = new Thread(this);
+            thread.start();
+        }
+        notifyAll();
+        return true;
+    }
+    
+    /**
+     * Get the contents of a file that wasn't written yet.
+     * @param fileName name of the file in the data directory.
+     * @return the queued contents, or null if the file isn't queued.
+     * Must not be modified.
+     */
+    public synchronized byte[] getQueuedData(final String fileName) {
+        for (int i = 0; i < queuedNames.size(); i++) {
+            if (fileName.equals(queuedNames.elementAt(i))) {
+                return (byte[]) queuedData.elementAt(i);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Wait until all queued files are written.
+     */
+    public synchronized void flush() {
+        while (thread != null && queuedNames.size() > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ex) { }
+        }
+    }
+    
+    /**
+     * Write all queued files, then end the background thread.
+     */
+    public void stop() {
+        flush();
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+    }
+    
+    public void run() {
+        while (true) {
+            Vector batchNames;
+            Vector batchData;
+            Vector batchCallbacks;
+            synchronized (this) {
+                while (running && queuedNames.size() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) { }
+                }
+                if (queuedNames.size() == 0) {
+                    thread = null;
+                    return;
+                }
+                // Files stay in the queue until they are written, so that
+                // they can still be read through getQueuedData().
+                batchNames = copy(queuedNames);
+                batchData = copy(queuedData);
+                batchCallbacks = copy(queuedCallbacks);
+            }
+            final int batchSize = batchNames.size();
+            Vector written = new Vector(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                final String fileName = (String) batchNames.elementAt(i);
+                if (write(fileName, (byte[]) batchData.elementAt(i))) {
+                    written.addElement(fileName);
+                } else {
+                    ((InfoInterface) batchCallbacks.elementAt(i)).displayAlert("Unable to save file",
+                            "Error: unable to write " + fileName + " - the data was not saved", AlertType.ERROR);
+                }
+            }
+            try {
+                TagFileManager.addToIndex(written);
+            } catch (Exception ex) {
+                // Don't end the thread, the next files may still work
+                ex.printStackTrace();
+            }
+            synchronized (this) {
+                for (int i = 0; i < batchSize; i++) {
+                    queuedNames.removeElementAt(0);
+                    queuedData.removeElementAt(0);
+                    queuedCallbacks.removeElementAt(0);
+                }
+                notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Write a queued file. Dumps are packed against a previous dump first.
+     * @return true if the file was written.
+     */
+    private static boolean write(final String fileName, byte[] data) {
+        try {
+            if (fileName.endsWith(TagFileManager.DUMP_FILE_EXT)) {
+                // Only store the changes against a previous dump
+                final byte[] packed = DumpStore.pack(data);
+                if (packed != null) {
+                    data = packed;
+                }
+            }
+            return TagFileManager.writeDataFile(fileName, data, data.length) != null;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+    
+    private static Vector copy(final Vector source) {
+        Vector result = new Vector(source.size());
+        for (int i = 0; i < source.size(); i++) {
+            result.addElement(source.elementAt(i));
+        }
+        return result;
+    }
+}
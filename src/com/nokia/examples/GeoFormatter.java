@@ -0,0 +1,172 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Encodes geo coordinates into URI records using a compact fixed-point
+ * notation. Unlike Double.toString(), the numbers never use an exponent
+ * and have a configurable number of decimals (5 decimals are about 1 m).
+ * Trailing zeros are removed. The digits are written straight into the
+ * buffer of the encoder, without creating temporary strings.
+ *
+ * @author Andreas Jakl
+ */
+public class GeoFormatter {
+    /** Geo type: geo: URI scheme, according to http://geouri.org/ */
+    public static final int TYPE_GEO_URI = 0;
+    /** Geo type: Nokia Maps link. */
+    public static final int TYPE_NOKIA_MAPS = 1;
+    /** Geo type: generic redirect through NfcInteractor.com. */
+    public static final int TYPE_REDIRECT = 2;
+    /** Geo type: whichever of the other types results in the smallest record. */
+    public static final int TYPE_SMALLEST = 3;
+
+    /** Default number of decimals, about 1 m accuracy. */
+    public static final int DEFAULT_DECIMALS = 5;
+    /** Maximum number of decimals, about 1 cm accuracy. */
+    public static final int MAX_DECIMALS = 7;
+
+    /** URI prefix of each geo type, the coordinates are appended. */
+    private static final String typePrefixes[] = {
+        "geo:",
+        "http://m.ovi.me/?c=",
+        "http://nfcinteractor.com/m?c="};
+
+    /** Powers of ten, used to scale and to extract digits. */
+    private static final long[] powersOfTen = new long[19];
+
+    static {
+        powersOfTen[0] = 1;
+        for (int i = 1; i < powersOfTen.length; i++) {
+            powersOfTen[i] = powersOfTen[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Append a URI record containing the coordinates.
+     * @param enc encoder that receives the record.
+     * @param latitude latitude in decimal degrees (WGS-84).
+     * @param longitude longitude in decimal degrees (WGS-84).
+     * @param geoType one of the TYPE_* constants.
+     * @param decimals number of decimals to keep, 0 ... MAX_DECIMALS.
+     */
+    public static void appendUri(NdefEncoder enc, final double latitude, final double longitude, int geoType, int decimals) {
+        if (decimals < 0) {
+            decimals = 0;
+        } else if (decimals > MAX_DECIMALS) {
+            decimals = MAX_DECIMALS;
+        }
+        final long lat = toFixed(latitude, decimals);
+        final long lon = toFixed(longitude, decimals);
+        // Both numbers plus the separator
+        final int suffixLength = formattedLength(lat, decimals) + 1 + formattedLength(lon, decimals);
+
+        if (geoType == TYPE_SMALLEST) {
+            geoType = TYPE_GEO_URI;
+            int smallestLength = NdefEncoder.uriRecordLength(typePrefixes[geoType], suffixLength);
+            for (int i = 0; i < typePrefixes.length; i++) {
+                final int len = NdefEncoder.uriRecordLength(typePrefixes[i], suffixLength);
+                if (len < smallestLength) {
+                    smallestLength = len;
+                    geoType = i;
+                }
+            }
+        } else if (geoType < 0 || geoType >= typePrefixes.length) {
+            geoType = TYPE_GEO_URI;
+        }
+
+        enc.beginUri(typePrefixes[geoType], suffixLength);
+        writeFixed(enc, lat, decimals);
+        enc.writeAscii(',');
+        writeFixed(enc, lon, decimals);
+    }
+
+    /**
+     * Convert the value to a fixed-point number, rounded to the nearest
+     * representable value.
+     * @param value number to convert.
+     * @param decimals number of decimals to keep.
+     * @return value * 10^decimals, rounded.
+     */
+    public static long toFixed(final double value, final int decimals) {
+        return (long) Math.floor(value * powersOfTen[decimals] + 0.5);
+    }
+
+    /**
+     * @param fixed fixed-point number, as returned by toFixed().
+     * @param decimals number of decimals of the fixed-point number.
+     * @return number of characters of the formatted number, without
+     * trailing zeros.
+     */
+    public static int formattedLength(long fixed, int decimals) {
+        int len = 0;
+        if (fixed < 0) {
+            fixed = -fixed;
+            len++;
+        }
+        while (decimals > 0 && fixed % 10 == 0) {
+            fixed /= 10;
+            decimals--;
+        }
+        len += countDigits(fixed / powersOfTen[decimals]);
+        if (decimals > 0) {
+            // Decimal point and fraction
+            len += 1 + decimals;
+        }
+        return len;
+    }
+
+    /**
+     * Write the formatted number to the encoder, using formattedLength()
+     * characters.
+     */
+    private static void writeFixed(NdefEncoder enc, long fixed, int decimals) {
+        if (fixed < 0) {
+            enc.writeAscii('-');
+            fixed = -fixed;
+        }
+        while (decimals > 0 && fixed % 10 == 0) {
+            fixed /= 10;
+            decimals--;
+        }
+        final long integerPart = fixed / powersOfTen[decimals];
+        writeDigits(enc, integerPart, countDigits(integerPart));
+        if (decimals > 0) {
+            enc.writeAscii('.');
+            // Fraction including leading zeros
+            writeDigits(enc, fixed % powersOfTen[decimals], decimals);
+        }
+    }
+
+    /**
+     * Write the lowest digits of a non-negative number, most significant first.
+     */
+    private static void writeDigits(NdefEncoder enc, final long value, final int numDigits) {
+        for (int i = numDigits - 1; i >= 0; i--) {
+            enc.writeAscii((char) ('0' + (int) ((value / powersOfTen[i]) % 10)));
+        }
+    }
+
+    /**
+     * @return number of decimal digits of a non-negative number, at least 1.
+     */
+    private static int countDigits(final long value) {
+        int digits = 1;
+        while (digits < powersOfTen.length && value >= powersOfTen[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,127 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+
+/**
+ * Loads image resources from the application package and keeps them in
+ * memory, so that every record that contains an image gets the same
+ * array without reading the resource again. The MIME type of an image is
+ * detected from the first bytes of its data.
+ * 
+ * @author Andreas Jakl
+ */
+public class ImageCache {
+    /** Images that can be written to tags, preloaded at startup. */
+    private static final String imageResources[] = {
+        "/minimal.gif",
+        "/minimal.png",
+        "/nokia.png"
+    };
+    /** Size of the blocks read from the resource stream. */
+    private static final int blockSize = 256;
+    /** Loaded images: resource name -> byte array. */
+    private static final Hashtable images = new Hashtable();
+
+    /**
+     * Load all images that can be written to tags into the cache.
+     * Errors are ignored; the images are then loaded again when needed.
+     */
+    public static void preload() {
+        for (int i = 0; i < imageResources.length; i++) {
+            try {
+                getImage(imageResources[i]);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Get the contents of an image resource. Loads the resource on the
+     * first request, afterwards returns the cached data.
+     * The returned array must not be modified.
+     * @param resourceName name of the resource, e.g., "/minimal.png".
+     * @return contents of the resource with the exact size.
+     * @throws IOException if the resource can't be read.
+     */
+    public static synchronized byte[] getImage(final String resourceName) throws IOException {
+        byte[] data = (byte[]) images.get(resourceName);
+        if (data == null) {
+            data = loadResource(resourceName);
+            images.put(resourceName, data);
+        }
+        return data;
+    }
+
+    /**
+     * Detect the MIME type of an image based on its magic bytes.
+     * @param data contents of the image file.
+     * @return MIME type of the image, or null if not recognized.
+     */
+    public static String getMimeType(final byte[] data) {
+        if (data.length >= 8 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G'
+                && data[4] == 0x0D && data[5] == 0x0A && data[6] == 0x1A && data[7] == 0x0A) {
+            return "image/png";
+        }
+        if (data.length >= 6 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8'
+                && (data[4] == '7' || data[4] == '9') && data[5] == 'a') {
+            return "image/gif";
+        }
+        if (data.length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        return null;
+    }
+
+    /**
+     * Read a resource in blocks and return its contents in an array of
+     * the exact size.
+     */
+    private static byte[] loadResource(final String resourceName) throws IOException {
+        InputStream is = ImageCache.class.getResourceAsStream(resourceName);
+        if (is == null) {
+            throw new IOException("Resource not found: " + resourceName);
+        }
+        try {
+            // available() usually returns the full size for resources in the JAR
+            byte[] data = new byte[Math.max(is.available(), blockSize)];
+            int length = 0;
+            while (true) {
+                if (length == data.length) {
+                    byte[] newData = new byte[data.length + blockSize];
+                    System.arraycopy(data, 0, newData, 0, length);
+                    data = newData;
+                }
+                final int numRead = is.read(data, length, data.length - length);
+                if (numRead < 0) {
+                    break;
+                }
+                length += numRead;
+            }
+            if (length == data.length) {
+                return data;
+            }
+            byte[] exactData = new byte[length];
+            System.arraycopy(data, 0, exactData, 0, length);
+            return exactData;
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -51,10 +51,19 @@ public interface InfoInterface {
      */
     public void logTagInfo(final String text);
     
+    /**
+     * Report the progress of a longer operation on a tag, e.g., reading
+     * a Mifare tag sector by sector.
+     * @param text description of the operation.
+     * @param done number of steps completed so far.
+     * @param total total number of steps.
+     */
+    public void tagProgress(final String text, final int done, final int total);
+    
     /**
      * Callback when a tag was found. The NFC manager will then
-     * establish a new thread and call this method, so that commands can be issued
-     * to the tag.
+     * call this method from its worker thread, so that commands can be issued
+     * to the tag. Tags are processed one after another.
      */
     public void tagReady();
 }
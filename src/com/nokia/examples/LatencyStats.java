@@ -0,0 +1,179 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Latency histograms of the phases of processing a tag, for each
+ * operation mode.
+ *
+ * Each histogram has fixed buckets with roughly logarithmic bounds, so
+ * adding a sample only increments a counter and never allocates memory.
+ * Percentiles are reported as the upper bound of the bucket that contains
+ * them, which is accurate to about a third of the value.
+ *
+ * @author Andreas Jakl
+ */
+public class LatencyStats {
+    /** Phase: from detecting the tag until the connection was opened. */
+    public static final int PHASE_CONNECT = 0;
+    /** Phase: waiting in the queue until the worker thread dispatched the tag. */
+    public static final int PHASE_QUEUE = 1;
+    /** Phase: processing in the app (encoding, parsing, files), without tag I/O. */
+    public static final int PHASE_PROCESS = 2;
+    /** Phase: reading from / writing to the tag. */
+    public static final int PHASE_TAG_IO = 3;
+    /** Phase: closing the connection. */
+    public static final int PHASE_CLOSE = 4;
+    /** Phase: total time from detecting the tag until the connection was closed. */
+    public static final int PHASE_TOTAL = 5;
+    /** Number of phases. */
+    public static final int NUM_PHASES = 6;
+    /** Names of the phases, for display and export. */
+    public static final String PHASE_NAMES[] = {
+        "Connect", "Queue", "Process", "Tag I/O", "Close", "Total"};
+
+    /** Upper bounds of the buckets in ms. Larger values go to an extra bucket. */
+    private static final int bucketBounds[] = {
+        1, 2, 3, 5, 7, 10, 15, 20, 30, 50, 70, 100, 150, 200, 300, 500, 700,
+        1000, 1500, 2000, 3000, 5000, 7000, 10000};
+    /** Number of buckets, including the bucket for larger values. */
+    private static final int numBuckets = bucketBounds.length + 1;
+
+    /** Number of samples per mode, phase and bucket. */
+    private final int[][][] counts;
+    /** Number of samples per mode and phase. */
+    private final int[][] totals;
+    /** Largest sample per mode and phase. */
+    private final long[][] maxima;
+
+    /**
+     * Create empty histograms.
+     * @param numModes number of operation modes.
+     */
+    public LatencyStats(final int numModes) {
+        counts = new int[numModes][NUM_PHASES][numBuckets];
+        totals = new int[numModes][NUM_PHASES];
+        maxima = new long[numModes][NUM_PHASES];
+    }
+
+    /**
+     * Add a sample.
+     * @param mode operation mode of the app.
+     * @param phase PHASE_* of the sample.
+     * @param ms duration of the phase.
+     */
+    public synchronized void add(final int mode, final int phase, long ms) {
+        if (mode < 0 || mode >= counts.length) {
+            return;
+        }
+        if (ms < 0) {
+            // Clock changed
+            ms = 0;
+        }
+        int bucket = 0;
+        while (bucket < bucketBounds.length && ms > bucketBounds[bucket]) {
+            bucket++;
+        }
+        counts[mode][phase][bucket]++;
+        totals[mode][phase]++;
+        if (ms > maxima[mode][phase]) {
+            maxima[mode][phase] = ms;
+        }
+    }
+
+    /**
+     * @return number of samples of the mode and phase.
+     */
+    public synchronized int getCount(final int mode, final int phase) {
+        return totals[mode][phase];
+    }
+
+    /**
+     * Get a percentile of the samples of a mode and phase.
+     * @param mode operation mode of the app.
+     * @param phase PHASE_* of the samples.
+     * @param percent percentile to get, e.g. 95.
+     * @return upper bound of the bucket that contains the percentile in ms,
+     * the largest sample for the extra bucket, -1 if there are no samples.
+     */
+    public synchronized long getPercentile(final int mode, final int phase, final int percent) {
+        final int total = totals[mode][phase];
+        if (total == 0) {
+            return -1;
+        }
+        // Number of samples at or below the percentile, rounded up
+        final int rank = Math.max((total * percent + 99) / 100, 1);
+        int sum = 0;
+        for (int bucket = 0; bucket < bucketBounds.length; bucket++) {
+            sum += counts[mode][phase][bucket];
+            if (sum >= rank) {
+                return Math.min(bucketBounds[bucket], maxima[mode][phase]);
+            }
+        }
+        return maxima[mode][phase];
+    }
+
+    /**
+     * Append p50 / p95 / p99 of all modes with samples, for display.
+     * @param text receives the summary.
+     * @param modeNames names of the operation modes.
+     */
+    public synchronized void appendSummary(StringBuffer text, final String[] modeNames) {
+        for (int mode = 0; mode < counts.length; mode++) {
+            if (totals[mode][PHASE_TOTAL] == 0) {
+                continue;
+            }
+            text.append(modeNames[mode]).append(" (").append(totals[mode][PHASE_TOTAL]).append(" tags)\n");
+            for (int phase = 0; phase < NUM_PHASES; phase++) {
+                text.append(PHASE_NAMES[phase]).append(": ")
+                        .append(getPercentile(mode, phase, 50)).append(" / ")
+                        .append(getPercentile(mode, phase, 95)).append(" / ")
+                        .append(getPercentile(mode, phase, 99)).append(" ms\n");
+            }
+        }
+    }
+
+    /**
+     * Append all histograms as comma separated values, one line per mode
+     * and phase with samples: mode, phase, count, p50, p95, p99, max and
+     * the count of each bucket.
+     * @param text receives the values.
+     * @param modeNames names of the operation modes.
+     */
+    public synchronized void appendCsv(StringBuffer text, final String[] modeNames) {
+        text.append("mode,phase,count,p50,p95,p99,max");
+        for (int bucket = 0; bucket < bucketBounds.length; bucket++) {
+            text.append(",<=").append(bucketBounds[bucket]);
+        }
+        text.append(",>").append(bucketBounds[bucketBounds.length - 1]).append('\n');
+        for (int mode = 0; mode < counts.length; mode++) {
+            for (int phase = 0; phase < NUM_PHASES; phase++) {
+                if (totals[mode][phase] == 0) {
+                    continue;
+                }
+                text.append(modeNames[mode]).append(',').append(PHASE_NAMES[phase])
+                        .append(',').append(totals[mode][phase])
+                        .append(',').append(getPercentile(mode, phase, 50))
+                        .append(',').append(getPercentile(mode, phase, 95))
+                        .append(',').append(getPercentile(mode, phase, 99))
+                        .append(',').append(maxima[mode][phase]);
+                for (int bucket = 0; bucket < numBuckets; bucket++) {
+                    text.append(',').append(counts[mode][phase][bucket]);
+                }
+                text.append('\n');
+            }
+        }
+    }
+}
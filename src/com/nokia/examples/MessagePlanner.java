@@ -0,0 +1,100 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import java.util.Hashtable;
+
+/**
+ * Checks if an encoded message fits onto a tag before writing it.
+ * If a write fails because the tag is full (KErrOverflow), the planner
+ * remembers the size for the UID of the tag, so the next attempt with the
+ * same or a larger message fails fast without an RF round trip.
+ * 
+ * The learned size is also used to choose which optional parts of a
+ * message to drop. The capacity can't be derived from the mapping (tag
+ * type) reported by the target properties, as larger tags report the same
+ * names as the smallest tag of their family (e.g., NTAG21x as Ultralight,
+ * Topaz 512 as Type 1), and the NDEF connection doesn't provide the
+ * maximum message size of the tag. Without a failed write, the capacity
+ * is therefore unknown.
+ * 
+ * The capacities refer to the data area that contains the NDEF message
+ * TLV, including the TLV header and the terminator TLV.
+ * 
+ * @author Andreas Jakl
+ */
+public class MessagePlanner {
+    /** Capacity is not known for the tag. */
+    public static final int CAPACITY_UNKNOWN = -1;
+    
+    /** Fallback level: write the message as it is. */
+    public static final int FALLBACK_NONE = 0;
+    /** Fallback level: drop the icon of a Smart Poster. */
+    public static final int FALLBACK_DROP_ICON = 1;
+    /** Fallback level: additionally drop the action record of a Smart Poster. */
+    public static final int FALLBACK_DROP_ACTION = 2;
+    /** Fallback level: additionally drop the title of a Smart Poster. */
+    public static final int FALLBACK_DROP_TITLE = 3;
+    
+    /** Capacities learned from failed writes: UID -> Integer (maximum TLV area size). */
+    private final Hashtable learnedCapacities = new Hashtable();
+    
+    /**
+     * Calculate the number of bytes the message occupies in the data area
+     * of a tag: NDEF message TLV (with 1 or 3 byte length) and terminator TLV.
+     * @param messageLength size of the encoded NDEF message.
+     * @return size including the TLV overhead.
+     */
+    public static int tlvSize(final int messageLength) {
+        return 1 + (messageLength < 0xFF ? 1 : 3) + messageLength + 1;
+    }
+    
+    /**
+     * Check if a message fits onto a tag.
+     * @param messageLength size of the encoded NDEF message.
+     * @param capacity capacity of the tag as returned by getLearnedCapacity().
+     * @return true if the message fits or the capacity is unknown.
+     */
+    public static boolean fits(final int messageLength, final int capacity) {
+        return capacity == CAPACITY_UNKNOWN || tlvSize(messageLength) <= capacity;
+    }
+    
+    /**
+     * Get the capacity of a tag as learned from a failed write.
+     * @param uid UID of the tag, can be null.
+     * @return upper limit of the capacity of the tag's data area in bytes,
+     * or CAPACITY_UNKNOWN if no write to the tag failed for lack of space.
+     */
+    public synchronized int getLearnedCapacity(final String uid) {
+        final Integer learned = (uid == null) ? null : (Integer) learnedCapacities.get(uid);
+        return learned == null ? CAPACITY_UNKNOWN : learned.intValue();
+    }
+    
+    /**
+     * Remember that a message didn't fit onto the tag.
+     * @param uid UID of the tag, can be null.
+     * @param messageLength size of the encoded NDEF message that didn't fit.
+     */
+    public synchronized void recordOverflow(final String uid, final int messageLength) {
+        if (uid == null) {
+            return;
+        }
+        final int maxCapacity = tlvSize(messageLength) - 1;
+        final Integer learned = (Integer) learnedCapacities.get(uid);
+        if (learned == null || maxCapacity < learned.intValue()) {
+            learnedCapacities.put(uid, new Integer(maxCapacity));
+        }
+    }
+}
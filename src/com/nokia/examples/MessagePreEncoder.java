@@ -0,0 +1,124 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Encodes the message to write in a background thread whenever the
+ * settings change, so that it is already available when a tag is touched.
+ * The encoded message is stored together with the key of the settings
+ * it was built from; it is only handed out if the key still matches.
+ * 
+ * @author Andreas Jakl
+ */
+public class MessagePreEncoder implements Runnable {
+    /** Provides keys and encodes the messages. */
+    private final MessageSource source;
+    /** Encoder used by the background thread. */
+    private final NdefEncoder encoder = new NdefEncoder();
+    /** Background thread, started with the first request. */
+    private Thread thread = null;
+    /** Set to false to end the background thread. */
+    private boolean running = true;
+    /** True if a new message should be encoded. */
+    private boolean requested = false;
+    /** Operation mode of the requested message. */
+    private int requestedMode;
+    /** Key of the settings the encoded message is based on. */
+    private String encodedKey = null;
+    /** Most recently encoded message. */
+    private byte[] encodedMessage = null;
+    
+    /**
+     * Create a new pre-encoder.
+     * @param source provides keys and encodes the messages.
+     */
+    public MessagePreEncoder(MessageSource source) {
+        this.source = source;
+    }
+    
+    /**
+     * Request to encode the message of the operation mode in the background.
+     * A pending request that wasn't processed yet is replaced.
+     * @param mode operation mode that defines the message type.
+     */
+    public synchronized void request(final int mode) {
+        if (!running) {
+            return;
+        }
+        requestedMode = mode;
+        requested = true;
+        if (thread == null) {
+            thread = new Thread(this);
+            thread.start();
+        }
+        notify();
+    }
+    
+    /**
+     * Get the pre-encoded message if it matches the current settings.
+     * @param key key of the current settings.
+     * @return the encoded message, or null if no message with that key
+     * is available.
+     */
+    public synchronized byte[] getMessage(final String key) {
+        if (key != null && key.equals(encodedKey)) {
+            return encodedMessage;
+        }
+        return null;
+    }
+    
+    /**
+     * End the background thread.
+     */
+    public synchronized void stop() {
+        running = false;
+        notify();
+    }
+    
+    public void run() {
+        while (true) {
+            int mode;
+            synchronized (this) {
+                while (running && !requested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) { }
+                }
+                if (!running) {
+                    return;
+                }
+                requested = false;
+                mode = requestedMode;
+            }
+            try {
+                final String key = source.getMessageKey(mode);
+                if (key != null && source.encodeMessage(mode, encoder)) {
+                    // Only keep the message if the settings didn't change
+                    // while encoding it.
+                    if (key.equals(source.getMessageKey(mode))) {
+                        final byte[] message = encoder.toByteArray();
+                        synchronized (this) {
+                            encodedKey = key;
+                            encodedMessage = message;
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                // Invalid settings - the message will be encoded again
+                // (and the error reported) when touching a tag.
+            }
+        }
+    }
+}
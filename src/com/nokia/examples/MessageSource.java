@@ -0,0 +1,43 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import java.io.IOException;
+
+/**
+ * Callback interface to encode the message of a write mode based on the
+ * current settings, used by the MessagePreEncoder.
+ * 
+ * @author Andreas Jakl
+ */
+public interface MessageSource {
+    /**
+     * Create a key that identifies the message of the operation mode with
+     * the current settings. Two calls return equal keys if and only if the
+     * encoded messages would be equal.
+     * @param mode operation mode that defines the message type.
+     * @return key for the message, null if the mode doesn't write a message.
+     */
+    public String getMessageKey(final int mode);
+
+    /**
+     * Encode the message of the operation mode, based on the current settings.
+     * @param mode operation mode that defines the message type.
+     * @param enc encoder that receives the message. Will be reset first.
+     * @return true if the mode writes a message and it was encoded.
+     * @throws IOException if the message can't be encoded.
+     */
+    public boolean encodeMessage(final int mode, NdefEncoder enc) throws IOException;
+}
@@ -0,0 +1,148 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Decodes the access conditions stored in the sector trailer of a Mifare
+ * Classic sector, to find out which key is allowed to read or write
+ * a block before trying to authenticate.
+ *
+ * Bytes 6-8 of the trailer contain the access bits C1, C2 and C3 for
+ * four groups of blocks, plus their inverted copies. Group 3 is the
+ * sector trailer. In sectors with 4 blocks, each data block forms its own
+ * group. In the 16 block sectors of 4K tags, each group covers 5 blocks.
+ *
+ * @author Andreas Jakl
+ */
+public class MifareAccessBits {
+    /** Permission: not allowed with any key. */
+    public static final int KEYS_NONE = 0;
+    /** Permission: allowed with Key A. */
+    public static final int KEY_A = 1;
+    /** Permission: allowed with Key B. */
+    public static final int KEY_B = 2;
+    /** Permission: allowed with both keys, or unknown. */
+    public static final int KEYS_ANY = KEY_A | KEY_B;
+
+    /** Offset of the access bits in the sector trailer. */
+    public static final int ACCESS_BITS_OFFSET = 6;
+    /** Access group of the sector trailer. */
+    private static final int trailerGroup = 3;
+
+    // Permissions for data blocks, indexed by the access condition C1 C2 C3
+    /** Keys that may read a data block. */
+    private static final int dataRead[] = {
+        KEYS_ANY, KEYS_ANY, KEYS_ANY, KEY_B, KEYS_ANY, KEY_B, KEYS_ANY, KEYS_NONE};
+    /** Keys that may write a data block. */
+    private static final int dataWrite[] = {
+        KEYS_ANY, KEYS_NONE, KEYS_NONE, KEY_B, KEY_B, KEYS_NONE, KEY_B, KEYS_NONE};
+    // Permissions for the sector trailer, indexed by the access condition
+    /** Keys that may read the access bits of the trailer. */
+    private static final int trailerRead[] = {
+        KEY_A, KEY_A, KEY_A, KEYS_ANY, KEYS_ANY, KEYS_ANY, KEYS_ANY, KEYS_ANY};
+    /**
+     * Keys that may write the complete trailer (keys and access bits).
+     * Conditions that only allow writing parts of the trailer are treated
+     * as not writable.
+     */
+    private static final int trailerWrite[] = {
+        KEYS_NONE, KEY_A, KEYS_NONE, KEY_B, KEYS_NONE, KEYS_NONE, KEYS_NONE, KEYS_NONE};
+
+    /**
+     * Check that the access bits match their inverted copies.
+     * @param trailer buffer that contains the sector trailer.
+     * @param offset start of the sector trailer in the buffer.
+     * @return true if the access bits are consistent.
+     */
+    public static boolean isValid(final byte[] trailer, final int offset) {
+        final int b6 = trailer[offset + ACCESS_BITS_OFFSET] & 0xFF;
+        final int b7 = trailer[offset + ACCESS_BITS_OFFSET + 1] & 0xFF;
+        final int b8 = trailer[offset + ACCESS_BITS_OFFSET + 2] & 0xFF;
+        return (b6 & 0x0F) == (~b7 >> 4 & 0x0F)
+                && (b6 >> 4) == (~b8 & 0x0F)
+                && (b7 & 0x0F) == (~b8 >> 4 & 0x0F);
+    }
+
+    /**
+     * Get the access conditions of all groups in a compact form.
+     * @param trailer buffer that contains the sector trailer.
+     * @param offset start of the sector trailer in the buffer.
+     * @return access conditions, 3 bits per group. Use getCondition() to
+     * get the condition of a block.
+     */
+    public static int decode(final byte[] trailer, final int offset) {
+        final int b7 = trailer[offset + ACCESS_BITS_OFFSET + 1] & 0xFF;
+        final int b8 = trailer[offset + ACCESS_BITS_OFFSET + 2] & 0xFF;
+        int conditions = 0;
+        for (int group = 0; group <= trailerGroup; group++) {
+            final int c1 = (b7 >> (4 + group)) & 1;
+            final int c2 = (b8 >> group) & 1;
+            final int c3 = (b8 >> (4 + group)) & 1;
+            conditions |= ((c1 << 2) | (c2 << 1) | c3) << (group * 3);
+        }
+        return conditions;
+    }
+
+    /**
+     * @param conditions access conditions returned by decode().
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @return access condition C1 C2 C3 of the block, 0 ... 7.
+     */
+    public static int getCondition(final int conditions, final int sector, final int block) {
+        return (conditions >> (getGroup(sector, block) * 3)) & 0x07;
+    }
+
+    /**
+     * @param conditions access conditions returned by decode().
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @return KEY_* flags of the keys that are allowed to read the block.
+     */
+    public static int getReadKeys(final int conditions, final int sector, final int block) {
+        final int condition = getCondition(conditions, sector, block);
+        return isTrailer(sector, block) ? trailerRead[condition] : dataRead[condition];
+    }
+
+    /**
+     * @param conditions access conditions returned by decode().
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @return KEY_* flags of the keys that are allowed to write the block.
+     */
+    public static int getWriteKeys(final int conditions, final int sector, final int block) {
+        final int condition = getCondition(conditions, sector, block);
+        return isTrailer(sector, block) ? trailerWrite[condition] : dataWrite[condition];
+    }
+
+    /**
+     * @return true if the block is the sector trailer.
+     */
+    public static boolean isTrailer(final int sector, final int block) {
+        return block == MifareLayout.getBlocksInSector(sector) - 1;
+    }
+
+    /**
+     * @return access group of the block within its sector.
+     */
+    private static int getGroup(final int sector, final int block) {
+        if (isTrailer(sector, block)) {
+            return trailerGroup;
+        }
+        final int blocks = MifareLayout.getBlocksInSector(sector);
+        // 16 block sectors: groups of 5 blocks
+        return blocks > 4 ? block / 5 : block;
+    }
+}
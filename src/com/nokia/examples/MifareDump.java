@@ -0,0 +1,293 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Binary file format for raw Mifare tag contents.
+ *
+ * All fields are at fixed offsets, multi-byte numbers are big endian:
+ * <pre>
+ *   0  magic "NFCD"
+ *   4  format version
+ *   5  flags (FLAG_*)
+ *   6  card type (CARD_*)
+ *   7  number of sectors
+ *   8  number of data bytes (4)
+ *  12  CRC-32 of all bytes from offset 16 to the end of the file (4)
+ *  16  time when the tag was read, ms since 1970 (8)
+ *  24  length of the UID
+ *  25  UID as ASCII string, padded with 0 (20)
+ *  48  sector table, 12 bytes for each of the 40 possible sectors:
+ *      read status (MifareManager.SECTOR_*), key type (KEY_TYPE_*),
+ *      key slot in the key dictionary (0xFF = not in the dictionary),
+ *      reserved, file offset of the sector data (4), length (4)
+ * 528  raw data as read from the tag
+ * </pre>
+ * Files that don't start with the magic are legacy raw data files.
+ *
+ * @author Andreas Jakl
+ */
+public class MifareDump {
+    /** Current version of the format. */
+    public static final int VERSION = 1;
+    /** Flag: the data contains the sector trailers. */
+    public static final int FLAG_TRAILERS = 0x01;
+    /** Flag: the data contains the manufacturer block. */
+    public static final int FLAG_MANUFACTURER_BLOCK = 0x02;
+    /** Flag: the sectors have a standard Mifare Classic layout. */
+    public static final int FLAG_STANDARD_LAYOUT = 0x04;
+    /**
+     * Flag: the raw data is replaced by its changes against a stored blob
+     * (see DumpStore). Not covered by the checksum.
+     */
+    public static final int FLAG_DELTA = 0x08;
+    /** Card type: unknown. */
+    public static final int CARD_UNKNOWN = 0;
+    /** Card type: Mifare Mini (5 sectors). */
+    public static final int CARD_MINI = 1;
+    /** Card type: Mifare Classic 1K (16 sectors). */
+    public static final int CARD_1K = 2;
+    /** Card type: Mifare Classic 2K (32 sectors). */
+    public static final int CARD_2K = 3;
+    /** Card type: Mifare Classic 4K (40 sectors). */
+    public static final int CARD_4K = 4;
+    /** Key type: no key worked. */
+    public static final int KEY_TYPE_NONE = 0;
+    /** Key type: Key A. */
+    public static final int KEY_TYPE_A = 1;
+    /** Key type: Key B. */
+    public static final int KEY_TYPE_B = 2;
+    /** Key slot: the key isn't part of the key dictionary. */
+    public static final int KEY_SLOT_UNKNOWN = 0xFF;
+
+    /** Offset of the format version. */
+    public static final int OFFSET_VERSION = 4;
+    /** Offset of the flags. */
+    public static final int OFFSET_FLAGS = 5;
+    /** Offset of the card type. */
+    public static final int OFFSET_CARD_TYPE = 6;
+    /** Offset of the number of sectors. */
+    public static final int OFFSET_SECTOR_COUNT = 7;
+    /** Offset of the number of data bytes. */
+    public static final int OFFSET_DATA_SIZE = 8;
+    /** Offset of the checksum. */
+    public static final int OFFSET_CRC = 12;
+    /** Offset of the time stamp. */
+    public static final int OFFSET_TIME = 16;
+    /** Offset of the UID length. */
+    public static final int OFFSET_UID_LENGTH = 24;
+    /** Offset of the UID. */
+    public static final int OFFSET_UID = 25;
+    /** Offset of the sector table. */
+    public static final int OFFSET_SECTOR_TABLE = 48;
+    /** Size of an entry of the sector table. */
+    public static final int SECTOR_ENTRY_SIZE = 12;
+    /** Number of entries of the sector table. */
+    public static final int MAX_SECTORS = 40;
+    /** Size of the header, offset of the raw data. */
+    public static final int HEADER_SIZE = OFFSET_SECTOR_TABLE + MAX_SECTORS * SECTOR_ENTRY_SIZE;
+
+    /** Magic bytes at the start of the file. */
+    private static final byte[] magic = { 'N', 'F', 'C', 'D' };
+    /** Maximum length of the UID string. */
+    private static final int maxUidLength = OFFSET_SECTOR_TABLE - OFFSET_UID - 3;
+
+    /**
+     * @param dataSize number of bytes of raw tag data.
+     * @return size of the dump containing the data.
+     */
+    public static int getDumpSize(final int dataSize) {
+        return HEADER_SIZE + dataSize;
+    }
+
+    /**
+     * Write a dump of the tag contents to the buffer.
+     * @param dump buffer of at least getDumpSize() bytes, receives the dump.
+     * @param uid UID of the tag.
+     * @param time time when the tag was read.
+     * @param layout layout of the tag.
+     * @param data raw data read from the tag, layout.getSize() bytes.
+     * @param sectorStatus read status of each sector.
+     * @param keyTypes KEY_TYPE_* of the key that worked for each sector.
+     * @param keySlots key dictionary slot of the key that worked for each sector.
+     * @return number of bytes of the dump.
+     */
+    public static int write(byte[] dump, final String uid, final long time, final MifareLayout layout,
+            final byte[] data, final byte[] sectorStatus, final byte[] keyTypes, final byte[] keySlots) {
+        final int dataSize = layout.getSize();
+        final int numSectors = Math.min(layout.getSectorCount(), MAX_SECTORS);
+        // Clear the header, as the buffer may be reused
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            dump[i] = 0;
+        }
+        System.arraycopy(magic, 0, dump, 0, magic.length);
+        dump[OFFSET_VERSION] = VERSION;
+        dump[OFFSET_FLAGS] = (byte) ((layout.hasTrailers() ? FLAG_TRAILERS : 0)
+                | (layout.isStandardLayout() ? FLAG_STANDARD_LAYOUT : 0)
+                | (layout.isStandardLayout() && layout.getBlockOffset(0, 0) >= 0 ? FLAG_MANUFACTURER_BLOCK : 0));
+        dump[OFFSET_CARD_TYPE] = (byte) getCardType(layout);
+        dump[OFFSET_SECTOR_COUNT] = (byte) numSectors;
+        writeInt(dump, OFFSET_DATA_SIZE, dataSize);
+        writeInt(dump, OFFSET_TIME, (int) (time >>> 32));
+        writeInt(dump, OFFSET_TIME + 4, (int) time);
+        final int uidLength = (uid == null) ? 0 : Math.min(uid.length(), maxUidLength);
+        dump[OFFSET_UID_LENGTH] = (byte) uidLength;
+        for (int i = 0; i < uidLength; i++) {
+            dump[OFFSET_UID + i] = (byte) uid.charAt(i);
+        }
+        for (int sector = 0; sector < numSectors; sector++) {
+            final int entry = OFFSET_SECTOR_TABLE + sector * SECTOR_ENTRY_SIZE;
+            dump[entry] = sectorStatus[sector];
+            dump[entry + 1] = keyTypes[sector];
+            dump[entry + 2] = keySlots[sector];
+            writeInt(dump, entry + 4, HEADER_SIZE + layout.getSectorOffset(sector));
+            writeInt(dump, entry + 8, layout.getSectorLength(sector));
+        }
+        System.arraycopy(data, 0, dump, HEADER_SIZE, dataSize);
+        final int dumpSize = HEADER_SIZE + dataSize;
+        writeInt(dump, OFFSET_CRC, Crc32.calculate(dump, OFFSET_CRC + 4, dumpSize - OFFSET_CRC - 4));
+        return dumpSize;
+    }
+
+    /**
+     * @param file contents of a data file.
+     * @return true if the file is a dump in this format, false for legacy
+     * raw data files.
+     */
+    public static boolean isDump(final byte[] file) {
+        return file != null && isDump(file, file.length);
+    }
+
+    /**
+     * @param file buffer containing a data file.
+     * @param length size of the data file.
+     * @return true if the file is a dump in this format, false for legacy
+     * raw data files.
+     */
+    public static boolean isDump(final byte[] file, final int length) {
+        if (length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (file[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check the version, the size and the checksum of a dump.
+     * @param file contents of a dump file.
+     * @return true if the dump is complete and unchanged.
+     */
+    public static boolean isValid(final byte[] file) {
+        return file != null && isValid(file, file.length);
+    }
+
+    /**
+     * Check the version, the size and the checksum of a dump.
+     * @param file buffer containing a dump file.
+     * @param length size of the dump file.
+     * @return true if the dump is complete and unchanged.
+     */
+    public static boolean isValid(final byte[] file, final int length) {
+        if (!isDump(file, length) || file[OFFSET_VERSION] != VERSION
+                || length != HEADER_SIZE + readInt(file, OFFSET_DATA_SIZE)) {
+            return false;
+        }
+        return readInt(file, OFFSET_CRC) == Crc32.calculate(file, OFFSET_CRC + 4, length - OFFSET_CRC - 4);
+    }
+
+    /**
+     * Get the raw tag data of a data file.
+     * @param file contents of a dump file or a legacy raw data file.
+     * @return the raw data. Legacy files are returned unchanged.
+     */
+    public static byte[] getData(final byte[] file) {
+        if (!isDump(file)) {
+            return file;
+        }
+        final int dataSize = Math.min(readInt(file, OFFSET_DATA_SIZE), file.length - HEADER_SIZE);
+        byte[] data = new byte[dataSize];
+        System.arraycopy(file, HEADER_SIZE, data, 0, dataSize);
+        return data;
+    }
+
+    /**
+     * @param file contents of a dump file.
+     * @return UID of the tag.
+     */
+    public static String getUid(final byte[] file) {
+        final int uidLength = Math.min(file[OFFSET_UID_LENGTH] & 0xFF, maxUidLength);
+        StringBuffer uid = new StringBuffer(uidLength);
+        for (int i = 0; i < uidLength; i++) {
+            uid.append((char) (file[OFFSET_UID + i] & 0xFF));
+        }
+        return uid.toString();
+    }
+
+    /**
+     * @param file contents of a dump file.
+     * @param sector index of the sector.
+     * @return read status of the sector, one of MifareManager.SECTOR_*.
+     */
+    public static int getSectorStatus(final byte[] file, final int sector) {
+        return file[OFFSET_SECTOR_TABLE + sector * SECTOR_ENTRY_SIZE];
+    }
+
+    /**
+     * @param file contents of a dump file.
+     * @param sector index of the sector.
+     * @return position of the sector data in the file.
+     */
+    public static int getSectorOffset(final byte[] file, final int sector) {
+        return readInt(file, OFFSET_SECTOR_TABLE + sector * SECTOR_ENTRY_SIZE + 4);
+    }
+
+    /**
+     * @return card type of the tag, based on the number of sectors.
+     */
+    private static int getCardType(final MifareLayout layout) {
+        if (!layout.isStandardLayout()) {
+            return CARD_UNKNOWN;
+        }
+        switch (layout.getSectorCount()) {
+            case 5:
+                return CARD_MINI;
+            case 16:
+                return CARD_1K;
+            case 32:
+                return CARD_2K;
+            case 40:
+                return CARD_4K;
+        }
+        return CARD_UNKNOWN;
+    }
+
+    static void writeInt(byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int readInt(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+                | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8)
+                | (buffer[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,378 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import com.nokia.nfc.nxp.mfstd.MFKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+import javax.microedition.rms.RecordEnumeration;
+import javax.microedition.rms.RecordStore;
+import javax.microedition.rms.RecordStoreException;
+
+/**
+ * Keys to try when authenticating to the sectors of Mifare tags.
+ *
+ * The key dictionary contains well-known default keys, plus the keys found
+ * in the optional key file (one key per line as 12 hex digits, lines
+ * starting with '#' are ignored) in the data directory. Each key is tried
+ * as Key A first, then as Key B.
+ *
+ * For every tag, the key that last worked for each sector is remembered
+ * and saved in the record store, so that it can be tried first the next
+ * time the same tag is accessed.
+ *
+ * @author Andreas Jakl
+ */
+public class MifareKeyStore {
+    /** Name of the optional file with additional keys, in the data directory. */
+    public static final String KEY_FILE_NAME = "mifare_keys.txt";
+    /** Name of the record store that contains the keys per tag. */
+    private static final String recordStoreName = "MifareKeys";
+    /** Number of bytes of a Mifare key. */
+    private static final int keyLength = 6;
+    /** Maximum number of sectors of a Mifare tag (4K). */
+    private static final int maxSectors = 40;
+    /** Bytes per sector in a cache entry: key type + key. */
+    private static final int sectorEntryLength = 1 + keyLength;
+    /** Key type in a cache entry: no key known. */
+    private static final byte KEY_TYPE_NONE = 0;
+    /** Key type in a cache entry: Key A. */
+    private static final byte KEY_TYPE_A = 1;
+    /** Key type in a cache entry: Key B. */
+    private static final byte KEY_TYPE_B = 2;
+    /** Maximum number of tags to remember. The oldest tag is removed first. */
+    private static final int maxCachedTags = 200;
+
+    /** Well-known keys, tried before the keys of the key file. */
+    private static final String defaultKeys[] = {
+        "FFFFFFFFFFFF", // Factory default
+        "A0A1A2A3A4A5", // MAD key A
+        "D3F7D3F7D3F7", // NFC Forum NDEF sectors
+        "000000000000",
+        "B0B1B2B3B4B5",
+        "AABBCCDDEEFF"};
+
+    /** Raw bytes of all keys of the dictionary. */
+    private final Vector keys = new Vector();
+    /** Each key of the dictionary as Key A. */
+    private MFKey[] keysA;
+    /** Each key of the dictionary as Key B. */
+    private MFKey[] keysB;
+    /** Whether the dictionary and the cache have been loaded. */
+    private boolean loaded = false;
+
+    /** Key per sector for each tag UID, see sectorEntryLength. */
+    private final Hashtable cache = new Hashtable();
+    /** Record ID of each tag UID in the record store. */
+    private final Hashtable recordIds = new Hashtable();
+    /** Tag UIDs in the order they were added, to remove the oldest one. */
+    private final Vector cacheOrder = new Vector();
+    /** UIDs of tags whose keys changed since they were saved. */
+    private final Vector dirtyUids = new Vector();
+
+    /**
+     * @return number of keys in the dictionary, each key counted once as
+     * Key A and once as Key B.
+     */
+    public int getKeyCount() {
+        load();
+        return keysA.length * 2;
+    }
+
+    /**
+     * @param slot index of the key, 0 ... getKeyCount() - 1. All keys as
+     * Key A come first, followed by all keys as Key B.
+     * @return the key.
+     */
+    public MFKey getKey(final int slot) {
+        load();
+        return slot < keysA.length ? keysA[slot] : keysB[slot - keysA.length];
+    }
+
+    /**
+     * @param slot index of the key, 0 ... getKeyCount() - 1.
+     * @return true if the key is used as Key B, false for Key A.
+     */
+    public boolean isKeyB(final int slot) {
+        load();
+        return slot >= keysA.length;
+    }
+
+    /**
+     * @param uid UID of the tag.
+     * @param sector index of the sector.
+     * @return the key that last worked for the sector of this tag, or null
+     * if none is known.
+     */
+    public MFKey getCachedKey(final String uid, final int sector) {
+        load();
+        final byte[] entry = (uid == null) ? null : (byte[]) cache.get(uid);
+        if (entry == null || sector >= maxSectors) {
+            return null;
+        }
+        final int pos = sector * sectorEntryLength;
+        if (entry[pos] == KEY_TYPE_NONE) {
+            return null;
+        }
+        byte[] key = new byte[keyLength];
+        System.arraycopy(entry, pos + 1, key, 0, keyLength);
+        return entry[pos] == KEY_TYPE_A ? (MFKey) new MFKey.KeyA(key) : new MFKey.KeyB(key);
+    }
+
+    /**
+     * @param uid UID of the tag.
+     * @param sector index of the sector.
+     * @return slot of the key that last worked for the sector of this tag,
+     * or -1 if none is known or the key is no longer part of the dictionary.
+     */
+    public int getCachedSlot(final String uid, final int sector) {
+        load();
+        final byte[] entry = (uid == null) ? null : (byte[]) cache.get(uid);
+        if (entry == null || sector >= maxSectors) {
+            return -1;
+        }
+        final int pos = sector * sectorEntryLength;
+        if (entry[pos] == KEY_TYPE_NONE) {
+            return -1;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            if (matches(entry, pos + 1, (byte[]) keys.elementAt(i))) {
+                return entry[pos] == KEY_TYPE_A ? i : keysA.length + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remember that the key of the dictionary worked for the sector of
+     * the tag. Call save() to store the changes.
+     * @param uid UID of the tag.
+     * @param sector index of the sector.
+     * @param slot index of the key in the dictionary.
+     */
+    public void setCachedKey(final String uid, final int sector, final int slot) {
+        load();
+        if (uid == null || sector >= maxSectors) {
+            return;
+        }
+        byte[] entry = (byte[]) cache.get(uid);
+        if (entry == null) {
+            if (cacheOrder.size() >= maxCachedTags) {
+                removeOldest();
+            }
+            entry = new byte[maxSectors * sectorEntryLength];
+            cache.put(uid, entry);
+            cacheOrder.addElement(uid);
+        }
+        final int pos = sector * sectorEntryLength;
+        final int keyIndex = slot % keysA.length;
+        final byte keyType = slot < keysA.length ? KEY_TYPE_A : KEY_TYPE_B;
+        final byte[] key = (byte[]) keys.elementAt(keyIndex);
+        if (entry[pos] == keyType && matches(entry, pos + 1, key)) {
+            return;
+        }
+        entry[pos] = keyType;
+        System.arraycopy(key, 0, entry, pos + 1, keyLength);
+        if (!dirtyUids.contains(uid)) {
+            dirtyUids.addElement(uid);
+        }
+    }
+
+    /**
+     * Write the keys of all changed tags to the record store.
+     */
+    public void save() {
+        if (dirtyUids.size() == 0) {
+            return;
+        }
+        RecordStore rs = null;
+        try {
+            rs = RecordStore.openRecordStore(recordStoreName, true);
+            for (int i = 0; i < dirtyUids.size(); i++) {
+                final String uid = (String) dirtyUids.elementAt(i);
+                final byte[] entry = (byte[]) cache.get(uid);
+                if (entry == null) {
+                    continue;
+                }
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(bos);
+                dos.writeUTF(uid);
+                dos.write(entry);
+                dos.close();
+                final byte[] record = bos.toByteArray();
+                final Integer recordId = (Integer) recordIds.get(uid);
+                if (recordId != null) {
+                    rs.setRecord(recordId.intValue(), record, 0, record.length);
+                } else {
+                    recordIds.put(uid, new Integer(rs.addRecord(record, 0, record.length)));
+                }
+            }
+            dirtyUids.removeAllElements();
+        } catch (RecordStoreException ex) {
+            ex.printStackTrace();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeRecordStore(rs);
+        }
+    }
+
+    /**
+     * Load the key dictionary and the cached keys, if not done yet.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        for (int i = 0; i < defaultKeys.length; i++) {
+            addKey(defaultKeys[i]);
+        }
+        loadKeyFile();
+        keysA = new MFKey[keys.size()];
+        keysB = new MFKey[keys.size()];
+        for (int i = 0; i < keysA.length; i++) {
+            keysA[i] = new MFKey.KeyA((byte[]) keys.elementAt(i));
+            keysB[i] = new MFKey.KeyB((byte[]) keys.elementAt(i));
+        }
+        loadCache();
+    }
+
+    /**
+     * Add the keys of the key file to the dictionary.
+     */
+    private void loadKeyFile() {
+        final byte[] data = TagFileManager.readFile(KEY_FILE_NAME);
+        if (data == null) {
+            return;
+        }
+        int lineStart = 0;
+        for (int i = 0; i <= data.length; i++) {
+            if (i == data.length || data[i] == '\n' || data[i] == '\r') {
+                final String line = new String(data, lineStart, i - lineStart).trim();
+                if (line.length() > 0 && line.charAt(0) != '#') {
+                    addKey(line);
+                }
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Add a key to the dictionary, ignoring duplicates and invalid keys.
+     * @param hex key as 12 hex digits.
+     */
+    private void addKey(final String hex) {
+        if (hex.length() != keyLength * 2) {
+            return;
+        }
+        byte[] key = new byte[keyLength];
+        for (int i = 0; i < keyLength; i++) {
+            final int high = Character.digit(hex.charAt(i * 2), 16);
+            final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return;
+            }
+            key[i] = (byte) ((high << 4) | low);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            if (matches((byte[]) keys.elementAt(i), 0, key)) {
+                return;
+            }
+        }
+        keys.addElement(key);
+    }
+
+    /**
+     * Load the keys of all tags from the record store.
+     */
+    private void loadCache() {
+        RecordStore rs = null;
+        try {
+            rs = RecordStore.openRecordStore(recordStoreName, true);
+            RecordEnumeration re = rs.enumerateRecords(null, null, false);
+            while (re.hasNextElement()) {
+                final int recordId = re.nextRecordId();
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(rs.getRecord(recordId)));
+                final String uid = dis.readUTF();
+                byte[] entry = new byte[maxSectors * sectorEntryLength];
+                dis.readFully(entry);
+                dis.close();
+                cache.put(uid, entry);
+                recordIds.put(uid, new Integer(recordId));
+                cacheOrder.addElement(uid);
+            }
+            re.destroy();
+        } catch (RecordStoreException ex) {
+            ex.printStackTrace();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeRecordStore(rs);
+        }
+    }
+
+    /**
+     * Forget the keys of the tag that was added first, also from the
+     * record store.
+     */
+    private void removeOldest() {
+        final String uid = (String) cacheOrder.elementAt(0);
+        cacheOrder.removeElementAt(0);
+        cache.remove(uid);
+        dirtyUids.removeElement(uid);
+        final Integer recordId = (Integer) recordIds.get(uid);
+        if (recordId == null) {
+            return;
+        }
+        recordIds.remove(uid);
+        RecordStore rs = null;
+        try {
+            rs = RecordStore.openRecordStore(recordStoreName, true);
+            rs.deleteRecord(recordId.intValue());
+        } catch (RecordStoreException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeRecordStore(rs);
+        }
+    }
+
+    /**
+     * @return true if the bytes starting at the position are equal to the key.
+     */
+    private static boolean matches(final byte[] data, final int pos, final byte[] key) {
+        for (int i = 0; i < keyLength; i++) {
+            if (data[pos + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeRecordStore(RecordStore rs) {
+        if (rs != null) {
+            try {
+                rs.closeRecordStore();
+            } catch (RecordStoreException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
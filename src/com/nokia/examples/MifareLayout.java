@@ -0,0 +1,193 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Maps the sectors and blocks of a Mifare Classic tag to the linear
+ * address space used by MFStandardConnection.read() / write().
+ *
+ * Mifare Classic 1K (and Mini) tags have sectors of 4 blocks. 4K tags
+ * have 32 sectors of 4 blocks, followed by 8 sectors of 16 blocks. The
+ * last block of each sector is the sector trailer with keys and access
+ * bits, block 0 contains the manufacturer data. Depending on the
+ * connection, these blocks may or may not be part of the linear address
+ * space; this is detected from the size reported by the connection.
+ *
+ * @author Andreas Jakl
+ */
+public class MifareLayout {
+    /** Number of bytes of a Mifare block. */
+    public static final int BLOCK_SIZE = 16;
+    /** Number of sectors at the beginning of the tag that consist of 4 blocks. */
+    private static final int smallSectorCount = 32;
+    /** Number of blocks of the first 32 sectors. */
+    private static final int smallSectorBlocks = 4;
+    /** Number of blocks of all sectors after the first 32 (4K tags). */
+    private static final int largeSectorBlocks = 16;
+
+    /** Number of sectors of the tag. */
+    private final int sectorCount;
+    /** Number of bytes of the linear address space. */
+    private final int size;
+    /** Whether sector trailers are part of the linear address space. */
+    private final boolean trailersMapped;
+    /** Whether the manufacturer block is part of the linear address space. */
+    private final boolean manufacturerBlockMapped;
+    /** Whether the reported sizes match a standard Mifare Classic layout. */
+    private final boolean standardLayout;
+    /** Start of the data of each sector in the linear address space. */
+    private final int[] sectorOffsets;
+    /** Number of bytes of each sector in the linear address space. */
+    private final int[] sectorLengths;
+
+    /**
+     * Create the layout based on the information reported by the connection.
+     * If the values don't match a standard Mifare Classic layout, the whole
+     * tag is treated as a single sector.
+     * @param sectorCount number of sectors (getSectorCount()).
+     * @param blockCount total number of blocks (getBlockCount()).
+     * @param size number of bytes of the linear address space (size()).
+     */
+    public MifareLayout(final int sectorCount, final int blockCount, final int size) {
+        this.size = size;
+        int expectedBlocks = 0;
+        for (int i = 0; i < sectorCount; i++) {
+            expectedBlocks += getBlocksInSector(i);
+        }
+        final int allBytes = blockCount * BLOCK_SIZE;
+        final int withoutTrailers = allBytes - sectorCount * BLOCK_SIZE;
+        if (sectorCount > 0 && expectedBlocks == blockCount
+                && (size == allBytes || size == withoutTrailers || size == withoutTrailers - BLOCK_SIZE)) {
+            standardLayout = true;
+            trailersMapped = (size == allBytes);
+            manufacturerBlockMapped = (size != withoutTrailers - BLOCK_SIZE);
+            this.sectorCount = sectorCount;
+        } else {
+            standardLayout = false;
+            trailersMapped = false;
+            manufacturerBlockMapped = false;
+            this.sectorCount = 1;
+        }
+
+        sectorOffsets = new int[this.sectorCount];
+        sectorLengths = new int[this.sectorCount];
+        if (!standardLayout) {
+            sectorLengths[0] = size;
+            return;
+        }
+        int offset = 0;
+        for (int sector = 0; sector < sectorCount; sector++) {
+            int mappedBlocks = getBlocksInSector(sector);
+            if (!trailersMapped) {
+                mappedBlocks--;
+            }
+            if (sector == 0 && !manufacturerBlockMapped) {
+                mappedBlocks--;
+            }
+            sectorOffsets[sector] = offset;
+            sectorLengths[sector] = mappedBlocks * BLOCK_SIZE;
+            offset += sectorLengths[sector];
+        }
+    }
+
+    /**
+     * @param sector index of the sector.
+     * @return number of blocks of the sector, including the trailer.
+     */
+    public static int getBlocksInSector(final int sector) {
+        return sector < smallSectorCount ? smallSectorBlocks : largeSectorBlocks;
+    }
+
+    /**
+     * @param sector index of the sector.
+     * @return absolute number of the first block of the sector.
+     */
+    public static int getFirstBlock(final int sector) {
+        if (sector < smallSectorCount) {
+            return sector * smallSectorBlocks;
+        }
+        return smallSectorCount * smallSectorBlocks + (sector - smallSectorCount) * largeSectorBlocks;
+    }
+
+    /**
+     * @return number of sectors, 1 if the layout isn't known.
+     */
+    public int getSectorCount() {
+        return sectorCount;
+    }
+
+    /**
+     * @return number of bytes of the linear address space.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return true if the tag has a standard Mifare Classic layout, so that
+     * individual sectors and blocks can be addressed.
+     */
+    public boolean isStandardLayout() {
+        return standardLayout;
+    }
+
+    /**
+     * @return true if the sector trailers can be accessed through the
+     * linear address space.
+     */
+    public boolean hasTrailers() {
+        return trailersMapped;
+    }
+
+    /**
+     * @param sector index of the sector.
+     * @return start of the sector data in the linear address space.
+     */
+    public int getSectorOffset(final int sector) {
+        return sectorOffsets[sector];
+    }
+
+    /**
+     * @param sector index of the sector.
+     * @return number of bytes of the sector in the linear address space.
+     */
+    public int getSectorLength(final int sector) {
+        return sectorLengths[sector];
+    }
+
+    /**
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @return start of the block in the linear address space, or -1 if the
+     * block isn't mapped (e.g., a sector trailer) or the layout isn't known.
+     */
+    public int getBlockOffset(final int sector, final int block) {
+        if (!standardLayout || sector < 0 || sector >= sectorCount || block < 0) {
+            return -1;
+        }
+        final int blocks = getBlocksInSector(sector);
+        if (block >= blocks || (!trailersMapped && block == blocks - 1)) {
+            return -1;
+        }
+        int index = block;
+        if (sector == 0 && !manufacturerBlockMapped) {
+            if (block == 0) {
+                return -1;
+            }
+            index--;
+        }
+        return sectorOffsets[sector] + index * BLOCK_SIZE;
+    }
+}
@@ -19,6 +19,7 @@ import com.nokia.nfc.nxp.mfstd.MFStandardConnection;
 import com.nokia.nfc.nxp.mfstd.MFStandardException;
 import java.io.IOException;
 import javax.microedition.contactless.TargetProperties;
+import javax.microedition.io.Connection;
 import javax.microedition.io.Connector;
 import javax.microedition.lcdui.AlertType;
 
@@ -32,10 +33,70 @@ public class MifareManager {
     private InfoInterface callback;
     /** Default key A and B according to Mifare specs. */
     static private byte[] KEY_BYTES_FF = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+    /** Status of a sector that hasn't been read yet. */
+    public static final byte SECTOR_NOT_READ = 0;
+    /** Status of a sector that was read successfully. */
+    public static final byte SECTOR_READ = 1;
+    /** Status of a sector that couldn't be read with the key. */
+    public static final byte SECTOR_AUTH_FAILED = 2;
+    
     /** Connection to the tag. */
     private MFStandardConnection conn = null;
-    /** Cached data in the tag / data to write to the tag. */
+    /** UID of the tag of the current connection. */
+    private String uid = null;
+    /** Data to write to the tag. */
     private byte[] tagData = null;
+    /**
+     * Read status of each sector of the data to write, if it comes from
+     * a dump. Sectors that weren't read are skipped when writing changed
+     * blocks. null if the status is unknown.
+     */
+    private byte[] tagDataStatus = null;
+    /**
+     * Data read from the tag. Kept after the tag leaves the field while
+     * reading, so that reading can continue when the same tag is touched again.
+     * Once complete, it is the cached image of the tag, which is kept up
+     * to date when writing blocks. Reused for the next read if the size matches.
+     */
+    private byte[] readBuffer = null;
+    /** Read status of each sector of readBuffer, one of the SECTOR_* values. */
+    private byte[] sectorStatus = null;
+    /** Type of the key that worked for each sector of readBuffer, MifareDump.KEY_TYPE_*. */
+    private byte[] sectorKeyTypes = null;
+    /** Dictionary slot of the key that worked for each sector of readBuffer. */
+    private byte[] sectorKeySlots = null;
+    /** Buffer for the dump file of the tag, reused for tags of the same size. */
+    private byte[] dumpBuffer = null;
+    /** Buffer for reading data files to write, grows to the largest tag. */
+    private byte[] fileBuffer = null;
+    /** UID of the tag whose data is contained in readBuffer, null if none. */
+    private String bufferUid = null;
+    /** Whether all sectors of readBuffer have been processed. */
+    private boolean bufferComplete = false;
+    /** CRC-32 of the data last read from / written to the tag, 0 if none. */
+    private int dataChecksum = 0;
+    /** Buffer for writing a single block. */
+    private final byte[] blockBuffer = new byte[MifareLayout.BLOCK_SIZE];
+    /** Keys to try per sector, and the keys that worked for each tag. */
+    private final MifareKeyStore keyStore = new MifareKeyStore();
+    /** Operation for accessSector(): read a range. */
+    private static final int OP_READ = 0;
+    /** Operation for accessSector(): write the block buffer. */
+    private static final int OP_WRITE_BLOCK = 1;
+    /** Access conditions of a sector that haven't been read yet. */
+    private static final int ACCESS_UNKNOWN = -1;
+    /** Access conditions of a sector that can't be determined. */
+    private static final int ACCESS_UNAVAILABLE = -2;
+    /** UID of the tag the access conditions belong to. */
+    private String accessUid = null;
+    /** Access conditions of each sector, see MifareAccessBits.decode(). */
+    private final int[] sectorAccess = new int[40];
+    /** Buffer for reading a sector trailer. */
+    private final byte[] trailerBuffer = new byte[MifareLayout.BLOCK_SIZE];
+    /** Type of the key used by the last successful accessSector(), MifareDump.KEY_TYPE_*. */
+    private int lastKeyType;
+    /** Dictionary slot of the key used by the last successful accessSector(). */
+    private int lastKeySlot;
     
     /**
      * Create a new instance of the mifare manager.
@@ -47,27 +108,42 @@ public class MifareManager {
     }
     
     /**
-     * Connect to a Mifare target.
+     * Open a connection to a Mifare target. The connection isn't used until
+     * it is activated with setConnection().
      * @param tProp target properties of the target in range.
-     * @return if establishing a connection was successful.
-     */
-    public boolean connect(TargetProperties[] tProp) {
-        // Establish new Mifare connection
-        MFStandardConnection newConn = getMifareTagConnection(tProp);
-        if (newConn != null) {
-            // Successfully established a connection
-            if (conn != null) {
-                try {
-                    // Close previous connection if it's still active
-                    conn.close();
-                } catch (IOException ex) { }
-                conn = null;
-            }
-            // Keep only the new connection
-            conn = newConn;
-            return true;
-        }
-        return false;
+     * @return the connection, or null if establishing it wasn't possible.
+     */
+    public Connection openConnection(TargetProperties[] tProp) {
+        return getMifareTagConnection(tProp);
+    }
+    
+    /**
+     * Set the connection to use for reading and writing. The caller stays
+     * responsible for closing the connection.
+     * @param connection Mifare connection opened with openConnection(),
+     * or null to stop using the previous connection.
+     * @param uid UID of the tag, used to continue interrupted reads.
+     */
+    public void setConnection(Connection connection, String uid) {
+        conn = (MFStandardConnection) connection;
+        this.uid = uid;
+        dataChecksum = 0;
+    }
+    
+    /**
+     * @return number of sectors of the tag of the current connection,
+     * 0 if there is no connection.
+     */
+    public int getSectorCount() {
+        return conn == null ? 0 : getLayout().getSectorCount();
+    }
+    
+    /**
+     * @return CRC-32 of the data last read from / written to the tag of
+     * the current connection, 0 if none.
+     */
+    public int getDataChecksum() {
+        return dataChecksum;
     }
    
     /**
@@ -101,72 +177,761 @@ public class MifareManager {
         
     /**
      * Read the complete raw data from the tag, using the specified key.
-     * If no key is provided (= null), the default key KEY_BYTES_FF will be used.
-     * The contents of the tag are saved to a file, the callback will receive
-     * information about the tag.
-     * @param key Key A to use for the conneciton. KEY_BYTES_FF (= Mifare default)
-     * is used when no key is specified.
-     * @return number of bytes read from the tag.
+     * If no key is provided (= null), the key that last worked for each
+     * sector of this tag is tried first, then all keys of the key dictionary.
+     * The tag is read sector by sector. If the tag leaves the field while
+     * reading, the sectors read so far are kept, and reading continues
+     * with the first missing sector when the same tag is touched again.
+     * Once all sectors are read, the contents of the tag are saved to a
+     * file, the callback will receive information about the tag.
+     * @param key Key A to use for the conneciton, null to use the key dictionary.
+     * @return number of bytes read from the tag, or -1 if reading failed
+     * or was interrupted.
      */
     public int readData(MFKey.KeyA key) {
         if (conn == null) {
             return -1;
         }
-        if (key == null)
-            key = new MFKey.KeyA(KEY_BYTES_FF);
+        final MifareLayout layout = getLayout();
+        final int numSectors = layout.getSectorCount();
+        final int dataSize = layout.getSize();
+        System.out.println("Sectors: " + conn.getSectorCount() + ", Total blocks: " + conn.getBlockCount() + ", Data size: " + dataSize);
+        if (!prepareReadBuffer(layout, false)) {
+            callback.logTagInfo("Continuing to read Mifare tag " + uid);
+        }
         try {
-            final int numSectors = conn.getSectorCount();
-            final int numTotalBlocks = conn.getBlockCount();
-            final int dataSize = conn.size();
-            System.out.println("Sectors: " + numSectors + ", Total blocks: " + numTotalBlocks + ", Data size: " + dataSize);
-            tagData = new byte[dataSize];
-            int bytesRead = conn.read(key, tagData, 0, 0, dataSize);
-            System.out.println("Number of bytes read from data area: " + bytesRead);
-            String filename = TagFileManager.logTagInfo(conn.getClass().getName(), tagData);
-            callback.displayAlert("Mifare tag read", "Mifare data saved to file", AlertType.CONFIRMATION);
-            callback.logTagInfo("Mifare tag\nSectors: " + numSectors + ", Size: " + dataSize + ", Read: " + bytesRead + "\nSaved to: " + filename);
-            return bytesRead;
-        } catch (MFStandardException ex) {
-            ex.printStackTrace();
+            readMissingSectors(key, layout);
         } catch (IOException ex) {
-            ex.printStackTrace();
+            // Tag left the field: the sectors read so far are kept
+            callback.displayAlert("Mifare read interrupted", "Touch the same tag again to continue reading.", AlertType.WARNING);
+            return -1;
+        } finally {
+            keyStore.save();
         }
-        
-        return -1;
+
+        int bytesRead = 0;
+        int failedSectors = 0;
+        for (int i = 0; i < numSectors; i++) {
+            if (sectorStatus[i] == SECTOR_READ) {
+                bytesRead += layout.getSectorLength(i);
+            } else {
+                failedSectors++;
+            }
+        }
+        System.out.println("Number of bytes read from data area: " + bytesRead);
+        final int dumpSize = MifareDump.getDumpSize(dataSize);
+        if (dumpBuffer == null || dumpBuffer.length != dumpSize) {
+            dumpBuffer = new byte[dumpSize];
+        }
+        dataChecksum = Crc32.calculate(readBuffer, 0, dataSize);
+        MifareDump.write(dumpBuffer, uid, System.currentTimeMillis(), layout, readBuffer, sectorStatus, sectorKeyTypes, sectorKeySlots);
+        String filename = TagFileManager.queueTagInfo(conn.getClass().getName(), dumpBuffer, dumpSize, TagFileManager.DUMP_FILE_EXT, callback);
+        callback.displayAlert("Mifare tag read", "Mifare data saved to file", AlertType.CONFIRMATION);
+        callback.logTagInfo("Mifare tag\nSectors: " + numSectors + ", Size: " + dataSize + ", Read: " + bytesRead
+                + (failedSectors > 0 ? "\nSectors not readable: " + failedSectors : "") + "\nSaved to: " + filename);
+        return bytesRead;
+    }
+    
+    /**
+     * Prepare the buffer and the sector status for reading the tag.
+     * Reuses the buffer if it has the right size.
+     * @param reuseComplete keep the data if it is a complete image of the
+     * same tag. Otherwise, only the data of an interrupted read is kept.
+     * @return true if reading starts from scratch, false if the sectors
+     * already read from the same tag are kept.
+     */
+    private boolean prepareReadBuffer(final MifareLayout layout, final boolean reuseComplete) {
+        final int numSectors = layout.getSectorCount();
+        if (readBuffer != null && readBuffer.length == layout.getSize() && sectorStatus.length == numSectors) {
+            if (uid != null && uid.equals(bufferUid) && (reuseComplete || !bufferComplete)) {
+                return false;
+            }
+            // Don't let data of the previous tag end up in the dump of this one
+            clear(readBuffer, 0, readBuffer.length);
+        } else {
+            readBuffer = new byte[layout.getSize()];
+            sectorStatus = new byte[numSectors];
+            sectorKeyTypes = new byte[numSectors];
+            sectorKeySlots = new byte[numSectors];
+        }
+        for (int i = 0; i < numSectors; i++) {
+            sectorStatus[i] = SECTOR_NOT_READ;
+            sectorKeyTypes[i] = MifareDump.KEY_TYPE_NONE;
+            sectorKeySlots[i] = (byte) MifareDump.KEY_SLOT_UNKNOWN;
+        }
+        bufferUid = uid;
+        bufferComplete = false;
+        return true;
+    }
+    
+    /**
+     * Read all sectors of the tag that haven't been read yet into the
+     * read buffer. Sectors that can't be read with the key are marked
+     * and skipped.
+     * @throws IOException if the connection to the tag was lost. The
+     * sectors read so far are kept.
+     */
+    private void readMissingSectors(final MFKey key, final MifareLayout layout) throws IOException {
+        final int numSectors = layout.getSectorCount();
+        for (int sector = 0; sector < numSectors; sector++) {
+            if (sectorStatus[sector] != SECTOR_NOT_READ) {
+                continue;
+            }
+            callback.tagProgress("Reading Mifare tag", sector, numSectors);
+            // If not readable with any key, continue with the next sector
+            final int offset = layout.getSectorOffset(sector);
+            if (accessSector(OP_READ, key, MifareAccessBits.KEYS_ANY, sector, readBuffer, offset, offset, layout.getSectorLength(sector))) {
+                sectorStatus[sector] = SECTOR_READ;
+                sectorKeyTypes[sector] = (byte) lastKeyType;
+                sectorKeySlots[sector] = (byte) lastKeySlot;
+            } else {
+                sectorStatus[sector] = SECTOR_AUTH_FAILED;
+                // Blocks read before authentication failed aren't kept either
+                clear(readBuffer, offset, layout.getSectorLength(sector));
+            }
+        }
+        callback.tagProgress("Reading Mifare tag", numSectors, numSectors);
+        bufferComplete = true;
     }
     
     /**
      * Cache the data to write to a tag. Call this first, then writeData().
-     * @param data byte array containing the raw tag data to write.
+     * @param data byte array containing the raw tag data to write, or
+     * the contents of a dump file (see MifareDump).
      */
     public void setDataToWrite(byte[] data) {
-        tagData = data;
+        setDataToWrite(data, data.length);
+    }
+    
+    /**
+     * Read a data file and cache its contents as the data to write to the
+     * tag of the current connection. Files that are larger than the tag
+     * are rejected. Call this first, then writeData().
+     * @param fileName data file in the data directory, containing raw tag
+     * data or a dump (see MifareDump).
+     * @return true if the file was read and is valid.
+     */
+    public boolean loadDataToWrite(final String fileName) {
+        if (conn == null) {
+            return false;
+        }
+        final int maxSize = MifareDump.getDumpSize(getLayout().getSize());
+        if (fileBuffer == null || fileBuffer.length < maxSize) {
+            fileBuffer = new byte[maxSize];
+        }
+        final int length = TagFileManager.readFile(fileName, fileBuffer, maxSize);
+        if (length < 0) {
+            callback.displayAlert("Unable to read data file", fileName + "\nFiles larger than the tag ("
+                    + maxSize + " bytes) can't be written.", AlertType.ERROR);
+            return false;
+        }
+        if (MifareDump.isDump(fileBuffer, length) && !MifareDump.isValid(fileBuffer, length)) {
+            callback.displayAlert("Invalid data file", fileName + " is damaged (checksum mismatch)", AlertType.ERROR);
+            return false;
+        }
+        setDataToWrite(fileBuffer, length);
+        return true;
+    }
+    
+    /**
+     * Copy the data to write from the buffer. Reuses the previous buffer
+     * of the data to write if the size matches.
+     * @param data buffer containing the raw tag data or a dump.
+     * @param length number of bytes of the buffer to use.
+     */
+    private void setDataToWrite(final byte[] data, final int length) {
+        tagDataStatus = null;
+        int dataOffset = 0;
+        int dataSize = length;
+        if (MifareDump.isDump(data, length)) {
+            final int numSectors = data[MifareDump.OFFSET_SECTOR_COUNT] & 0xFF;
+            tagDataStatus = new byte[numSectors];
+            for (int i = 0; i < numSectors; i++) {
+                tagDataStatus[i] = (byte) MifareDump.getSectorStatus(data, i);
+            }
+            dataOffset = MifareDump.HEADER_SIZE;
+            dataSize = length - MifareDump.HEADER_SIZE;
+        }
+        if (tagData == null || tagData.length != dataSize) {
+            tagData = new byte[dataSize];
+        }
+        System.arraycopy(data, dataOffset, tagData, 0, dataSize);
     }
     
     /**
      * Write cached data to the tag, using the specified key.
-     * Uses the default key KEY_BYTES_FF if no key is specified (= null).
-     * @param key Key A to use for the conneciton. KEY_BYTES_FF (= Mifare default)
-     * is used when no key is specified.
+     * If no key is specified (= null), the key dictionary is used when
+     * writing changed blocks, and KEY_BYTES_FF when writing all data.
+     * @param key Key A to use for the conneciton, null to use the key dictionary.
+     * @param changedOnly only write the blocks that differ from the current
+     * contents of the tag. The current contents are taken from the last
+     * read / write of the same tag, or read from the tag first.
+     * Requires a standard Mifare layout, otherwise all data is written.
+     * @param includeTrailers also write changed sector trailers (keys and
+     * access bits) when writing changed blocks only. When writing all data,
+     * sector trailers are never written, as the keys of the data read from
+     * a tag are not the real keys.
      * @return whether writing was successful.
      */
-    public boolean writeData(MFKey.KeyA key) {
+    public boolean writeData(MFKey.KeyA key, final boolean changedOnly, final boolean includeTrailers) {
         if (conn == null || tagData == null) {
             return false;
         }
-        if (key == null) {
-            key = new MFKey.KeyA(KEY_BYTES_FF);
-        }
+        dataChecksum = Crc32.calculate(tagData, 0, tagData.length);
+        final MifareLayout layout = getLayout();
+        final boolean addressable = layout.isStandardLayout() && tagData.length == layout.getSize();
+        // Sectors that weren't read and sector trailers must not be written as they are
+        final boolean skipSectors = hasUnreadSectors(layout) || layout.hasTrailers();
         try {
-            conn.write(key, tagData, 0);
-            callback.displayAlert("Mifare tag written", "Mifare data written to tag (" + tagData.length + " bytes)", AlertType.CONFIRMATION);
+            if (!addressable && skipSectors) {
+                callback.displayAlert("Unable to write", "The data contains unread sectors or sector trailers, "
+                        + "which can only be skipped on a tag with the same standard layout", AlertType.ERROR);
+                return false;
+            }
+            if (!addressable || (!changedOnly && !skipSectors)) {
+                // The cached image is no longer valid
+                bufferUid = null;
+                conn.write(key != null ? key : new MFKey.KeyA(KEY_BYTES_FF), tagData, 0);
+                callback.displayAlert("Mifare tag written", "Mifare data written to tag (" + tagData.length + " bytes)", AlertType.CONFIRMATION);
+                return true;
+            }
+            if (changedOnly) {
+                prepareReadBuffer(layout, true);
+                readMissingSectors(key, layout);
+            }
+            
+            final int numSectors = layout.getSectorCount();
+            int blocksWritten = 0;
+            int failedSectors = 0;
+            for (int sector = 0; sector < numSectors; sector++) {
+                callback.tagProgress("Writing Mifare tag", sector, numSectors);
+                if (tagDataStatus != null && (sector >= tagDataStatus.length || tagDataStatus[sector] != SECTOR_READ)) {
+                    // The dump doesn't contain the data of this sector
+                    continue;
+                }
+                final int written = writeSectorBlocks(key, layout, sector, changedOnly, changedOnly && includeTrailers);
+                if (written < 0) {
+                    failedSectors++;
+                } else {
+                    blocksWritten += written;
+                }
+            }
+            callback.tagProgress("Writing Mifare tag", numSectors, numSectors);
+            if (failedSectors > 0) {
+                callback.displayAlert("Authentication error", blocksWritten + " blocks written, " + failedSectors + " sectors not writable", AlertType.ERROR);
+                return false;
+            }
+            callback.displayAlert("Mifare tag written", blocksWritten + (changedOnly ? " changed" : "") + " blocks written to tag ("
+                    + (blocksWritten * MifareLayout.BLOCK_SIZE) + " bytes)", AlertType.CONFIRMATION);
             return true;
         } catch (MFStandardException ex) {
             callback.displayAlert("Authentication error", ex.toString(), AlertType.ERROR);
         } catch (IOException ex) {
             callback.displayAlert("Connection error", ex.toString(), AlertType.ERROR);
+        } finally {
+            keyStore.save();
+        }
+        return false;
+    }
+    
+    /**
+     * @return true if the data to write is a dump that doesn't contain
+     * the data of all sectors of the tag.
+     */
+    private boolean hasUnreadSectors(final MifareLayout layout) {
+        if (tagDataStatus == null) {
+            return false;
+        }
+        final int numSectors = layout.getSectorCount();
+        for (int sector = 0; sector < numSectors; sector++) {
+            if (sector >= tagDataStatus.length || tagDataStatus[sector] != SECTOR_READ) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // ---------------------------------------------------------------------------------------------------------
+    // Block ranges
+    // Only the requested blocks are transferred. If the sector trailers are
+    // accessible, the access conditions are used to skip blocks that can't
+    // be read / written and to only try the keys that are allowed.
+    
+    /**
+     * Read a range of blocks of a sector. Consecutive blocks with the same
+     * access conditions are read at once.
+     * @param sector index of the sector.
+     * @param firstBlock index of the first block within the sector.
+     * @param numBlocks number of blocks to read.
+     * @param dst buffer that receives the blocks, 16 bytes per block.
+     * Blocks that can't be read are left unchanged.
+     * @param dstOffset position of the first block in the buffer.
+     * @return number of blocks read, -1 if the connection was lost.
+     */
+    public int readBlocks(final int sector, final int firstBlock, final int numBlocks, byte[] dst, final int dstOffset) {
+        if (conn == null) {
+            return -1;
+        }
+        final MifareLayout layout = getLayout();
+        final int endBlock = Math.min(firstBlock + numBlocks, MifareLayout.getBlocksInSector(sector));
+        try {
+            final int conditions = getAccessConditions(layout, sector);
+            int blocksRead = 0;
+            int block = firstBlock;
+            while (block < endBlock) {
+                final int offset = layout.getBlockOffset(sector, block);
+                final int keys = getAllowedKeys(conditions, false, sector, block);
+                if (offset < 0 || keys == MifareAccessBits.KEYS_NONE) {
+                    block++;
+                    continue;
+                }
+                // Extend the range over the following blocks with the same permissions
+                int runLength = 1;
+                while (block + runLength < endBlock
+                        && layout.getBlockOffset(sector, block + runLength) == offset + runLength * MifareLayout.BLOCK_SIZE
+                        && getAllowedKeys(conditions, false, sector, block + runLength) == keys) {
+                    runLength++;
+                }
+                if (accessSector(OP_READ, null, keys, sector, dst, dstOffset + (block - firstBlock) * MifareLayout.BLOCK_SIZE, offset, runLength * MifareLayout.BLOCK_SIZE)) {
+                    blocksRead += runLength;
+                }
+                block += runLength;
+            }
+            return blocksRead;
+        } catch (IOException ex) {
+            callback.displayAlert("Connection error", ex.toString(), AlertType.ERROR);
+        } finally {
+            keyStore.save();
+        }
+        return -1;
+    }
+    
+    /**
+     * Read a range of complete sectors.
+     * @param firstSector index of the first sector.
+     * @param numSectors number of sectors to read.
+     * @param dst buffer that receives the sectors. Each sector occupies
+     * 16 bytes per block, including the sector trailer.
+     * @param dstOffset position of the first sector in the buffer.
+     * @return number of blocks read, -1 if the connection was lost.
+     */
+    public int readSectors(final int firstSector, final int numSectors, byte[] dst, int dstOffset) {
+        int blocksRead = 0;
+        for (int sector = firstSector; sector < firstSector + numSectors; sector++) {
+            final int numBlocks = MifareLayout.getBlocksInSector(sector);
+            final int read = readBlocks(sector, 0, numBlocks, dst, dstOffset);
+            if (read < 0) {
+                return -1;
+            }
+            blocksRead += read;
+            dstOffset += numBlocks * MifareLayout.BLOCK_SIZE;
+        }
+        return blocksRead;
+    }
+    
+    /**
+     * Write a range of blocks of a sector. The manufacturer block and blocks
+     * that the access conditions don't allow to write are skipped.
+     * @param sector index of the sector.
+     * @param firstBlock index of the first block within the sector.
+     * @param numBlocks number of blocks to write.
+     * @param src buffer containing the blocks, 16 bytes per block.
+     * @param srcOffset position of the first block in the buffer.
+     * @return number of blocks written, -1 if the connection was lost.
+     */
+    public int writeBlocks(final int sector, final int firstBlock, final int numBlocks, final byte[] src, final int srcOffset) {
+        if (conn == null) {
+            return -1;
+        }
+        final MifareLayout layout = getLayout();
+        final int endBlock = Math.min(firstBlock + numBlocks, MifareLayout.getBlocksInSector(sector));
+        try {
+            final int conditions = getAccessConditions(layout, sector);
+            int blocksWritten = 0;
+            for (int block = firstBlock; block < endBlock; block++) {
+                final int offset = layout.getBlockOffset(sector, block);
+                final int keys = getAllowedKeys(conditions, true, sector, block);
+                if (offset < 0 || keys == MifareAccessBits.KEYS_NONE || (sector == 0 && block == 0)) {
+                    continue;
+                }
+                System.arraycopy(src, srcOffset + (block - firstBlock) * MifareLayout.BLOCK_SIZE, blockBuffer, 0, MifareLayout.BLOCK_SIZE);
+                if (accessSector(OP_WRITE_BLOCK, null, keys, sector, blockBuffer, 0, offset, MifareLayout.BLOCK_SIZE)) {
+                    updateCachedBlock(offset);
+                    blocksWritten++;
+                    if (MifareAccessBits.isTrailer(sector, block)) {
+                        // Access conditions might have changed
+                        sectorAccess[sector] = ACCESS_UNKNOWN;
+                    }
+                }
+            }
+            return blocksWritten;
+        } catch (IOException ex) {
+            callback.displayAlert("Connection error", ex.toString(), AlertType.ERROR);
+        } finally {
+            keyStore.save();
+        }
+        return -1;
+    }
+    
+    /**
+     * Get the access conditions of a sector. The sector trailer is read
+     * if it is accessible and wasn't read before for this tag.
+     * @return access conditions as returned by MifareAccessBits.decode(),
+     * or a negative value if they are not known.
+     * @throws IOException if the connection to the tag was lost.
+     */
+    private int getAccessConditions(final MifareLayout layout, final int sector) throws IOException {
+        if (uid == null || !uid.equals(accessUid)) {
+            for (int i = 0; i < sectorAccess.length; i++) {
+                sectorAccess[i] = ACCESS_UNKNOWN;
+            }
+            accessUid = uid;
+        }
+        if (sector < 0 || sector >= sectorAccess.length) {
+            return ACCESS_UNAVAILABLE;
+        }
+        if (sectorAccess[sector] != ACCESS_UNKNOWN) {
+            return sectorAccess[sector];
+        }
+        sectorAccess[sector] = ACCESS_UNAVAILABLE;
+        final int trailerBlock = MifareLayout.getBlocksInSector(sector) - 1;
+        final int offset = layout.getBlockOffset(sector, trailerBlock);
+        if (offset < 0) {
+            // Trailers aren't accessible through this connection
+            return ACCESS_UNAVAILABLE;
+        }
+        if (uid != null && uid.equals(bufferUid) && sectorStatus[sector] == SECTOR_READ) {
+            // Use the cached image of the tag
+            System.arraycopy(readBuffer, offset, trailerBuffer, 0, MifareLayout.BLOCK_SIZE);
+        } else if (!accessSector(OP_READ, null, MifareAccessBits.KEYS_ANY, sector, trailerBuffer, 0, offset, MifareLayout.BLOCK_SIZE)) {
+            return ACCESS_UNAVAILABLE;
+        }
+        if (MifareAccessBits.isValid(trailerBuffer, 0)) {
+            sectorAccess[sector] = MifareAccessBits.decode(trailerBuffer, 0);
+        }
+        return sectorAccess[sector];
+    }
+    
+    /**
+     * @param conditions access conditions of the sector, negative if unknown.
+     * @param write true to get the keys for writing, false for reading.
+     * @return MifareAccessBits.KEY_* flags of the keys allowed for the block.
+     */
+    private static int getAllowedKeys(final int conditions, final boolean write, final int sector, final int block) {
+        if (conditions < 0) {
+            return MifareAccessBits.KEYS_ANY;
+        }
+        return write ? MifareAccessBits.getWriteKeys(conditions, sector, block)
+                : MifareAccessBits.getReadKeys(conditions, sector, block);
+    }
+    
+    // ---------------------------------------------------------------------------------------------------------
+    // Value blocks
+    // Each operation reads and writes a single block, instead of
+    // transferring the whole tag.
+    
+    /**
+     * Read the value of a value block.
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @return the value, or null if the block couldn't be read or isn't
+     * a valid value block.
+     */
+    public Integer readValue(final int sector, final int block) {
+        if (!readValueBlock(sector, block)) {
+            return null;
+        }
+        return new Integer(MifareValueBlock.getValue(blockBuffer, 0));
+    }
+    
+    /**
+     * Increment the value of a value block.
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @param amount non-negative amount to add.
+     * @return whether the new value was written.
+     */
+    public boolean incrementValue(final int sector, final int block, final int amount) {
+        return amount >= 0 && changeValue(sector, block, block, amount);
+    }
+    
+    /**
+     * Decrement the value of a value block.
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @param amount non-negative amount to subtract.
+     * @return whether the new value was written.
+     */
+    public boolean decrementValue(final int sector, final int block, final int amount) {
+        return amount >= 0 && changeValue(sector, block, block, -(long) amount);
+    }
+    
+    /**
+     * Copy a value block to another block of the same sector, like the
+     * restore and transfer commands of Mifare tags. Can be used to
+     * maintain a backup copy of a value.
+     * @param sector index of the sector.
+     * @param sourceBlock index of the block to copy.
+     * @param targetBlock index of the block that receives the value.
+     * @return whether the value was written.
+     */
+    public boolean transferValue(final int sector, final int sourceBlock, final int targetBlock) {
+        return changeValue(sector, sourceBlock, targetBlock, 0);
+    }
+    
+    /**
+     * Read a value block, add a delta to the value and write it to the
+     * target block. The address byte of the source block is kept.
+     * @return whether the new value was written.
+     */
+    private boolean changeValue(final int sector, final int sourceBlock, final int targetBlock, final long delta) {
+        if (!readValueBlock(sector, sourceBlock)) {
+            return false;
+        }
+        final long newValue = MifareValueBlock.getValue(blockBuffer, 0) + delta;
+        if (newValue < Integer.MIN_VALUE || newValue > Integer.MAX_VALUE) {
+            callback.displayAlert("Mifare value", "Value out of range", AlertType.ERROR);
+            return false;
+        }
+        final int offset = getValueBlockOffset(sector, targetBlock);
+        if (offset < 0) {
+            return false;
+        }
+        MifareValueBlock.encode(blockBuffer, 0, (int) newValue, MifareValueBlock.getAddress(blockBuffer, 0));
+        try {
+            final int keys = getAllowedKeys(getAccessConditions(getLayout(), sector), true, sector, targetBlock);
+            if (keys == MifareAccessBits.KEYS_NONE) {
+                callback.displayAlert("Mifare value", "Block " + targetBlock + " of sector " + sector + " is read-only", AlertType.ERROR);
+                return false;
+            }
+            if (!accessSector(OP_WRITE_BLOCK, null, keys, sector, blockBuffer, 0, offset, MifareLayout.BLOCK_SIZE)) {
+                callback.displayAlert("Authentication error", "Unable to write to sector " + sector, AlertType.ERROR);
+                return false;
+            }
+            updateCachedBlock(offset);
+            return true;
+        } catch (IOException ex) {
+            callback.displayAlert("Connection error", ex.toString(), AlertType.ERROR);
+        } finally {
+            keyStore.save();
         }
         return false;
     }
     
+    /**
+     * Read a single block into the block buffer and check that it is a
+     * valid value block.
+     * @return true if successful.
+     */
+    private boolean readValueBlock(final int sector, final int block) {
+        final int offset = getValueBlockOffset(sector, block);
+        if (offset < 0) {
+            return false;
+        }
+        try {
+            final int keys = getAllowedKeys(getAccessConditions(getLayout(), sector), false, sector, block);
+            if (!accessSector(OP_READ, null, keys, sector, blockBuffer, 0, offset, MifareLayout.BLOCK_SIZE)) {
+                callback.displayAlert("Authentication error", "Unable to read sector " + sector, AlertType.ERROR);
+                return false;
+            }
+        } catch (IOException ex) {
+            callback.displayAlert("Connection error", ex.toString(), AlertType.ERROR);
+            return false;
+        } finally {
+            keyStore.save();
+        }
+        if (!MifareValueBlock.isValid(blockBuffer, 0)) {
+            callback.displayAlert("Mifare value", "Block " + block + " of sector " + sector + " is not a value block", AlertType.ERROR);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * @return offset of a data block that can hold a value in the linear
+     * address space, or -1 if there is none (no connection, sector trailer,
+     * manufacturer block or unknown layout).
+     */
+    private int getValueBlockOffset(final int sector, final int block) {
+        if (conn == null) {
+            return -1;
+        }
+        final MifareLayout layout = getLayout();
+        if ((sector == 0 && block == 0) || block == MifareLayout.getBlocksInSector(sector) - 1) {
+            callback.displayAlert("Mifare value", "Block " + block + " of sector " + sector + " can't hold a value", AlertType.ERROR);
+            return -1;
+        }
+        final int offset = layout.getBlockOffset(sector, block);
+        if (offset < 0) {
+            callback.displayAlert("Mifare value", "Block " + block + " of sector " + sector + " is not accessible", AlertType.ERROR);
+        }
+        return offset;
+    }
+    
+    /**
+     * Copy the block buffer to the cached image of the tag, if there is one.
+     */
+    private void updateCachedBlock(final int offset) {
+        if (uid != null && uid.equals(bufferUid) && readBuffer != null && offset + MifareLayout.BLOCK_SIZE <= readBuffer.length) {
+            System.arraycopy(blockBuffer, 0, readBuffer, offset, MifareLayout.BLOCK_SIZE);
+        }
+    }
+    
+    /**
+     * Write the blocks of a sector from the data to write. The
+     * manufacturer block is never written.
+     * Successfully written blocks are copied to the cached image.
+     * @param changedOnly only write the blocks that differ between the
+     * data to write and the cached image.
+     * @param includeTrailers also write the sector trailer.
+     * @return number of blocks written, -1 if the sector couldn't be
+     * written with the key.
+     * @throws IOException if the connection to the tag was lost.
+     */
+    private int writeSectorBlocks(final MFKey key, final MifareLayout layout, final int sector,
+            final boolean changedOnly, final boolean includeTrailers) throws IOException {
+        final int conditions = getAccessConditions(layout, sector);
+        int blocksWritten = 0;
+        final int numBlocks = MifareLayout.getBlocksInSector(sector);
+        for (int block = 0; block < numBlocks; block++) {
+            final int offset = layout.getBlockOffset(sector, block);
+            if (offset < 0 || (sector == 0 && block == 0) || (block == numBlocks - 1 && !includeTrailers)) {
+                continue;
+            }
+            if (changedOnly && sectorStatus[sector] == SECTOR_READ && isBlockUnchanged(offset)) {
+                continue;
+            }
+            final int keys = getAllowedKeys(conditions, true, sector, block);
+            if (keys == MifareAccessBits.KEYS_NONE) {
+                // Read-only according to the access conditions
+                return -1;
+            }
+            System.arraycopy(tagData, offset, blockBuffer, 0, MifareLayout.BLOCK_SIZE);
+            try {
+                if (!accessSector(OP_WRITE_BLOCK, key, keys, sector, blockBuffer, 0, offset, MifareLayout.BLOCK_SIZE)) {
+                    return -1;
+                }
+            } catch (IOException ex) {
+                if (uid != null && uid.equals(bufferUid)) {
+                    // State of the block is unknown - read the sector again next time
+                    sectorStatus[sector] = SECTOR_NOT_READ;
+                    bufferComplete = false;
+                }
+                throw ex;
+            }
+            updateCachedBlock(offset);
+            blocksWritten++;
+            if (MifareAccessBits.isTrailer(sector, block)) {
+                sectorAccess[sector] = ACCESS_UNKNOWN;
+            }
+        }
+        return blocksWritten;
+    }
+    
+    /**
+     * Read or write a range within a sector, trying the keys until one
+     * works. If no key is specified, the key that last worked for the
+     * sector of this tag is tried first, followed by the key dictionary.
+     * A key of the dictionary that works is remembered for the sector.
+     * The key that worked is stored in lastKeyType and lastKeySlot.
+     * @param operation OP_READ to read the range into the buffer,
+     * OP_WRITE_BLOCK to write the block buffer.
+     * @param key key to use, null to use the cached key and the key dictionary.
+     * @param allowedKeys MifareAccessBits.KEY_* flags of the key types to try.
+     * @param sector index of the sector that contains the range.
+     * @param buffer buffer that receives the data when reading. Has to be
+     * the block buffer when writing.
+     * @param bufferOffset position in the buffer.
+     * @param offset start of the range in the linear address space.
+     * @param length number of bytes to read (ignored for writing).
+     * @return true if successful, false if no key worked.
+     * @throws IOException if the connection to the tag was lost.
+     */
+    private boolean accessSector(final int operation, final MFKey key, final int allowedKeys, final int sector,
+            byte[] buffer, final int bufferOffset, final int offset, final int length) throws IOException {
+        lastKeySlot = MifareDump.KEY_SLOT_UNKNOWN;
+        if (key != null) {
+            lastKeyType = getKeyType(key);
+            return tryAccess(operation, key, buffer, bufferOffset, offset, length);
+        }
+        final int cachedSlot = keyStore.getCachedSlot(uid, sector);
+        final MFKey cachedKey = (cachedSlot >= 0) ? keyStore.getKey(cachedSlot) : keyStore.getCachedKey(uid, sector);
+        if (cachedKey != null && (getKeyType(cachedKey) & allowedKeys) != 0
+                && tryAccess(operation, cachedKey, buffer, bufferOffset, offset, length)) {
+            lastKeyType = getKeyType(cachedKey);
+            if (cachedSlot >= 0) {
+                lastKeySlot = cachedSlot;
+            }
+            return true;
+        }
+        final int numKeys = keyStore.getKeyCount();
+        for (int slot = 0; slot < numKeys; slot++) {
+            final int keyType = keyStore.isKeyB(slot) ? MifareAccessBits.KEY_B : MifareAccessBits.KEY_A;
+            // Skip the cached key, it has already been tried
+            if (slot != cachedSlot && (keyType & allowedKeys) != 0
+                    && tryAccess(operation, keyStore.getKey(slot), buffer, bufferOffset, offset, length)) {
+                keyStore.setCachedKey(uid, sector, slot);
+                lastKeyType = keyType;
+                lastKeySlot = slot;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Read or write a range using a single key.
+     * @return true if successful, false if authentication with the key failed.
+     * @throws IOException if the connection to the tag was lost.
+     */
+    private boolean tryAccess(final int operation, final MFKey key, byte[] buffer, final int bufferOffset, final int offset, final int length) throws IOException {
+        try {
+            if (operation == OP_READ) {
+                conn.read(key, buffer, bufferOffset, offset, length);
+            } else {
+                conn.write(key, buffer, offset);
+            }
+            return true;
+        } catch (MFStandardException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * @return MifareAccessBits.KEY_A or KEY_B, depending on the key type.
+     * The values are the same as MifareDump.KEY_TYPE_A and KEY_TYPE_B.
+     */
+    private static int getKeyType(final MFKey key) {
+        return (key instanceof MFKey.KeyB) ? MifareAccessBits.KEY_B : MifareAccessBits.KEY_A;
+    }
+    
+    /**
+     * Set a range of the buffer to 0.
+     */
+    private static void clear(byte[] buffer, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            buffer[i] = 0;
+        }
+    }
+    
+    /**
+     * @return layout of the tag of the current connection.
+     */
+    private MifareLayout getLayout() {
+        return new MifareLayout(conn.getSectorCount(), conn.getBlockCount(), conn.size());
+    }
+    
+    /**
+     * @return true if the block at the offset has the same contents in the
+     * data to write and in the cached image.
+     */
+    private boolean isBlockUnchanged(final int offset) {
+        for (int i = offset; i < offset + MifareLayout.BLOCK_SIZE; i++) {
+            if (tagData[i] != readBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
 }
@@ -0,0 +1,86 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Encodes and decodes Mifare Classic value blocks.
+ * A value block stores a signed 32 bit value (little endian) three times:
+ * bytes 0-3 as is, bytes 4-7 inverted and bytes 8-11 as is again.
+ * Bytes 12-15 contain an address byte in the same way: as is, inverted,
+ * as is, inverted. A block is only a valid value block if all copies match.
+ *
+ * @author Andreas Jakl
+ */
+public class MifareValueBlock {
+    /**
+     * Check if the block has the format of a value block.
+     * @param data buffer containing the block.
+     * @param offset start of the block in the buffer.
+     * @return true if all copies of the value and the address match.
+     */
+    public static boolean isValid(final byte[] data, final int offset) {
+        for (int i = 0; i < 4; i++) {
+            final byte b = data[offset + i];
+            if (data[offset + 4 + i] != (byte) ~b || data[offset + 8 + i] != b) {
+                return false;
+            }
+        }
+        final byte address = data[offset + 12];
+        return data[offset + 13] == (byte) ~address
+                && data[offset + 14] == address
+                && data[offset + 15] == (byte) ~address;
+    }
+
+    /**
+     * @param data buffer containing a valid value block.
+     * @param offset start of the block in the buffer.
+     * @return the value stored in the block.
+     */
+    public static int getValue(final byte[] data, final int offset) {
+        return (data[offset] & 0xFF)
+                | ((data[offset + 1] & 0xFF) << 8)
+                | ((data[offset + 2] & 0xFF) << 16)
+                | ((data[offset + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * @param data buffer containing a valid value block.
+     * @param offset start of the block in the buffer.
+     * @return the address byte of the block, used by backup management.
+     */
+    public static int getAddress(final byte[] data, final int offset) {
+        return data[offset + 12] & 0xFF;
+    }
+
+    /**
+     * Write a value block to the buffer.
+     * @param data buffer that receives the 16 bytes of the block.
+     * @param offset start of the block in the buffer.
+     * @param value value to store.
+     * @param address address byte to store, usually the block number.
+     */
+    public static void encode(byte[] data, final int offset, final int value, final int address) {
+        for (int i = 0; i < 4; i++) {
+            final byte b = (byte) (value >>> (i * 8));
+            data[offset + i] = b;
+            data[offset + 4 + i] = (byte) ~b;
+            data[offset + 8 + i] = b;
+        }
+        data[offset + 12] = (byte) address;
+        data[offset + 13] = (byte) ~address;
+        data[offset + 14] = (byte) address;
+        data[offset + 15] = (byte) ~address;
+    }
+}
@@ -0,0 +1,506 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import javax.microedition.contactless.ndef.NDEFMessage;
+
+/**
+ * Encodes NDEF messages in their wire format directly into a reusable buffer.
+ * The length of each record is computed before its header is written, so
+ * the short record flag can be set right away and no temporary arrays are
+ * needed while assembling a message. The message begin / end flags are
+ * maintained automatically while records are appended.
+ *
+ * Strings are encoded to UTF-8 (or ASCII for record types) straight into
+ * the buffer. Once the buffer has grown to the size of the largest message,
+ * encoding doesn't allocate any memory anymore.
+ *
+ * @author Andreas Jakl
+ */
+public class NdefEncoder {
+    /** Type Name Format: empty record. */
+    public static final int TNF_EMPTY = 0x00;
+    /** Type Name Format: NFC Forum well-known type (e.g., U, T, Sp). */
+    public static final int TNF_WELL_KNOWN = 0x01;
+    /** Type Name Format: MIME media type according to RFC 2046. */
+    public static final int TNF_MIME = 0x02;
+    /** Type Name Format: absolute URI according to RFC 3986. */
+    public static final int TNF_ABSOLUTE_URI = 0x03;
+    /** Type Name Format: NFC Forum external type. */
+    public static final int TNF_EXTERNAL = 0x04;
+    /** Type Name Format: unknown type. */
+    public static final int TNF_UNKNOWN = 0x05;
+    /** Type Name Format: unchanged (chunked records). */
+    public static final int TNF_UNCHANGED = 0x06;
+
+    /** Record header flag: message begin. */
+    public static final int FLAG_MB = 0x80;
+    /** Record header flag: message end. */
+    public static final int FLAG_ME = 0x40;
+    /** Record header flag: chunked record. */
+    public static final int FLAG_CF = 0x20;
+    /** Record header flag: short record (1 byte payload length). */
+    public static final int FLAG_SR = 0x10;
+    /** Record header flag: ID length field is present. */
+    public static final int FLAG_IL = 0x08;
+    /** Mask to get the Type Name Format out of the record header. */
+    public static final int TNF_MASK = 0x07;
+
+    /** Prefix of external type names as used by the JSR 257 record types. */
+    private static final String externalTypePrefix = "urn:nfc:ext:";
+
+    /** Buffer that contains the encoded message. Grows if required. */
+    private byte[] buffer;
+    /** Number of bytes of the buffer that are used by the current message. */
+    private int length = 0;
+    /**
+     * Position of the header of the last record in the current message,
+     * or -1 if no record has been written yet. Used to set the message
+     * begin and end flags.
+     */
+    private int lastHeader = -1;
+    /** Last record header of the outer message while a Smart Poster is open. */
+    private int outerLastHeader = -1;
+    /** Position where the payload of the open Smart Poster record has to end. */
+    private int nestedEnd = -1;
+
+    /**
+     * Create a new encoder with a default buffer size, which is enough for
+     * most tags.
+     */
+    public NdefEncoder() {
+        this(256);
+    }
+
+    /**
+     * Create a new encoder.
+     * @param initialCapacity initial size of the buffer in bytes.
+     */
+    public NdefEncoder(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Start a new message. The buffer is kept and reused.
+     */
+    public void reset() {
+        length = 0;
+        lastHeader = -1;
+        outerLastHeader = -1;
+        nestedEnd = -1;
+    }
+
+    /**
+     * @return the buffer containing the encoded message, starting at
+     * index 0. Only the first getLength() bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return number of bytes of the encoded message.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Create the NDEF message object required by the JSR 257 API to
+     * write the encoded message to a tag.
+     * @return NDEF message parsed from the encoded bytes.
+     */
+    public NDEFMessage toMessage() {
+        if (length == 0) {
+            return new NDEFMessage();
+        }
+        return new NDEFMessage(buffer, 0);
+    }
+
+    /**
+     * @return a copy of the encoded message with the exact length.
+     */
+    public byte[] toByteArray() {
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, 0, data, 0, length);
+        return data;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Length calculation
+
+    /**
+     * Calculate the size of an encoded record without ID field.
+     * @param typeLength number of bytes of the record type.
+     * @param payloadLength number of bytes of the payload.
+     * @return number of bytes the record will occupy in the message.
+     */
+    public static int recordLength(final int typeLength, final int payloadLength) {
+        return 2 + (payloadLength < 256 ? 1 : 4) + typeLength + payloadLength;
+    }
+
+    /**
+     * @param uri URI to store in the record.
+     * @return size of an encoded URI record, after applying the
+     * URI abbreviation.
+     */
+    public static int uriRecordLength(final String uri) {
+        final int prefix = UriAbbreviations.longestMatch(uri);
+        return recordLength(1, 1 + utf8Length(uri, UriAbbreviations.get(prefix).length()));
+    }
+
+    /**
+     * @param prefix start of the URI, used to find the abbreviation.
+     * @param suffixLength number of ASCII characters that follow the prefix.
+     * @return size of an encoded URI record that is written using
+     * beginUri() and writeAscii().
+     */
+    public static int uriRecordLength(final String prefix, final int suffixLength) {
+        final int code = UriAbbreviations.longestMatch(prefix);
+        return recordLength(1, 1 + utf8Length(prefix, UriAbbreviations.get(code).length()) + suffixLength);
+    }
+
+    /**
+     * @param text text to store in the record.
+     * @param lang language code of the text.
+     * @return size of an encoded text record.
+     */
+    public static int textRecordLength(final String text, final String lang) {
+        return recordLength(1, 1 + lang.length() + utf8Length(text, 0));
+    }
+
+    /**
+     * @return size of an encoded Smart Poster action record.
+     */
+    public static int actionRecordLength() {
+        return recordLength(3, 1);
+    }
+
+    /**
+     * @param mimeType MIME type of the record.
+     * @param dataLength number of bytes of the payload.
+     * @return size of an encoded MIME record.
+     */
+    public static int mimeRecordLength(final String mimeType, final int dataLength) {
+        return recordLength(mimeType.length(), dataLength);
+    }
+
+    /**
+     * @param type external type name, with or without the "urn:nfc:ext:" prefix.
+     * @param payloadLength number of bytes of the payload.
+     * @return size of an encoded external type record.
+     */
+    public static int externalRecordLength(final String type, final int payloadLength) {
+        return recordLength(type.length() - externalTypeStart(type), payloadLength);
+    }
+
+    /**
+     * @param contentLength size of all records contained in the Smart Poster.
+     * @return size of the encoded Smart Poster record.
+     */
+    public static int smartPosterRecordLength(final int contentLength) {
+        return recordLength(2, contentLength);
+    }
+
+    /**
+     * Calculate how many bytes the string needs when encoded as UTF-8.
+     * @param s string to measure.
+     * @param from index of the first character to take into account.
+     * @return number of bytes of the UTF-8 representation.
+     */
+    public static int utf8Length(final String s, final int from) {
+        final int strLen = s.length();
+        int len = 0;
+        for (int i = from; i < strLen; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (isSurrogatePair(s, i)) {
+                len += 4;
+                i++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Records
+
+    /**
+     * Append a URI record. Any possible abbreviations of the URI are done
+     * automatically,
+     * always using the longest matching one.
+     * @param uri full URI to store.
+     */
+    public void appendUri(final String uri) {
+        final int prefix = UriAbbreviations.longestMatch(uri);
+        final int from = UriAbbreviations.get(prefix).length();
+        beginRecord(TNF_WELL_KNOWN, 1, 1 + utf8Length(uri, from));
+        buffer[length++] = 'U';
+        buffer[length++] = (byte) prefix;
+        writeUtf8(uri, from);
+    }
+
+    /**
+     * Start a URI record whose end is written character by character,
+     * e.g., numbers that are formatted directly into the buffer.
+     * The caller has to write exactly suffixLength characters using
+     * writeAscii(char) afterwards.
+     * @param prefix start of the URI, abbreviated if possible.
+     * Has to contain the whole part that can be abbreviated.
+     * @param suffixLength number of ASCII characters that follow the prefix.
+     */
+    public void beginUri(final String prefix, final int suffixLength) {
+        final int code = UriAbbreviations.longestMatch(prefix);
+        final int from = UriAbbreviations.get(code).length();
+        beginRecord(TNF_WELL_KNOWN, 1, 1 + utf8Length(prefix, from) + suffixLength);
+        buffer[length++] = 'U';
+        buffer[length++] = (byte) code;
+        writeUtf8(prefix, from);
+    }
+
+    /**
+     * Write a single character of the payload of the current record.
+     * Space for the character has to be included in the payload length
+     * passed when the record was started (see beginUri()).
+     * @param c ASCII character.
+     */
+    public void writeAscii(final char c) {
+        buffer[length++] = (byte) c;
+    }
+
+    /**
+     * Append a text record, always using UTF-8 encoding.
+     * @param text text to store.
+     * @param lang language code (ASCII) of the text, e.g., "en".
+     */
+    public void appendText(final String text, final String lang) {
+        beginRecord(TNF_WELL_KNOWN, 1, 1 + lang.length() + utf8Length(text, 0));
+        buffer[length++] = 'T';
+        // Bit at 0x80 of the status byte would need to be set to 1 for UTF-16 text.
+        // We always use UTF-8 here in this example.
+        buffer[length++] = (byte) (lang.length() & 0x3f);
+        writeAscii(lang, 0);
+        writeUtf8(text, 0);
+    }
+
+    /**
+     * Append the action record of a Smart Poster.
+     * @param action 0 = do the action, 1 = save for later, 2 = open for editing.
+     */
+    public void appendAction(final byte action) {
+        beginRecord(TNF_WELL_KNOWN, 3, 1);
+        buffer[length++] = 'a';
+        buffer[length++] = 'c';
+        buffer[length++] = 't';
+        buffer[length++] = action;
+    }
+
+    /**
+     * Append a MIME record with binary content.
+     * @param mimeType MIME type, e.g., "image/png".
+     * @param data payload of the record, can be null.
+     */
+    public void appendMime(final String mimeType, final byte[] data) {
+        final int dataLength = (data == null) ? 0 : data.length;
+        beginRecord(TNF_MIME, mimeType.length(), dataLength);
+        writeAscii(mimeType, 0);
+        writeBytes(data, 0, dataLength);
+    }
+
+    /**
+     * Append a MIME record with textual content, encoded as UTF-8.
+     * @param mimeType MIME type, e.g., "text/x-vCalendar".
+     * @param text payload of the record.
+     */
+    public void appendMimeText(final String mimeType, final String text) {
+        beginRecord(TNF_MIME, mimeType.length(), utf8Length(text, 0));
+        writeAscii(mimeType, 0);
+        writeUtf8(text, 0);
+    }
+
+    /**
+     * Append an NFC Forum external type record.
+     * @param type type name, with or without the "urn:nfc:ext:" prefix
+     * (e.g., "urn:nfc:ext:nokia.com:custom").
+     * @param payload payload of the record, can be null.
+     */
+    public void appendExternal(final String type, final byte[] payload) {
+        final int typeStart = externalTypeStart(type);
+        final int payloadLength = (payload == null) ? 0 : payload.length;
+        beginRecord(TNF_EXTERNAL, type.length() - typeStart, payloadLength);
+        writeAscii(type, typeStart);
+        writeBytes(payload, 0, payloadLength);
+    }
+
+    /**
+     * Append an empty record, e.g., to delete the contents of a tag.
+     */
+    public void appendEmpty() {
+        beginRecord(TNF_EMPTY, 0, 0);
+    }
+
+    /**
+     * Start a Smart Poster record. All records appended afterwards are
+     * part of the Smart Poster, until endSmartPoster() is called.
+     * @param contentLength total size of all records that will be appended
+     * to the Smart Poster, as calculated using the *RecordLength() methods.
+     */
+    public void beginSmartPoster(final int contentLength) {
+        if (nestedEnd >= 0) {
+            throw new IllegalStateException("Smart Poster already open");
+        }
+        beginRecord(TNF_WELL_KNOWN, 2, contentLength);
+        buffer[length++] = 'S';
+        buffer[length++] = 'p';
+        // Records of the Smart Poster form their own message
+        outerLastHeader = lastHeader;
+        lastHeader = -1;
+        nestedEnd = length + contentLength;
+    }
+
+    /**
+     * Close the Smart Poster record started with beginSmartPoster().
+     */
+    public void endSmartPoster() {
+        if (nestedEnd != length) {
+            throw new IllegalStateException("Smart Poster content length mismatch");
+        }
+        lastHeader = outerLastHeader;
+        outerLastHeader = -1;
+        nestedEnd = -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Low-level encoding
+
+    /**
+     * Write the header of a new record, including the type length and
+     * payload length fields. The caller has to write the type and
+     * the payload afterwards.
+     * @param tnf type name format of the record.
+     * @param typeLength number of bytes of the type.
+     * @param payloadLength number of bytes of the payload.
+     */
+    private void beginRecord(final int tnf, final int typeLength, final int payloadLength) {
+        ensureCapacity(length + recordLength(typeLength, payloadLength));
+        int header = tnf | FLAG_ME;
+        if (lastHeader < 0) {
+            // First record of the (inner) message
+            header |= FLAG_MB;
+        } else {
+            // Previous record is no longer the last one
+            buffer[lastHeader] &= ~FLAG_ME;
+        }
+        if (payloadLength < 256) {
+            header |= FLAG_SR;
+        }
+        lastHeader = length;
+        buffer[length++] = (byte) header;
+        buffer[length++] = (byte) typeLength;
+        if (payloadLength < 256) {
+            buffer[length++] = (byte) payloadLength;
+        } else {
+            buffer[length++] = (byte) (payloadLength >>> 24);
+            buffer[length++] = (byte) (payloadLength >>> 16);
+            buffer[length++] = (byte) (payloadLength >>> 8);
+            buffer[length++] = (byte) payloadLength;
+        }
+    }
+
+    /**
+     * Write the characters of a string as single bytes. Only to be used
+     * for ASCII content like record types and language codes.
+     */
+    private void writeAscii(final String s, final int from) {
+        final int strLen = s.length();
+        for (int i = from; i < strLen; i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Write the string encoded as UTF-8.
+     */
+    private void writeUtf8(final String s, final int from) {
+        final int strLen = s.length();
+        for (int i = from; i < strLen; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xC0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (isSurrogatePair(s, i)) {
+                final int cp = 0x10000 + ((c - 0xD800) << 10) + (s.charAt(++i) - 0xDC00);
+                buffer[length++] = (byte) (0xF0 | (cp >> 18));
+                buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                buffer[length++] = (byte) (0xE0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void writeBytes(final byte[] src, final int offset, final int len) {
+        if (len > 0) {
+            System.arraycopy(src, offset, buffer, length, len);
+            length += len;
+        }
+    }
+
+    /**
+     * Grow the buffer if it can't hold the specified number of bytes.
+     */
+    private void ensureCapacity(final int required) {
+        if (required > buffer.length) {
+            int newSize = buffer.length * 2;
+            if (newSize < required) {
+                newSize = required;
+            }
+            byte[] newBuffer = new byte[newSize];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+    }
+
+    /**
+     * Check if the character at the index is a high surrogate that is
+     * followed by a low surrogate, forming a character outside of the BMP.
+     */
+    private static boolean isSurrogatePair(final String s, final int i) {
+        final char c = s.charAt(i);
+        if (c >= 0xD800 && c <= 0xDBFF && i + 1 < s.length()) {
+            final char next = s.charAt(i + 1);
+            return next >= 0xDC00 && next <= 0xDFFF;
+        }
+        return false;
+    }
+
+    /**
+     * @return index where the actual external type name starts, skipping
+     * the "urn:nfc:ext:" prefix if present.
+     */
+    private static int externalTypeStart(final String type) {
+        return type.startsWith(externalTypePrefix) ? externalTypePrefix.length() : 0;
+    }
+}
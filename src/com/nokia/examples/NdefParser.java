@@ -0,0 +1,458 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * Walks over the raw bytes of an NDEF message and decodes its records.
+ * The parser works like a cursor: call reset() with the message bytes,
+ * then next() for each record. The current record is only described by
+ * offsets into the original array - payloads are never copied. Decoded
+ * contents are appended to a StringBuffer supplied by the caller, which
+ * can be reused for every tag.
+ *
+ * Supported are URI, Text, Smart Poster (including nested records and
+ * the action record), MIME and external type records. All other records
+ * are described by their type name format and type.
+ *
+ * @author Andreas Jakl
+ */
+public class NdefParser {
+    /** Record type: not specifically handled by this parser. */
+    public static final int TYPE_OTHER = 0;
+    /** Record type: empty record. */
+    public static final int TYPE_EMPTY = 1;
+    /** Record type: well-known URI record (U). */
+    public static final int TYPE_URI = 2;
+    /** Record type: well-known text record (T). */
+    public static final int TYPE_TEXT = 3;
+    /** Record type: well-known Smart Poster record (Sp). */
+    public static final int TYPE_SMART_POSTER = 4;
+    /** Record type: action record within a Smart Poster (act). */
+    public static final int TYPE_ACTION = 5;
+    /** Record type: MIME media record. */
+    public static final int TYPE_MIME = 6;
+    /** Record type: absolute URI record. */
+    public static final int TYPE_ABSOLUTE_URI = 7;
+    /** Record type: NFC Forum external type record. */
+    public static final int TYPE_EXTERNAL = 8;
+
+    /** Human readable names of the record types, indexed by TYPE_*. */
+    private static final String typeTitles[] = {
+        "Record",
+        "Empty",
+        "Url",
+        "Text",
+        "Smart Poster",
+        "Action",
+        "MIME",
+        "Absolute URI",
+        "External"
+    };
+    /** Names of the Smart Poster actions, indexed by the action byte. */
+    private static final String actionNames[] = {
+        "Do the action",
+        "Save for later",
+        "Open for editing"
+    };
+    /** Hex digits for printing binary payloads. */
+    private static final char hexDigits[] = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+    /** Maximum number of payload bytes printed as hex for binary records. */
+    private static final int maxHexBytes = 32;
+
+    /** Raw message data. */
+    private byte[] data;
+    /** Position of the next record header. */
+    private int pos;
+    /** End of the message data (exclusive). */
+    private int end;
+    /** True if the data ended unexpectedly or contained invalid lengths. */
+    private boolean malformed;
+    /** True after the record with the message end flag was parsed. */
+    private boolean messageEnd;
+    /** Index of the current record within the message, starting at 0. */
+    private int recordIndex;
+
+    // Description of the current record
+    private int tnf;
+    private int recordType;
+    private int typeOffset;
+    private int typeLength;
+    private int payloadOffset;
+    private int payloadLength;
+
+    /** Parser for records nested in a Smart Poster. Created when needed and reused. */
+    private NdefParser nestedParser;
+
+    /**
+     * Start parsing a new message.
+     * @param data array containing the raw NDEF message.
+     * @param offset position of the first record header.
+     * @param length number of bytes of the message.
+     */
+    public void reset(final byte[] data, final int offset, final int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+        malformed = false;
+        messageEnd = false;
+        recordIndex = -1;
+        recordType = TYPE_OTHER;
+    }
+
+    /**
+     * Advance to the next record of the message.
+     * @return true if a record is available, false at the end of the message
+     * or if the data is malformed.
+     */
+    public boolean next() {
+        if (data == null || messageEnd || malformed || pos >= end) {
+            return false;
+        }
+        final int header = data[pos] & 0xFF;
+        int p = pos + 1;
+        final boolean shortRecord = (header & NdefEncoder.FLAG_SR) != 0;
+        final boolean hasId = (header & NdefEncoder.FLAG_IL) != 0;
+        final int fixedLength = 1 + (shortRecord ? 1 : 4) + (hasId ? 1 : 0);
+        if (p + fixedLength > end) {
+            malformed = true;
+            return false;
+        }
+        typeLength = data[p++] & 0xFF;
+        if (shortRecord) {
+            payloadLength = data[p++] & 0xFF;
+        } else {
+            payloadLength = ((data[p] & 0xFF) << 24) | ((data[p + 1] & 0xFF) << 16)
+                    | ((data[p + 2] & 0xFF) << 8) | (data[p + 3] & 0xFF);
+            p += 4;
+        }
+        final int idLength = hasId ? (data[p++] & 0xFF) : 0;
+        typeOffset = p;
+        payloadOffset = typeOffset + typeLength + idLength;
+        // Compared without adding, as a long payload length could overflow
+        if (payloadOffset > end || payloadLength < 0 || payloadLength > end - payloadOffset) {
+            malformed = true;
+            return false;
+        }
+        tnf = header & NdefEncoder.TNF_MASK;
+        messageEnd = (header & NdefEncoder.FLAG_ME) != 0;
+        recordType = classify((header & NdefEncoder.FLAG_CF) != 0);
+        pos = payloadOffset + payloadLength;
+        recordIndex++;
+        return true;
+    }
+
+    /**
+     * @return true if parsing stopped because of invalid data.
+     */
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    /**
+     * @return index of the current record, starting at 0.
+     */
+    public int getRecordIndex() {
+        return recordIndex;
+    }
+
+    /**
+     * @return type of the current record, one of the TYPE_* constants.
+     */
+    public int getRecordType() {
+        return recordType;
+    }
+
+    /**
+     * @return type name format of the current record.
+     */
+    public int getTnf() {
+        return tnf;
+    }
+
+    /**
+     * @return raw data array the parser is working on.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return position of the payload of the current record in the data array.
+     */
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * @return number of payload bytes of the current record.
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return true if the current record is a MIME record with a text/*
+     * type, false for other records and binary MIME types (e.g., images).
+     */
+    public boolean isTextMime() {
+        return recordType == TYPE_MIME && typeLength > 5 && data[typeOffset] == 't' && data[typeOffset + 1] == 'e'
+                && data[typeOffset + 2] == 'x' && data[typeOffset + 3] == 't' && data[typeOffset + 4] == '/';
+    }
+
+    /**
+     * @return human readable name of the type of the current record.
+     */
+    public String getTitle() {
+        return typeTitles[recordType];
+    }
+
+    /**
+     * Decode the contents of the current record and append them to the buffer.
+     * @param sb buffer that receives the decoded contents.
+     */
+    public void appendContents(final StringBuffer sb) {
+        switch (recordType) {
+            case TYPE_EMPTY:
+                break;
+            case TYPE_URI:
+                appendUri(sb);
+                break;
+            case TYPE_TEXT:
+                appendText(sb);
+                break;
+            case TYPE_SMART_POSTER:
+                appendSmartPoster(sb);
+                break;
+            case TYPE_ACTION:
+                appendAction(sb);
+                break;
+            case TYPE_MIME:
+                appendAscii(sb, typeOffset, typeLength);
+                sb.append(", ").append(payloadLength).append(" bytes");
+                if (isTextMime()) {
+                    sb.append('\n');
+                    appendUtf8(sb, data, payloadOffset, payloadLength);
+                }
+                break;
+            case TYPE_ABSOLUTE_URI:
+                appendAscii(sb, typeOffset, typeLength);
+                break;
+            case TYPE_EXTERNAL:
+                appendAscii(sb, typeOffset, typeLength);
+                sb.append('\n');
+                appendPayloadAsTextOrHex(sb);
+                break;
+            default:
+                sb.append("Format = ").append(tnf).append(", Type = ");
+                appendAscii(sb, typeOffset, typeLength);
+                sb.append(", ").append(payloadLength).append(" bytes");
+                break;
+        }
+    }
+
+    /**
+     * Determine the record type based on the type name format and the type.
+     * Well-known types are identified by their length and first characters.
+     */
+    private int classify(final boolean chunked) {
+        if (chunked) {
+            // Chunked records are not reassembled
+            return TYPE_OTHER;
+        }
+        switch (tnf) {
+            case NdefEncoder.TNF_EMPTY:
+                return TYPE_EMPTY;
+            case NdefEncoder.TNF_WELL_KNOWN:
+                switch (typeLength) {
+                    case 1:
+                        if (data[typeOffset] == 'U') {
+                            return TYPE_URI;
+                        } else if (data[typeOffset] == 'T') {
+                            return TYPE_TEXT;
+                        }
+                        break;
+                    case 2:
+                        if (data[typeOffset] == 'S' && data[typeOffset + 1] == 'p') {
+                            return TYPE_SMART_POSTER;
+                        }
+                        break;
+                    case 3:
+                        if (data[typeOffset] == 'a' && data[typeOffset + 1] == 'c' && data[typeOffset + 2] == 't') {
+                            return TYPE_ACTION;
+                        }
+                        break;
+                }
+                return TYPE_OTHER;
+            case NdefEncoder.TNF_MIME:
+                return TYPE_MIME;
+            case NdefEncoder.TNF_ABSOLUTE_URI:
+                return TYPE_ABSOLUTE_URI;
+            case NdefEncoder.TNF_EXTERNAL:
+                return TYPE_EXTERNAL;
+            default:
+                return TYPE_OTHER;
+        }
+    }
+
+    private void appendUri(final StringBuffer sb) {
+        if (payloadLength < 1) {
+            return;
+        }
+        sb.append(UriAbbreviations.get(data[payloadOffset] & 0xFF));
+        appendUtf8(sb, data, payloadOffset + 1, payloadLength - 1);
+    }
+
+    private void appendText(final StringBuffer sb) {
+        if (payloadLength < 1) {
+            return;
+        }
+        final int status = data[payloadOffset] & 0xFF;
+        final int langLength = status & 0x3F;
+        final int textOffset = payloadOffset + 1 + langLength;
+        final int textLength = payloadLength - 1 - langLength;
+        if (textLength < 0) {
+            return;
+        }
+        sb.append('[');
+        appendAscii(sb, payloadOffset + 1, langLength);
+        sb.append("] ");
+        if ((status & 0x80) != 0) {
+            appendUtf16(sb, textOffset, textLength);
+        } else {
+            appendUtf8(sb, data, textOffset, textLength);
+        }
+    }
+
+    private void appendSmartPoster(final StringBuffer sb) {
+        if (nestedParser == null) {
+            nestedParser = new NdefParser();
+        }
+        nestedParser.reset(data, payloadOffset, payloadLength);
+        boolean first = true;
+        while (nestedParser.next()) {
+            if (!first) {
+                sb.append('\n');
+            }
+            first = false;
+            sb.append(nestedParser.getTitle()).append(": ");
+            nestedParser.appendContents(sb);
+        }
+    }
+
+    private void appendAction(final StringBuffer sb) {
+        if (payloadLength < 1) {
+            return;
+        }
+        final int action = data[payloadOffset] & 0xFF;
+        if (action < actionNames.length) {
+            sb.append(actionNames[action]);
+        } else {
+            sb.append(action);
+        }
+    }
+
+    /**
+     * Print the payload as UTF-8 text if it only contains printable
+     * characters, otherwise print the first bytes in hex.
+     */
+    private void appendPayloadAsTextOrHex(final StringBuffer sb) {
+        boolean printable = true;
+        for (int i = payloadOffset; i < payloadOffset + payloadLength; i++) {
+            final int b = data[i] & 0xFF;
+            if (b < 0x20 && b != '\n' && b != '\r' && b != '\t') {
+                printable = false;
+                break;
+            }
+        }
+        if (printable) {
+            appendUtf8(sb, data, payloadOffset, payloadLength);
+        } else {
+            final int numBytes = Math.min(payloadLength, maxHexBytes);
+            for (int i = payloadOffset; i < payloadOffset + numBytes; i++) {
+                sb.append(hexDigits[(data[i] >> 4) & 0x0F]).append(hexDigits[data[i] & 0x0F]);
+            }
+            if (numBytes < payloadLength) {
+                sb.append("...");
+            }
+        }
+    }
+
+    private void appendAscii(final StringBuffer sb, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            sb.append((char) (data[i] & 0xFF));
+        }
+    }
+
+    /**
+     * Decode big endian UTF-16 text (with optional byte order mark).
+     */
+    private void appendUtf16(final StringBuffer sb, int offset, int length) {
+        boolean littleEndian = false;
+        if (length >= 2) {
+            if ((data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xFF) == 0xFE) {
+                littleEndian = true;
+                offset += 2;
+                length -= 2;
+            } else if ((data[offset] & 0xFF) == 0xFE && (data[offset + 1] & 0xFF) == 0xFF) {
+                offset += 2;
+                length -= 2;
+            }
+        }
+        for (int i = offset; i + 1 < offset + length; i += 2) {
+            if (littleEndian) {
+                sb.append((char) (((data[i + 1] & 0xFF) << 8) | (data[i] & 0xFF)));
+            } else {
+                sb.append((char) (((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF)));
+            }
+        }
+    }
+
+    /**
+     * Decode UTF-8 text. Invalid sequences are replaced by '?'.
+     * @param sb buffer that receives the decoded characters.
+     * @param data array containing the text.
+     * @param offset position of the first byte.
+     * @param length number of bytes to decode.
+     */
+    public static void appendUtf8(final StringBuffer sb, final byte[] data, final int offset, final int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            final int b = data[i] & 0xFF;
+            if (b < 0x80) {
+                sb.append((char) b);
+                i++;
+            } else if ((b & 0xE0) == 0xC0 && i + 1 < end) {
+                sb.append((char) (((b & 0x1F) << 6) | (data[i + 1] & 0x3F)));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0 && i + 2 < end) {
+                sb.append((char) (((b & 0x0F) << 12) | ((data[i + 1] & 0x3F) << 6) | (data[i + 2] & 0x3F)));
+                i += 3;
+            } else if ((b & 0xF8) == 0xF0 && i + 3 < end) {
+                final int cp = ((b & 0x07) << 18) | ((data[i + 1] & 0x3F) << 12)
+                        | ((data[i + 2] & 0x3F) << 6) | (data[i + 3] & 0x3F);
+                // Characters outside of the BMP as surrogate pair
+                sb.append((char) (0xD800 + ((cp - 0x10000) >> 10)));
+                sb.append((char) (0xDC00 + ((cp - 0x10000) & 0x3FF)));
+                i += 4;
+            } else {
+                sb.append('?');
+                i++;
+            }
+        }
+    }
+}
@@ -28,6 +28,8 @@ public class NfcCreatorMidlet extends MIDlet {
     private boolean initialized = false;
     /** Main UI form. */
     private NfcMenuForm nfcMenu;
+    /** Time of the first call of startApp(), to measure the startup time. */
+    private long startTime = 0;
 
     /**
      * Constructor of the MIDlet. Initializes the UI.
@@ -41,17 +43,28 @@ public class NfcCreatorMidlet extends MIDlet {
      */
     public void startApp() {
         if (!initialized) {
+            startTime = System.currentTimeMillis();
+            initialized = true;
             nfcMenu = new NfcMenuForm(this);
             nfcMenu.init();
         }
         Display.getDisplay(this).setCurrent(nfcMenu);
     }
 
+    /**
+     * @return time when the app was started, in milliseconds.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
     public void pauseApp() {
     }
 
     public void destroyApp(boolean unconditional) {
         nfcMenu.shutdown();
+        // Write the dumps that are still queued
+        TagFileManager.shutdown();
     }
     
     public void exitApp() {
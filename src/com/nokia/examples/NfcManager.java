@@ -14,17 +14,14 @@
 ****************************************************************************/
 package com.nokia.examples;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Vector;
 import javax.microedition.contactless.*;
 import javax.microedition.contactless.ndef.NDEFMessage;
-import javax.microedition.contactless.ndef.NDEFRecord;
-import javax.microedition.contactless.ndef.NDEFRecordType;
 import javax.microedition.contactless.ndef.NDEFTagConnection;
+import javax.microedition.io.Connection;
 import javax.microedition.io.Connector;
 import javax.microedition.lcdui.AlertType;
 
@@ -38,62 +35,89 @@ public class NfcManager implements TargetListener, Runnable {
     private InfoInterface callback;
     /** Manager for discovering targets. */
     private DiscoveryManager dm = null;
-    /** Connection to the tag is saved here, as the actual processing is happening in a thread. */
+    /** 
+     * NDEF connection of the session that is currently processed.
+     * Only set and used by the worker thread.
+     */
     private NDEFTagConnection ndconn = null;
+    /** Session that is currently processed by the worker thread. */
+    private TagSession currentSession = null;
+    /** Sessions of detected tags, waiting to be processed by the worker thread. */
+    private final Vector sessionQueue = new Vector();
+    /** Maximum number of sessions waiting in the queue. */
+    private static final int maxQueuedSessions = 4;
+    /** Worker thread that processes the sessions of detected tags. */
+    private Thread worker = null;
+    /** Set to false to end the worker thread. */
+    private boolean workerRunning = false;
     /** When cloning a tag, cache the NDEF message in memory. */
     private NDEFMessage cachedMessage = null;
+    /** CRC-32 of cachedMessage. */
+    private int cachedMessageHash = 0;
+    /**
+     * CRC-32 of the data read from / written to the current tag,
+     * 0 if none. Only set and used by the worker thread.
+     */
+    private int payloadHash = 0;
+    /**
+     * Time spent reading from / writing to the current tag, in ms.
+     * Only set and used by the worker thread.
+     */
+    private long tagIoTime = 0;
+    /** Operation mode of the app, used to group the latency statistics. */
+    private int operationMode = 0;
+    /** Latency histograms of the phases of processing a tag. */
+    private final LatencyStats latencyStats;
     /** 
      * Set to true to connect to a tag using an NDEF connection if possible, 
      * or false to create a low-level connection.
      * Note: low-level connection currently only supported for Mifare tags.
      */
     private boolean ndefMode = true;
-    /** Mifare manager, establishes tag-specific Mifare connections if requested. */
-    MifareManager mifareManager;
-    
-    /** Standardized abbreviations used to save bytes on NDEF URI records. */
-    private static final String uriAbbreviations[] = {
-        "",
-        "http://www.",
-        "https://www.",
-        "http://",
-        "https://",
-        "tel:",
-        "mailto:",
-        "ftp://anonymous:anonymous@",
-        "ftp://ftp.",
-        "ftps://",
-        "sftp://",
-        "smb://",
-        "nfs://",
-        "ftp://",
-        "dav://",
-        "news:",
-        "telnet://",
-        "imap:",
-        "rtsp://",
-        "urn:",
-        "pop:",
-        "sip:",
-        "sips:",
-        "tftp:",
-        "btspp://",
-        "btl2cap://",
-        "btgoep://",
-        "tcpobex://",
-        "irdaobex://",
-        "file://",
-        "urn:epc:id:",
-        "urn:epc:tag:",
-        "urn:epc:pat:",
-        "urn:epc:raw:",
-        "urn:epc:",
-        "urn:nfc:"};
-
-    /** Create a new instance of the Nfc Manager. */
-    public NfcManager(InfoInterface callback) {
+    /**
+     * Mifare manager, establishes tag-specific Mifare connections if requested.
+     * Created when first needed, so that the Mifare classes are only loaded
+     * when using the raw modes. Use getMifareManager().
+     */
+    private MifareManager mifareManager = null;
+    /** Encodes the messages to write, reused for every tag. */
+    private final NdefEncoder encoder = new NdefEncoder();
+    /** If true, the message on the tag is read first and not overwritten if it's identical. */
+    private boolean skipIdenticalWrites = false;
+    /** Number of writes that were skipped as the tag already contained the message. */
+    private int skippedWrites = 0;
+    /** Number of messages written to tags. */
+    private int performedWrites = 0;
+    /** Learns tag capacities from failed writes. */
+    private final MessagePlanner planner = new MessagePlanner();
+    /** Set by handleException() if the last write failed because the tag is full. */
+    private boolean lastWriteOverflow = false;
+    /** Set if the last call of writeMessage() skipped writing, as the tag already contained the message. */
+    private boolean lastWriteSkipped = false;
+    /** Decodes the records of messages read from tags, reused for every tag. */
+    private final NdefParser parser = new NdefParser();
+    /** Textual description of the last message read, reused for every tag. */
+    private final StringBuffer messageContents = new StringBuffer(256);
+    
+    /**
+     * Create a new instance of the Nfc Manager.
+     * @param callback receives the results.
+     * @param numModes number of operation modes of the app, for the
+     * latency statistics.
+     */
+    public NfcManager(InfoInterface callback, final int numModes) {
         this.callback = callback;
-        mifareManager = new MifareManager(callback);
+        latencyStats = new LatencyStats(numModes);
+    }
+    
+    /**
+     * @return the Mifare manager, created when first needed.
+     */
+    private synchronized MifareManager getMifareManager() {
+        if (mifareManager == null) {
+            mifareManager = new MifareManager(callback);
+        }
+        return mifareManager;
     }
     
     /**
@@ -105,24 +129,72 @@ public class NfcManager implements TargetListener, Runnable {
     public void setNdefMode(boolean ndefEnabled) {
         ndefMode = ndefEnabled;
     }
+    
+    /**
+     * Set the operation mode of the app. The latency of each tag is
+     * recorded for the mode that was active.
+     * @param mode operation mode of the app.
+     */
+    public void setOperationMode(final int mode) {
+        operationMode = mode;
+    }
+    
+    /**
+     * @return latency histograms of the phases of processing a tag.
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * Set to true to only write a message if the tag doesn't already
+     * contain exactly the same message. Saves RF time and write cycles
+     * of the tag, at the cost of reading the tag first.
+     */
+    public void setSkipIdenticalWrites(boolean skipIdentical) {
+        skipIdenticalWrites = skipIdentical;
+    }
+    
+    /**
+     * @return number of writes skipped because the tag already contained
+     * the message.
+     */
+    public int getSkippedWrites() {
+        return skippedWrites;
+    }
+    
+    /**
+     * @return number of messages written to tags with writeMessage().
+     */
+    public int getPerformedWrites() {
+        return performedWrites;
+    }
 
     /**
      * Delete & close all Nfc connections.
      * @param alsoRemoveDiscoveryManager if true, also the DiscoveryManager is
-     * deleted and its listener removed.
+     * deleted and its listener removed, all waiting sessions are discarded
+     * and the worker thread is stopped.
      */
     public void deleteNfcInstances(boolean alsoRemoveDiscoveryManager) {
-        if (ndconn != null) {
-            try {
-                ndconn.close();
-                ndconn = null;
-            } catch (IOException ex) {
-                callback.displayAlert("IOException during close", ex.toString(), AlertType.ERROR);
+        if (alsoRemoveDiscoveryManager) {
+            if (dm != null) {
+                dm.removeTargetListener(this, TargetType.NDEF_TAG);
+                dm = null;
             }
-        }
-        if (alsoRemoveDiscoveryManager && dm != null) {
-            dm.removeTargetListener(this, TargetType.NDEF_TAG);
-            dm = null;
+            synchronized (sessionQueue) {
+                for (int i = 0; i < sessionQueue.size(); i++) {
+                    ((TagSession) sessionQueue.elementAt(i)).close();
+                }
+                sessionQueue.removeAllElements();
+                workerRunning = false;
+                worker = null;
+                sessionQueue.notify();
+            }
+        } else if (currentSession != null) {
+            // Only called from the worker thread: close the connection
+            // of the session that is currently processed.
+            currentSession.close();
         }
     }
 
@@ -150,6 +222,7 @@ public class NfcManager implements TargetListener, Runnable {
             }
 
             if (supported) {
+                startWorker();
                 dm = DiscoveryManager.getInstance();
                 dm.addTargetListener(this, TargetType.NDEF_TAG);
                 return true;
@@ -165,6 +238,9 @@ public class NfcManager implements TargetListener, Runnable {
 
     /**
      * Implementation of the call-back function of the TargetListener.
+     * Opens the connection to the tag and queues a new session for the
+     * worker thread. If a session of the same tag is still waiting, it is
+     * replaced by the new one.
      * @param targetProperties array of targets found by the phone
      */
     public void targetDetected(TargetProperties[] targetProperties) {
@@ -174,33 +250,84 @@ public class NfcManager implements TargetListener, Runnable {
             return;
         }
 
-        // Make sure no connection is already open
-        deleteNfcInstances(false);
-        
-        boolean continueParsingTag = false;
+        final long detectionTime = System.currentTimeMillis();
+        final String uid = targetProperties[0].getUid();
+        final String mapping = targetProperties[0].getMapping();
+        TagSession session = null;
         
         if (ndefMode) {
             // NDEF Connection for write Operation
-            ndconn = getNdefTagConnection(targetProperties);
-            if (ndconn != null) {
-                continueParsingTag = true;
+            NDEFTagConnection conn = getNdefTagConnection(targetProperties);
+            if (conn != null) {
+                session = new TagSession(uid, mapping, conn, null, detectionTime);
             }
         } else {
             // Check for mifare connection
-            if (mifareManager.connect(targetProperties)) {
-                continueParsingTag = true;
+            Connection conn = getMifareManager().openConnection(targetProperties);
+            if (conn != null) {
+                session = new TagSession(uid, mapping, null, conn, detectionTime);
             }
         }
                
-        if (continueParsingTag) {
-            // Start a new thread for processing the tag, as recommended by the API specs.
-            Thread t = new Thread(this);
-            t.start();
+        if (session != null) {
+            // Process the tag in the worker thread, as recommended by the API specs.
+            queueSession(session);
         } else {
             callback.displayAlert("Target detected", "Unable to process tag", AlertType.ERROR);
         }
     }
     
+    /**
+     * Add a session to the queue of the worker thread.
+     * A waiting session of the same tag is replaced. If the queue is full,
+     * the new session is discarded.
+     * @param session new session to process.
+     */
+    private void queueSession(TagSession session) {
+        TagSession discarded = null;
+        synchronized (sessionQueue) {
+            if (!workerRunning) {
+                discarded = session;
+            } else {
+                // Coalesce: the tag was presented again before being processed
+                for (int i = 0; i < sessionQueue.size(); i++) {
+                    TagSession queued = (TagSession) sessionQueue.elementAt(i);
+                    if (queued.isSameTag(session)) {
+                        sessionQueue.setElementAt(session, i);
+                        discarded = queued;
+                        session = null;
+                        break;
+                    }
+                }
+                if (session != null) {
+                    if (sessionQueue.size() < maxQueuedSessions) {
+                        sessionQueue.addElement(session);
+                        sessionQueue.notify();
+                    } else {
+                        discarded = session;
+                        callback.displayAlert("Target detected", "Still busy with previous tags, please touch again", AlertType.WARNING);
+                    }
+                }
+            }
+        }
+        if (discarded != null) {
+            discarded.close();
+        }
+    }
+    
+    /**
+     * Start the worker thread if it isn't running yet.
+     */
+    private void startWorker() {
+        synchronized (sessionQueue) {
+            if (worker == null) {
+                workerRunning = true;
+                worker = new Thread(this);
+                worker.start();
+            }
+        }
+    }
+    
     /**
      * Open the connection to the NDEF tag when a target was found.
      * Shows an alert if there is an issue opening the connection.
@@ -225,12 +352,130 @@ public class NfcManager implements TargetListener, Runnable {
     }
     
     /**
-     * Used to inform the callback about a new tag in a separated thread,
-     * as recommended by the JSR documentation.
+     * @return time when the current tag was detected, in milliseconds.
+     * Only valid while a session is processed.
+     */
+    public long getDetectionTime() {
+        final TagSession session = currentSession;
+        return (session != null) ? session.getDetectionTime() : 0;
+    }
+    
+    /**
+     * @return UID of the tag that is currently processed, null if none.
+     */
+    public String getCurrentUid() {
+        final TagSession session = currentSession;
+        return (session != null) ? session.getUid() : null;
+    }
+    
+    /**
+     * @return true if the current tag is accessed through an NDEF connection.
+     */
+    public boolean isNdefSession() {
+        final TagSession session = currentSession;
+        return session != null && session.isNdef();
+    }
+    
+    /**
+     * @return CRC-32 of the data read from / written to the current tag,
+     * 0 if no data was transferred yet.
+     */
+    public int getPayloadHash() {
+        return payloadHash;
+    }
+    
+    /**
+     * Get the capacity of the tag that is currently processed, as learned
+     * from a failed write to it.
+     * @return upper limit of the capacity of the tag's data area in bytes,
+     * or MessagePlanner.CAPACITY_UNKNOWN.
+     */
+    public int getLearnedTagCapacity() {
+        final TagSession session = currentSession;
+        if (session == null) {
+            return MessagePlanner.CAPACITY_UNKNOWN;
+        }
+        return planner.getLearnedCapacity(session.getUid());
+    }
+    
+    /**
+     * @return true if the last call of writeMessage() failed because the
+     * tag is too small for the message.
+     */
+    public boolean isLastWriteOverflow() {
+        return lastWriteOverflow;
+    }
+    
+    /**
+     * @return true if the last successful call of writeMessage() didn't
+     * write, as the tag already contained the message.
+     */
+    public boolean isLastWriteSkipped() {
+        return lastWriteSkipped;
+    }
+    
+    /**
+     * Worker thread: processes the sessions of detected tags one after
+     * another, as the JSR documentation recommends to not interact with
+     * the tag in the listener thread.
      */
     public void run() {
-        // Trigger the UI to launch the appropriate action
-        callback.tagReady();
+        while (true) {
+            TagSession session;
+            synchronized (sessionQueue) {
+                while (workerRunning && sessionQueue.size() == 0) {
+                    try {
+                        sessionQueue.wait();
+                    } catch (InterruptedException ex) { }
+                }
+                if (!workerRunning) {
+                    return;
+                }
+                session = (TagSession) sessionQueue.elementAt(0);
+                sessionQueue.removeElementAt(0);
+            }
+            currentSession = session;
+            payloadHash = 0;
+            tagIoTime = 0;
+            final long dispatchTime = System.currentTimeMillis();
+            ndconn = session.getNdefConnection();
+            if (!session.isNdef()) {
+                getMifareManager().setConnection(session.getRawConnection(), session.getUid());
+            }
+            try {
+                // Trigger the UI to launch the appropriate action
+                callback.tagReady();
+            } catch (RuntimeException ex) {
+                callback.displayAlert("Exception", ex.toString(), AlertType.ERROR);
+            } finally {
+                final long closeTime = System.currentTimeMillis();
+                session.close();
+                if (!session.isNdef()) {
+                    getMifareManager().setConnection(null, null);
+                }
+                ndconn = null;
+                currentSession = null;
+                recordLatency(session, dispatchTime, closeTime);
+            }
+        }
+    }
+    
+    /**
+     * Add the duration of each phase of processing the session to the
+     * latency statistics of the current operation mode.
+     * @param session session that was just closed.
+     * @param dispatchTime time when the session was handed to the UI.
+     * @param closeTime time when closing the connection started.
+     */
+    private void recordLatency(final TagSession session, final long dispatchTime, final long closeTime) {
+        final long now = System.currentTimeMillis();
+        final int mode = operationMode;
+        latencyStats.add(mode, LatencyStats.PHASE_CONNECT, session.getOpenTime() - session.getDetectionTime());
+        latencyStats.add(mode, LatencyStats.PHASE_QUEUE, dispatchTime - session.getOpenTime());
+        latencyStats.add(mode, LatencyStats.PHASE_PROCESS, closeTime - dispatchTime - tagIoTime);
+        latencyStats.add(mode, LatencyStats.PHASE_TAG_IO, tagIoTime);
+        latencyStats.add(mode, LatencyStats.PHASE_CLOSE, now - closeTime);
+        latencyStats.add(mode, LatencyStats.PHASE_TOTAL, now - session.getDetectionTime());
     }
     
     /**
@@ -252,10 +497,13 @@ public class NfcManager implements TargetListener, Runnable {
     
     private NDEFMessage readMessageFromTag()
     {
+        final long start = System.currentTimeMillis();
         try {
             return ndconn.readNDEF();
         } catch (Exception ex) {
             handleException(ex);
+        } finally {
+            tagIoTime += System.currentTimeMillis() - start;
         }
         return null;
     }
@@ -266,23 +514,38 @@ public class NfcManager implements TargetListener, Runnable {
         }
 
         boolean success = false;
+        final long start = System.currentTimeMillis();
         try {
             ndconn.writeNDEF(ndefMessage);
             success = true;
         } catch (Exception ex) {
             handleException(ex);
         } finally {
+            tagIoTime += System.currentTimeMillis() - start;
             // In case of an exception, close the connection properly
             deleteNfcInstances(false);
         }
         return success;
     }
     
+    /**
+     * Write the message assembled in the encoder to the tag.
+     * @param enc encoder containing the complete message.
+     * @return true if writing was successful.
+     */
+    private boolean writeMessageToTag(NdefEncoder enc) {
+        if (!checkNdefConnection()) {
+            return false;
+        }
+        payloadHash = Crc32.calculate(enc.getBuffer(), 0, enc.getLength());
+        return writeMessageToTag(enc.toMessage());
+    }
+    
     private void handleException (Exception ex)
     {
         if (ex instanceof IOException)
         {
-            if (ex.toString().indexOf("-36") > -1) {
+            if (hasErrorCode(ex, -36)) {
                 // KErrDisconnected == -36
                 callback.displayAlert("IOException", "-36: Communication problem / " + ex.getMessage(), AlertType.ERROR);
             } else {
@@ -290,10 +553,11 @@ public class NfcManager implements TargetListener, Runnable {
             }  
         } else if (ex instanceof ContactlessException)
         {
-            if (ex.toString().indexOf("-9") > -1) {
+            if (hasErrorCode(ex, -9)) {
                 // KErrOverflow == -9
+                lastWriteOverflow = true;
                 callback.displayAlert("ContactlessException", "-9: Not enough space on the tag / " + ex.getMessage(), AlertType.ERROR);
-            } else if (ex.toString().indexOf("-2") > -1) {
+            } else if (hasErrorCode(ex, -2)) {
                 // KErrGeneral == -2
                 // Often for unable to read tag - format not supported
                 callback.displayAlert("ContactlessException", "-2: General error / " + ex.getMessage(), AlertType.ERROR);
@@ -305,10 +569,35 @@ public class NfcManager implements TargetListener, Runnable {
         }
     }
 
+    /**
+     * Check if the message of an exception contains a Symbian error code.
+     * Only complete numbers are compared, so that -2 doesn't match -20
+     * and -9 doesn't match -90.
+     * @param ex exception to check.
+     * @param code negative error code, e.g., -9 for KErrOverflow.
+     * @return true if the message contains the error code.
+     */
+    private static boolean hasErrorCode(final Exception ex, final int code) {
+        final String text = ex.toString();
+        final String codeText = Integer.toString(code);
+        int pos = text.indexOf(codeText);
+        while (pos > -1) {
+            final int end = pos + codeText.length();
+            if ((pos == 0 || !Character.isDigit(text.charAt(pos - 1)))
+                    && (end == text.length() || !Character.isDigit(text.charAt(end)))) {
+                return true;
+            }
+            pos = text.indexOf(codeText, end);
+        }
+        return false;
+    }
+
     // ---------------------------------------------------------------------------------------------------------
     // Read messages
     /**
      * Processing method to read an NDEF message from a pre-established tag connection.
+     * The records are decoded directly from the raw message bytes into a
+     * single text, which is shown as one alert and in the results.
      */
     public void readNDEFMessage() {
         if (!checkNdefConnection()) {
@@ -316,52 +605,37 @@ public class NfcManager implements TargetListener, Runnable {
         }
         // Get the message out of the connection
         NDEFMessage ndefMessage = readMessageFromTag();
-        String messageContents = "";
-        if (ndefMessage == null || ndefMessage.getNumberOfRecords() <= 0) {
+        messageContents.setLength(0);
+        final boolean empty = (ndefMessage == null || ndefMessage.getNumberOfRecords() <= 0);
+        if (empty) {
             // No records are found, or no message contained in the connection
             callback.displayAlert("Read NDEF", "No records in the message.", AlertType.ERROR);
-            messageContents += "No records in this message\n";
+            messageContents.append("No records in this message\n");
         } else {
-            boolean recordHandled;
+            final int numRecords = ndefMessage.getNumberOfRecords();
+            final byte[] rawMessage = ndefMessage.toByteArray();
+            payloadHash = Crc32.calculate(rawMessage, 0, rawMessage.length);
             // Go through all the records present in the message
-            for (int i = 0; i < ndefMessage.getNumberOfRecords(); i++) {
-                recordHandled = false;
-                NDEFRecord rec = ndefMessage.getRecord(i);
-                NDEFRecordType type = rec.getRecordType();
-                String typeName = type.getName();
-                if (typeName != null) {
-                    // Enable specific tag handling
-                    if (typeName.equals("Sp")) {
-                        // Show Smart Poster
-                        // Doesn't do actual parsing of the contents
-                        byte[] payload = rec.getPayload();
-                        callback.displayAlert("Smart Poster", new String(payload), AlertType.CONFIRMATION);
-                        messageContents += "Smart Poster\n" + new String(payload) + "\n";
-                        recordHandled = true;
-                    } else if (typeName.equals("U")) {
-                        // Parse URL
-                        // Doesn't do actual parsing of the contents
-                        byte[] payload = rec.getPayload();
-                        callback.displayAlert("Url", new String(payload), AlertType.CONFIRMATION);
-                        messageContents += "URL\n" + new String(payload) + "\n";
-                        recordHandled = true;
-                    } else if (typeName.equals("T")) {
-                        // Parse URL
-                        // Doesn't do actual parsing of the contents
-                        byte[] payload = rec.getPayload();
-                        callback.displayAlert("Text", new String(payload), AlertType.CONFIRMATION);
-                        messageContents += "Text\n" + new String(payload) + "\n";
-                        recordHandled = true;
-                    }
-                }
-                if (!recordHandled) {
-                    // Didn't do special parsing of the record - so just show general info about it
-                    callback.displayAlert("Record " + (i + 1) + "/" + ndefMessage.getNumberOfRecords(), "Format = " + type.getFormat() + ", Name = " + type.getName() + "\n", AlertType.CONFIRMATION);
-                    messageContents += "Record " + (i + 1) + "/" + ndefMessage.getNumberOfRecords() + "\nFormat = " + type.getFormat() + ", Name = " + type.getName() + "\n";
+            parser.reset(rawMessage, 0, rawMessage.length);
+            while (parser.next()) {
+                if (parser.getRecordType() == NdefParser.TYPE_OTHER) {
+                    // No specific decoder - show general info about the record
+                    messageContents.append("Record ").append(parser.getRecordIndex() + 1).append('/').append(numRecords).append('\n');
+                } else {
+                    messageContents.append(parser.getTitle()).append('\n');
                 }
+                parser.appendContents(messageContents);
+                messageContents.append('\n');
             }
+            if (parser.isMalformed()) {
+                messageContents.append("Malformed record data\n");
+            }
+        }
+        final String contents = messageContents.toString();
+        if (!empty) {
+            callback.displayAlert("Read NDEF", contents, AlertType.CONFIRMATION);
         }
-        callback.logTagInfo(messageContents);
+        callback.logTagInfo(contents);
     }
     
     /**
@@ -374,6 +648,9 @@ public class NfcManager implements TargetListener, Runnable {
         }
         cachedMessage = readMessageFromTag();
         if (cachedMessage != null) {
+            final byte[] rawMessage = cachedMessage.toByteArray();
+            cachedMessageHash = Crc32.calculate(rawMessage, 0, rawMessage.length);
+            payloadHash = cachedMessageHash;
             callback.tagSuccess("Learned message from tag");
             return true;
         }
@@ -392,7 +669,12 @@ public class NfcManager implements TargetListener, Runnable {
             return false;
         }
         
-        return mifareManager.readData(null) >= 0;
+        final MifareManager mifare = getMifareManager();
+        final long start = System.currentTimeMillis();
+        final boolean success = mifare.readData(null) >= 0;
+        tagIoTime += System.currentTimeMillis() - start;
+        payloadHash = mifare.getDataChecksum();
+        return success;
     }
 
     // ---------------------------------------------------------------------------------------------------------
@@ -410,10 +692,9 @@ public class NfcManager implements TargetListener, Runnable {
         if (ndefMessage == null || ndefMessage.getNumberOfRecords() <= 0) {
             callback.tagSuccess("Tag already empty");
         } else {
-            NDEFRecord emptyRecord = new NDEFRecord(new NDEFRecordType(NDEFRecordType.EMPTY, null), null, null);
-            NDEFRecord[] emptyRecordArray = {emptyRecord};
-            NDEFMessage emptyMessage = new NDEFMessage(emptyRecordArray);
-            if (writeMessageToTag(emptyMessage)) {
+            encoder.reset();
+            encoder.appendEmpty();
+            if (writeMessageToTag(encoder)) {
                 callback.tagSuccess("Wrote empty message.");
             }
         }
@@ -424,403 +705,385 @@ public class NfcManager implements TargetListener, Runnable {
     // Write messages to tags
     
     /**
-     * Processing method to write an NDEF message containing a URI record
-     * to a pre-established tag connection.
-     * @param fullUrl URI to be written into the URI record of the NDEF message.
-     * Any possible abbreviations of the URL are done automatically.
-     * @throws UnsupportedEncodingException 
+     * Write an already encoded NDEF message to the tag.
+     * If skipping identical writes is enabled, the current message is read
+     * from the tag first and the write is skipped if it matches.
+     * @param data array containing the encoded message, starting at index 0.
+     * @param length number of bytes of the message.
+     * @param successText text for the callback if writing was successful.
+     * @return true if writing was successful or the tag already contained
+     * the message (see isLastWriteSkipped()).
      */
-    public void writeUri(String fullUrl) throws UnsupportedEncodingException {
+    public boolean writeMessage(final byte[] data, final int length, final String successText) {
+        lastWriteOverflow = false;
+        lastWriteSkipped = false;
         if (!checkNdefConnection()) {
-            return;
+            return false;
         }
-        // Create NDEFMessage
-        NDEFMessage message = new NDEFMessage();
-
-        // Append the record to the message
-        message.appendRecord(createUriRecord(fullUrl));
-
-        // Write message to the tag
-        if (writeMessageToTag(message)) {
-            callback.tagSuccess("URI written");
+        if (skipIdenticalWrites && tagContainsMessage(data, length)) {
+            skippedWrites++;
+            lastWriteSkipped = true;
+            callback.tagSuccess("Tag already up to date");
+            return true;
         }
-    }
-    
-    /**
-     * Processing method to write an NDEF message containing a text record
-     * to a pre-established tag connection.
-     * @param fullText text to be written into the text record of the NDEF message.
-     * @param language language to use for the text record
-     * @throws UnsupportedEncodingException 
-     */
-    public void writeText(String fullText, String language) throws UnsupportedEncodingException {
-        if (!checkNdefConnection()) {
-            return;
+        // Only a failed write proves that the tag is too small
+        final int capacity = planner.getLearnedCapacity(currentSession.getUid());
+        if (!MessagePlanner.fits(length, capacity)) {
+            // Fail fast without trying to write
+            callback.tagError("Message too large for the tag (" + MessagePlanner.tlvSize(length) + " / max. " + capacity + " bytes)");
+            lastWriteOverflow = true;
+            return false;
         }
-        // Create NDEFMessage
-        NDEFMessage message = new NDEFMessage();
-
-        // Append the record to the message
-        message.appendRecord(createTextRecord(fullText, language));
-
-        // Write message to the tag
-        if (writeMessageToTag(message)) {
-            callback.tagSuccess("Text written");
+        payloadHash = Crc32.calculate(data, 0, length);
+        if (writeMessageToTag(new NDEFMessage(data, 0))) {
+            performedWrites++;
+            callback.tagSuccess(successText);
+            return true;
         }
+        if (lastWriteOverflow) {
+            planner.recordOverflow(currentSession.getUid(), length);
+        }
+        return false;
     }
-
+    
     /**
-     * Processing method to write a Smart Poster NDEF message to a 
-     * pre-established tag connection.
-     * Which parts of the possible information has to be specified in the
-     * boolean array writeMessages[]. Note that the URL is mandatory
-     * according to the Smart Poster specification.
-     * @throws IOException
-     * @throws ContactlessException 
+     * Check if the tag contains exactly the specified message.
+     * Errors while reading (e.g., unformatted tags) are not reported, the
+     * message is then simply written.
+     * @param data array containing the encoded message.
+     * @param length number of bytes of the message.
+     * @return true if the message on the tag is identical.
      */
-    public void writeSmartPoster(boolean writeMessages[], String fullUrl, String fullText, byte posterAction, String imageUri) throws UnsupportedEncodingException, IOException {
-
-        if (!checkNdefConnection()) {
-            return;
-        }
-
-        // Create the final Smart Poster meta-message
-        NDEFMessage messageSmartPoster = new NDEFMessage();
-
-        // Create the record containing all selected smart poster details
-        NDEFRecord spRecord = createSpRecord(writeMessages, fullUrl, fullText, posterAction, imageUri);
-
-        // Append the smart poster record to the meta-message
-        messageSmartPoster.appendRecord(spRecord);
-
-        // Write message to the tag
-        if (writeMessageToTag(messageSmartPoster)) {
-            callback.tagSuccess("Smart Poster written");
+    private boolean tagContainsMessage(final byte[] data, final int length) {
+        final long start = System.currentTimeMillis();
+        try {
+            NDEFMessage current = ndconn.readNDEF();
+            tagIoTime += System.currentTimeMillis() - start;
+            if (current == null) {
+                return false;
+            }
+            final byte[] currentData = current.toByteArray();
+            if (currentData == null || currentData.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (currentData[i] != data[i]) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception ex) {
+            return false;
         }
     }
-
-    public void writeSms(boolean writeMessages[], String smsUrl, String smsBody, String titleText, byte posterAction) throws UnsupportedEncodingException, IOException {
-        if (!checkNdefConnection()) {
+    
+    public void writeCachedMessage() {
+        if (!checkNdefConnection() || cachedMessage == null) {
             return;
         }
-
-        // Assemble SMS URL (contains phone number and body text)
-        String tagSmsText = "sms:" + smsUrl + "?body=" + smsBody;
-
-        NDEFRecord smsRecord;
-        // Check if to write a smart poster or a URL tag
-
-        if (writeMessages[0] || writeMessages[1]) {
-            // Write a smart poster
-            boolean writeSpMessages[] = new boolean[4];
-            writeSpMessages[0] = true;              // Write URL & body -> always true
-            writeSpMessages[1] = writeMessages[0];  // Write title text?
-            writeSpMessages[2] = writeMessages[1];  // Write action?
-            writeSpMessages[3] = false;             // No image
-            smsRecord = createSpRecord(writeSpMessages, tagSmsText, titleText, posterAction, null);
-        } else {
-            // No title or action set -> write a URI tag
-            smsRecord = createUriRecord(tagSmsText);
-        }
-
-        // Create the final SMS message
-        NDEFMessage messageSms = new NDEFMessage();
-        messageSms.appendRecord(smsRecord);
         // Write message to the tag
-        if (writeMessageToTag(messageSms)) {
-            callback.tagSuccess("Sms tag written");
+        payloadHash = cachedMessageHash;
+        if (writeMessageToTag(cachedMessage)) {
+            callback.tagSuccess("Tag clone written");
         }
     }
     
-    public void writeAnnotatedUrl(String fullUrl, String fullText) throws UnsupportedEncodingException {
-        // Create individual records (Uri + Text)
-        NDEFRecord urlRecord = createUriRecord(fullUrl);
-        NDEFRecord textRecord = createTextRecord(fullText, "en");
-        // Create the final Annotated URL message
-        NDEFMessage messageAnnotatedUrl = new NDEFMessage();
-        messageAnnotatedUrl.appendRecord(urlRecord);
-        messageAnnotatedUrl.appendRecord(textRecord);
-        // Write message to the tag
-        if (writeMessageToTag(messageAnnotatedUrl)) {
-            callback.tagSuccess("Annotated URL tag written");
-        }
-    }
-
-    public void writeImage(String imageUri) throws IOException {
-        if (!checkNdefConnection()) {
-            return;
+    /**
+     * Write the contents of a data file to a Mifare tag.
+     * @param fileName data file in the data directory, containing raw
+     * tag data or a dump.
+     * @param changedOnly only write the blocks that differ from the
+     * current contents of the tag.
+     * @param includeTrailers also write changed sector trailers.
+     * @return false if the app is in NDEF mode.
+     */
+    public boolean writeRawFile(final String fileName, final boolean changedOnly, final boolean includeTrailers) {
+        if (ndefMode) {
+            // Writing the raw data is only supported if not establishing an
+            // NDEF connection
+            callback.displayAlert("Write Raw Data", "Unable to write raw data: app is in NDEF mode", AlertType.ERROR);
+            return false;
         }
-
-        // Create NDEFMessage
-        NDEFMessage message = new NDEFMessage();
-
-        message.appendRecord(createImageRecord(imageUri));
-
-        // Write message to the tag
-        if (writeMessageToTag(message)) {
-            callback.tagSuccess("Image written");
+        final MifareManager mifare = getMifareManager();
+        if (!mifare.loadDataToWrite(fileName)) {
+            return true;
         }
+        final long start = System.currentTimeMillis();
+        mifare.writeData(null, changedOnly, includeTrailers);
+        tagIoTime += System.currentTimeMillis() - start;
+        payloadHash = mifare.getDataChecksum();
+        
+        return true;
     }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Mifare block operations
+    // Only the requested blocks are transferred instead of the whole tag.
     
     /**
-     * Write geo-coordinates to a URL NDEF message to a 
-     * pre-established tag connection.
-     * @param latitude
-     * @param longitude
-     * @param geoType 0 ... geo: URI scheme, according to http://geouri.org/
-     * 1 ... Nokia Maps link
-     * @throws IOException 
+     * Read a range of sectors of a Mifare tag and show their blocks in hex.
+     * Blocks that can't be read are shown as 0.
+     * @param firstSector index of the first sector.
+     * @param numSectors number of sectors to read.
+     * @return true if the sectors were read.
      */
-    public void writeGeo(final double latitude, final double longitude, final int geoType) throws IOException {
-        if (!checkNdefConnection()) {
-            return;
+    public boolean readMifareSectors(final int firstSector, int numSectors) {
+        if (!checkRawMode("Read Mifare Sectors")) {
+            return false;
         }
-
-        // Create NDEFMessage
-        NDEFMessage message = new NDEFMessage();
-
-        message.appendRecord(createGeoRecord(latitude, longitude, geoType));
-
-        // Write message to the tag
-        if (writeMessageToTag(message)) {
-            callback.tagSuccess("Geo URI written");
+        final MifareManager mifare = getMifareManager();
+        numSectors = Math.min(numSectors, mifare.getSectorCount() - firstSector);
+        if (firstSector < 0 || numSectors <= 0) {
+            callback.displayAlert("Read Mifare Sectors", "The tag has " + mifare.getSectorCount() + " sectors", AlertType.ERROR);
+            return false;
         }
-    }
-
-    public void writeCustom(String tagTypeUri, byte[] tagPayload) throws UnsupportedEncodingException {
-        if (!checkNdefConnection()) {
-            return;
+        int numBlocks = 0;
+        for (int sector = firstSector; sector < firstSector + numSectors; sector++) {
+            numBlocks += MifareLayout.getBlocksInSector(sector);
         }
-        // Create NDEFMessage
-        NDEFMessage message = new NDEFMessage();
-
-        // Append the record to the message
-        message.appendRecord(createCustomRecord(tagTypeUri, tagPayload));
-
-        // Write message to the tag
-        if (writeMessageToTag(message)) {
-            callback.tagSuccess("Custom tag written");
+        byte[] blocks = new byte[numBlocks * MifareLayout.BLOCK_SIZE];
+        final long start = System.currentTimeMillis();
+        final int blocksRead = mifare.readSectors(firstSector, numSectors, blocks, 0);
+        tagIoTime += System.currentTimeMillis() - start;
+        if (blocksRead < 0) {
+            return false;
+        }
+        StringBuffer text = new StringBuffer(numBlocks * 40);
+        text.append(blocksRead).append(" of ").append(numBlocks).append(" blocks read\n");
+        int pos = 0;
+        for (int sector = firstSector; sector < firstSector + numSectors; sector++) {
+            text.append("Sector ").append(sector).append('\n');
+            for (int block = 0; block < MifareLayout.getBlocksInSector(sector); block++) {
+                appendHex(text, blocks, pos, MifareLayout.BLOCK_SIZE);
+                text.append('\n');
+                pos += MifareLayout.BLOCK_SIZE;
+            }
         }
+        payloadHash = Crc32.calculate(blocks, 0, blocks.length);
+        callback.logTagInfo(text.toString());
+        return true;
     }
     
-    
-    public void writeCombination(String tagUrl, String tagTypeUri, byte[] tagPayload) throws UnsupportedEncodingException {
-        if (!checkNdefConnection()) {
-            return;
+    /**
+     * Read the value of a Mifare value block and show it.
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @return true if the value was read.
+     */
+    public boolean readMifareValue(final int sector, final int block) {
+        if (!checkRawMode("Mifare Value")) {
+            return false;
         }
-        // Create NDEFMessage
-        NDEFMessage message = new NDEFMessage();
-
-        // Append the record to the message
-        message.appendRecord(createCustomRecord(tagTypeUri, tagPayload));
-        message.appendRecord(createUriRecord(tagUrl));
-
-        // Write message to the tag
-        if (writeMessageToTag(message)) {
-            callback.tagSuccess("Combination tag written");
+        final long start = System.currentTimeMillis();
+        final Integer value = getMifareManager().readValue(sector, block);
+        tagIoTime += System.currentTimeMillis() - start;
+        if (value == null) {
+            return false;
         }
+        payloadHash = value.intValue();
+        callback.logTagInfo("Sector " + sector + ", block " + block + "\nValue: " + value);
+        return true;
     }
     
-    public void writeVcalendar(String tagCalSummary, Date tagCalStart, Date tagCalEnd, boolean useUtcTime) throws IOException {
-        if (!checkNdefConnection()) {
-            return;
+    /**
+     * Add to or subtract from the value of a Mifare value block. Only the
+     * value block is read and written.
+     * @param sector index of the sector.
+     * @param block index of the block within the sector.
+     * @param amount amount to add, negative to subtract.
+     * @return true if the new value was written.
+     */
+    public boolean changeMifareValue(final int sector, final int block, final int amount) {
+        if (!checkRawMode("Mifare Value")) {
+            return false;
         }
-
-        // Create NDEFMessage
-        NDEFMessage message = new NDEFMessage();
-        
-        // Append the record to the message
-        message.appendRecord(createVcalendarRecord(tagCalSummary, tagCalStart, tagCalEnd, useUtcTime));
-
-        // Write message to the tag
-        if (writeMessageToTag(message)) {
-            callback.tagSuccess("vCalendar written");
+        final MifareManager mifare = getMifareManager();
+        final long start = System.currentTimeMillis();
+        final boolean success = amount >= 0 ? mifare.incrementValue(sector, block, amount)
+                : mifare.decrementValue(sector, block, -amount);
+        tagIoTime += System.currentTimeMillis() - start;
+        if (success) {
+            callback.tagSuccess("Value " + (amount >= 0 ? "incremented" : "decremented") + " by " + Math.abs(amount));
         }
+        return success;
     }
     
-    public void writeCachedMessage() {
-        if (!checkNdefConnection() || cachedMessage == null) {
-            return;
+    /**
+     * Copy the value of a Mifare value block to another block of the
+     * same sector, e.g., to restore a backup copy.
+     * @param sector index of the sector.
+     * @param sourceBlock index of the block to copy.
+     * @param targetBlock index of the block that receives the value.
+     * @return true if the value was written.
+     */
+    public boolean transferMifareValue(final int sector, final int sourceBlock, final int targetBlock) {
+        if (!checkRawMode("Mifare Value")) {
+            return false;
         }
-        // Write message to the tag
-        if (writeMessageToTag(cachedMessage)) {
-            callback.tagSuccess("Tag clone written");
+        final long start = System.currentTimeMillis();
+        final boolean success = getMifareManager().transferValue(sector, sourceBlock, targetBlock);
+        tagIoTime += System.currentTimeMillis() - start;
+        if (success) {
+            callback.tagSuccess("Value of block " + sourceBlock + " copied to block " + targetBlock);
         }
+        return success;
     }
     
-    public boolean writeRawData(byte[] tagData) {
+    /**
+     * Check that the app uses a low-level connection, as needed by the
+     * Mifare operations.
+     * @param title title of the alert if not.
+     * @return false if the app is in NDEF mode.
+     */
+    private boolean checkRawMode(final String title) {
         if (ndefMode) {
-            // Writing the raw data is only supported if not establishing an
-            // NDEF connection
-            callback.displayAlert("Write Raw Data", "Unable to write raw data: app is in NDEF mode", AlertType.ERROR);
+            callback.displayAlert(title, "Unable to access Mifare blocks: app is in NDEF mode", AlertType.ERROR);
             return false;
         }
-        mifareManager.setDataToWrite(tagData);
-        mifareManager.writeData(null);
-        
         return true;
     }
-
-    // ---------------------------------------------------------------------------------------------------------
-    // Create individual records
-    private NDEFRecord createUriRecord(final String fullUri) throws UnsupportedEncodingException {
-        byte[] urlPrefix = new byte[1];
-        byte[] url = null;
-
-        boolean foundAbbreviation = false;
-        for (int i = 1; i < uriAbbreviations.length; i++) {
-            if (fullUri.startsWith(uriAbbreviations[i])) {
-                urlPrefix[0] = (byte) i;
-                url = fullUri.substring(uriAbbreviations[i].length(), fullUri.length()).getBytes("utf-8");
-                foundAbbreviation = true;
-                break;
+    
+    /**
+     * Append a range of bytes as hex digits.
+     */
+    private static void appendHex(StringBuffer text, final byte[] data, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            final int b = data[i] & 0xFF;
+            if (b < 0x10) {
+                text.append('0');
             }
+            text.append(Integer.toHexString(b).toUpperCase());
         }
-        if (!foundAbbreviation) {
-            // Store the full URL to the tag - always using UTF-8
-            urlPrefix[0] = (byte) 0x00;
-            url = fullUri.getBytes("utf-8");
-        }
-
-        // Create the record for the URL
-        NDEFRecord recordUrl = new NDEFRecord(new NDEFRecordType(NDEFRecordType.NFC_FORUM_RTD, "urn:nfc:wkt:U"), null, null);
-        recordUrl.appendPayload(urlPrefix);
-        recordUrl.appendPayload(url);
-
-        // Create NDEF Record to be added to NDEF Message
-        return recordUrl;
     }
 
-    private NDEFRecord createTextRecord(final String text, final String lang) throws UnsupportedEncodingException {
-        byte[] lang_bytes = lang.getBytes("US-ASCII");
-        byte[] status_lang_len = {(byte) (lang_bytes.length & 0x3f)};
-        // Bit at 0x80 of status_lang_len would need to be set to 1 for UTF-16 text.
-        // We always use UTF-8 here in this example.
-        byte[] textContents = text.getBytes("utf-8");
+    // ---------------------------------------------------------------------------------------------------------
+    // Encode messages
+    // The methods append the records of the message to the encoder. Call
+    // reset() on the encoder before to start a new message.
 
-        NDEFRecord recordText = new NDEFRecord(new NDEFRecordType(NDEFRecordType.NFC_FORUM_RTD, "urn:nfc:wkt:T"), null, null);
-        recordText.appendPayload(status_lang_len);
-        recordText.appendPayload(lang_bytes);
-        recordText.appendPayload(textContents);
+    public void encodeUri(NdefEncoder enc, final String fullUri) {
+        enc.appendUri(fullUri);
+    }
 
-        return recordText;
+    public void encodeText(NdefEncoder enc, final String text, final String lang) {
+        enc.appendText(text, lang);
     }
 
-    private NDEFRecord createSpRecord(final boolean[] writeDetails, final String fullUrl, final String title, final byte action, final String imageFilename) throws UnsupportedEncodingException, IOException {
+    public void encodeSmartPoster(NdefEncoder enc, final boolean[] writeDetails, final String fullUrl, final String title, final byte action, final String imageFilename) throws IOException {
         if (writeDetails.length != 4) {
-            return null;
+            // An empty message would wipe the tag
+            throw new IllegalArgumentException("Smart Poster needs 4 detail flags, got " + writeDetails.length);
         }
 
-        // Create NDEFMessage
-        NDEFMessage message = new NDEFMessage();
+        // Load the image first, its size is needed for the Smart Poster length
+        byte[] image = null;
+        String imageMimeType = null;
+        if (writeDetails[3]) {
+            image = ImageCache.getImage(imageFilename);
+            imageMimeType = getImageMimeType(image);
+        }
 
+        // Calculate the size of all records contained in the Smart Poster
+        int contentLength = 0;
+        if (writeDetails[0]) {
+            contentLength += NdefEncoder.uriRecordLength(fullUrl);
+        }
+        if (writeDetails[1]) {
+            contentLength += NdefEncoder.textRecordLength(title, "en");
+        }
+        if (writeDetails[2]) {
+            contentLength += NdefEncoder.actionRecordLength();
+        }
+        if (writeDetails[3]) {
+            contentLength += NdefEncoder.mimeRecordLength(imageMimeType, image.length);
+        }
+
+        // Create the Smart Poster record and directly encode its contents
+        enc.beginSmartPoster(contentLength);
         if (writeDetails[0]) {
             // Url
-            message.appendRecord(createUriRecord(fullUrl));
+            enc.appendUri(fullUrl);
         }
         if (writeDetails[1]) {
             // Title
-            message.appendRecord(createTextRecord(title, "en"));
+            enc.appendText(title, "en");
         }
         if (writeDetails[2]) {
             // Action
-            message.appendRecord(createActionRecord(action));
+            enc.appendAction(action);
         }
         if (writeDetails[3]) {
             // Image
-            message.appendRecord(createImageRecord(imageFilename));
+            enc.appendMime(imageMimeType, image);
         }
-
-        // Create the Smart Poster record
-        NDEFRecord recordSmartPoster = new NDEFRecord(new NDEFRecordType(NDEFRecordType.NFC_FORUM_RTD, "urn:nfc:wkt:Sp"), null, null);
-        // Add the URL and the title as a payload to the Smart Poster record.
-        recordSmartPoster.appendPayload(message.toByteArray()); // add content of previously created NDEFMessage
-
-        return recordSmartPoster;
+        enc.endSmartPoster();
     }
 
-    private NDEFRecord createActionRecord(final byte action) {
-        byte[] actionRecord = {0x11, 0x03, 0x01, 'a', 'c', 't', action};
-
-        return new NDEFRecord(actionRecord, 0);
-    }
-
-    private NDEFRecord createImageRecord(final String filename) throws IOException {
-        // Read image from phone to ByteArrayOutputStream
-        ByteArrayOutputStream baos = getImage(filename);
+    public void encodeSms(NdefEncoder enc, final boolean writeMessages[], final String smsUrl, final String smsBody, final String titleText, final byte posterAction) throws IOException {
+        // Assemble SMS URL (contains phone number and body text)
+        String tagSmsText = "sms:" + smsUrl + "?body=" + smsBody;
 
-        final String fileExt = filename.substring(filename.lastIndexOf('.') + 1, filename.length());
-        String mimeType = "";
-        if (fileExt.equalsIgnoreCase("png")) {
-            mimeType = "image/png";
-        } else if (fileExt.equalsIgnoreCase("jpg") || fileExt.equalsIgnoreCase("jpeg")) {
-            mimeType = "image/jpeg";
-        } else if (fileExt.equalsIgnoreCase("gif")) {
-            mimeType = "image/gif";
+        // Check if to write a smart poster or a URL tag
+        if (writeMessages[0] || writeMessages[1]) {
+            // Write a smart poster
+            boolean writeSpMessages[] = new boolean[4];
+            writeSpMessages[0] = true;              // Write URL & body -> always true
+            writeSpMessages[1] = writeMessages[0];  // Write title text?
+            writeSpMessages[2] = writeMessages[1];  // Write action?
+            writeSpMessages[3] = false;             // No image
+            encodeSmartPoster(enc, writeSpMessages, tagSmsText, titleText, posterAction, null);
         } else {
-            callback.displayAlert("Image", "Unrecognized file type", AlertType.WARNING);
+            // No title or action set -> write a URI tag
+            enc.appendUri(tagSmsText);
         }
+    }
 
-        // Create NDEF Record to be added to NDEF Message
-        return new NDEFRecord(new NDEFRecordType(
-                NDEFRecordType.MIME, mimeType), null, baos.toByteArray());
+    public void encodeAnnotatedUrl(NdefEncoder enc, final String fullUrl, final String fullText) {
+        // Individual records (Uri + Text), without Smart Poster meta-record
+        enc.appendUri(fullUrl);
+        enc.appendText(fullText, "en");
     }
 
-    /**
-     * Read image from phone to a ByteArrayOutputStream
-     */
-    private ByteArrayOutputStream getImage(final String filename) throws IOException {
-        InputStream is = getClass().getResourceAsStream(filename);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int c;
-        while ((c = is.read()) != -1) {
-            baos.write(c);
-        }
-        return baos;
+    public void encodeImage(NdefEncoder enc, final String filename) throws IOException {
+        final byte[] image = ImageCache.getImage(filename);
+        enc.appendMime(getImageMimeType(image), image);
     }
 
-    private NDEFRecord createGeoRecord(final double latitude, final double longitude, final int geoType) throws UnsupportedEncodingException {
-        // Convert latitude and longitude to strings.
-        // Decimal separator: .
-        final String latString = Double.toString(latitude);
-        final String longString = Double.toString(longitude);
-        // Create NDEF Record to be added to NDEF Message
-        String uriString;
-        switch (geoType)
-        {
-            case 2: // Generic redirect NfcInteractor.com
-                uriString = "http://nfcinteractor.com/m?c=" + latString + "," + longString;
-                break;
-            case 1: // Nokia Maps link
-                uriString = "http://m.ovi.me/?c=" + latString + "," + longString;
-                break;
-            case 0: // Geo URI
-            default:
-                uriString = "geo:" + latString + "," + longString;
-                break;
-        }
-        return createUriRecord(uriString);
+    public void encodeGeo(NdefEncoder enc, final double latitude, final double longitude, final int geoType, final int decimals) {
+        // Coordinates are formatted as fixed-point numbers, decimal separator: .
+        GeoFormatter.appendUri(enc, latitude, longitude, geoType, decimals);
     }
-    
-    private NDEFRecord createCustomRecord(final String tagUri, final byte[] payload) throws UnsupportedEncodingException {
-        // Create NDEF Record to be added to NDEF Message
-        NDEFRecord recordCustom = new NDEFRecord(new NDEFRecordType(NDEFRecordType.EXTERNAL_RTD, tagUri), null, null);
-        recordCustom.appendPayload(payload);
 
-        return recordCustom;
+    public void encodeCustom(NdefEncoder enc, final String tagUri, final byte[] payload) {
+        enc.appendExternal(tagUri, payload);
     }
-    
-    private NDEFRecord createVcalendarRecord(String tagCalSummary, Date tagCalStart, Date tagCalEnd, boolean useUtcTime) throws UnsupportedEncodingException {
+
+    public void encodeCombination(NdefEncoder enc, final String tagUrl, final String tagTypeUri, final byte[] tagPayload) {
+        enc.appendExternal(tagTypeUri, tagPayload);
+        enc.appendUri(tagUrl);
+    }
+
+    public void encodeVcalendar(NdefEncoder enc, String tagCalSummary, Date tagCalStart, Date tagCalEnd, boolean useUtcTime) {
         String vCalEntry = "BEGIN:VCALENDAR\nVERSION:1.0\nBEGIN:VEVENT\nDTSTART:" + convertToVcalTime(tagCalStart, useUtcTime) + 
                 "\nDTEND:" + convertToVcalTime(tagCalEnd, useUtcTime)+ "\nSUMMARY:" + tagCalSummary + "\nEND:VEVENT\nEND:VCALENDAR";
         
         // Two MIME types are most common: text/x-vCalendar and text/Calendar
-        // Create NDEF Record to be added to NDEF Message
         // Default character set for iCalendar (RFC 2445) is UTF-8
-        return new NDEFRecord(new NDEFRecordType(
-                NDEFRecordType.MIME, "text/x-vCalendar"), null, vCalEntry.getBytes("utf-8"));
+        enc.appendMimeText("text/x-vCalendar", vCalEntry);
     }
-    
+
+    /**
+     * Get the MIME type of an image based on its contents.
+     */
+    private String getImageMimeType(final byte[] image) {
+        final String mimeType = ImageCache.getMimeType(image);
+        if (mimeType == null) {
+            callback.displayAlert("Image", "Unrecognized file type", AlertType.WARNING);
+            return "";
+        }
+        return mimeType;
+    }
+
     /**
      * Convert a Date object to the representation required by the vCalendar standard.
      * Resulting format: yyyymmddThhmmss
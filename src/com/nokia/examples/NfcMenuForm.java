@@ -23,7 +23,7 @@ import javax.microedition.lcdui.*;
  * 
  * @author Andreas Jakl
  */
-public class NfcMenuForm extends Form implements CommandListener, ItemStateListener, InfoInterface, Runnable {
+public class NfcMenuForm extends Form implements CommandListener, ItemStateListener, InfoInterface, MessageSource, Runnable {
     /** Midlet class to exit the app when the command is selected by the user. */
     private NfcCreatorMidlet midlet;
     
@@ -36,6 +36,14 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
     private Command exitCommand;
     /** Command to go back to the big selection screen. */
     private Command backCommand;
+    /** Command to show the diagnostics screen. */
+    private Command diagnosticsCommand;
+    /** Command to export the diagnostics to a file. */
+    private Command exportCommand;
+    /** Command to return from the diagnostics screen. */
+    private Command closeDiagnosticsCommand;
+    /** Screen with startup times, scan counts and tag latencies, created when first shown. */
+    private Form diagnosticsForm;
     
     // Operation mode UI
     /** Selection UI element to choose the current interaction mode. */
@@ -56,7 +64,8 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
         "Read Raw Mifare",
         "Write Raw Mifare",
         "Clone Tag",
-        "Delete / Format"
+        "Delete / Format",
+        "Mifare Blocks / Values"
     };
     /** Current operation mode. Can be either READ_TAG, WRITE_TAG or DELETE_TAG. */
     private int operationMode = READ_TAG;
@@ -95,6 +104,8 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
     private static final int CLONE_TAG = 13;
     /** When touching an NFC tag: the record currently present on the tag is overwritten with an empty record. */
     private static final int DELETE_TAG = 14;
+    /** When touching an NFC tag: read sectors of a Mifare tag or change a value block. */
+    private static final int MIFARE_BLOCKS_TAG = 15;
     // Reading modes
     /** UI element to show info about the discovered tags when reading. */
     private TextField tagContents;
@@ -127,6 +138,8 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
     private TextField tagLongitude;
     /** Choose mechanism to write geo tag. */
     private ChoiceGroup tagGeoType;
+    /** Number of decimals of the coordinates written to the tag. */
+    private TextField tagGeoDecimals;
     /** UI element to enter the summary of the vCalendar entry. */
     private TextField tagCalSummary;
     /** UI element to enter the starting date & time for a vCalendar entry. */
@@ -137,10 +150,89 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
     private StringItem cloneTagStatus;
     /** Status code when cloning a tag. */
     private int cloneStatus = 1;
+    // Options for all modes that write an NDEF message
+    /** UI element to enable options that apply to all NDEF write modes. */
+    private ChoiceGroup writeOptions;
+    /** Index of the batch provisioning option in the write options. */
+    private static final int OPTION_BATCH = 0;
+    /** Index of the option to skip writing tags that already contain the message. */
+    private static final int OPTION_SKIP_IDENTICAL = 1;
+    /** Index of the option to drop optional Smart Poster parts if the tag is too small. */
+    private static final int OPTION_SHRINK_TO_FIT = 2;
+    /** UI element to enter the serial number of the next tag in batch mode. */
+    private TextField batchSerial;
+    /** UI element that shows the progress of the batch. */
+    private StringItem batchStatus;
+    /** Personalizes the message with a serial number in batch mode. */
+    private final BatchProvisioner batchProvisioner = new BatchProvisioner();
+    /** Persistent history of all processed tags. */
+    private final ScanHistory scanHistory = new ScanHistory();
+    /**
+     * Result of the tag that is currently processed, ScanHistory.RESULT_*.
+     * The most severe alert shown while processing the tag wins.
+     */
+    private int scanResult = ScanHistory.RESULT_NONE;
+    /** Names of the results of a scan, indexed by ScanHistory.RESULT_*. */
+    private static final String scanResultNames[] = {"no result", "success", "warning", "error"};
+    /** Delivers alerts and results to the UI thread, combined per tag. */
+    private final UiNotifier notifier;
+    /** Time from starting the app until the main UI was created, in ms. */
+    private long startupUiTime = 0;
+    /** Time from starting the app until the NFC listener was registered, in ms. */
+    private long startupNfcTime = 0;
+    /** Encoder for messages that have to be built when a tag is touched. */
+    private final NdefEncoder tagEncoder = new NdefEncoder();
+    /** Encodes the smaller variants of the message if it doesn't fit onto the tag. */
+    private final NdefEncoder fallbackEncoder = new NdefEncoder();
+    /** Encodes the message to write in the background whenever the settings change. */
+    private final MessagePreEncoder preEncoder = new MessagePreEncoder(this);
+    /** UI element that shows how long writing took after touching a tag. */
+    private StringItem writeTiming;
+    /** Number of tags written using a pre-encoded message. */
+    private int prebuiltWrites = 0;
+    /** Total time from tag detection until written, using a pre-encoded message. */
+    private long prebuiltWriteTime = 0;
+    /** Number of tags written where the message had to be encoded after touching the tag. */
+    private int inlineWrites = 0;
+    /** Total time from tag detection until written, encoding the message after touching the tag. */
+    private long inlineWriteTime = 0;
+    // Raw modes
+    /** UI element that shows the progress of reading / writing raw tag data. */
+    private Gauge rawProgress;
+    /** Options for writing raw tag data. */
+    private ChoiceGroup rawWriteOptions;
+    /** Index of the option to only write blocks that differ from the tag. */
+    private static final int RAW_OPTION_CHANGED_ONLY = 0;
+    /** Index of the option to also write sector trailers. */
+    private static final int RAW_OPTION_TRAILERS = 1;
+    // Mifare block mode
+    /** UI element to choose the Mifare block operation. */
+    private ChoiceGroup blockOperation;
+    /** Index of the operation to read a range of sectors. */
+    private static final int BLOCK_OP_READ_SECTORS = 0;
+    /** Index of the operation to read a value block. */
+    private static final int BLOCK_OP_READ_VALUE = 1;
+    /** Index of the operation to increment a value block. */
+    private static final int BLOCK_OP_INCREMENT = 2;
+    /** Index of the operation to decrement a value block. */
+    private static final int BLOCK_OP_DECREMENT = 3;
+    /** Index of the operation to copy a value block to another block. */
+    private static final int BLOCK_OP_TRANSFER = 4;
+    /** UI element to enter the (first) sector. */
+    private TextField blockSector;
+    /** UI element to enter the number of sectors to read. */
+    private TextField blockSectorCount;
+    /** UI element to enter the value block within the sector. */
+    private TextField blockIndex;
+    /** UI element to enter the amount to add / subtract. */
+    private TextField blockAmount;
+    /** UI element to enter the block that receives a copied value. */
+    private TextField blockTarget;
     
     public NfcMenuForm(NfcCreatorMidlet midlet) {
         super("Nfc Creator");
         this.midlet = midlet;
+        notifier = new UiNotifier(Display.getDisplay(midlet), this);
     }
     
     public void init() {
@@ -180,27 +272,36 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
             // NFC is supported - construct full UI and NFC manager class.
             nfcSupported = true;
             createMainUi();
+            startupUiTime = System.currentTimeMillis() - midlet.getStartTime();
         }
         
         this.setItemStateListener(this);
         this.setCommandListener(this);
         
         if (nfcSupported) {
-            nfcManager = new NfcManager(this);
+            nfcManager = new NfcManager(this, operatingModeNames.length);
+            nfcManager.setOperationMode(operationMode);
             nfcSupported = nfcManager.createNfcDiscoveryManager();
+            startupNfcTime = System.currentTimeMillis() - midlet.getStartTime();
+            // Load the images now, so that they're ready when touching a tag
+            ImageCache.preload();
+            scanHistory.preload();
+            diagnosticsCommand = new Command("Diagnostics", Command.SCREEN, 2);
+            this.addCommand(diagnosticsCommand);
         }
     }
     
     
     public void shutdown() {
+        preEncoder.stop();
         if (nfcManager != null) {
             nfcManager.deleteNfcInstances(true);
         }        
     }
     
     /**
-     * Create the main UI and all the UI elements that are used by the 
-     * different writing modes.
+     * Create the main UI. The UI elements that are used by the different
+     * modes are created when the mode is first activated (createModeUi()).
      */
     private void createMainUi() {
         // Choice group to choose the operation mode
@@ -210,23 +311,97 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
         
         tagContents = new TextField("Results", "", 1024, TextField.ANY);
         this.append(tagContents);
-
-        // Prepare the UI elements that are only visible and relevant when writing a tag
-        // URL field (URI tag, Smart Poster, Annotated URL)
-        tagUrl = new TextField("URL", "http://nokia.com/", 255, TextField.URL);
-
-        // Text field (Text only tag, Smart Poster)
-        tagText = new TextField("Text", "Nokia", 255, TextField.ANY);
-        tagTextLanguage = new TextField("Language", "en", 5, TextField.ANY);
-
-        // Action (Smart Poster)
+        notifier.setOutputs(tagContents, null);
+    }
+    
+    /**
+     * Create the UI elements that the operation mode shows, if they
+     * don't exist yet.
+     * @param mode operation mode that is about to be activated.
+     */
+    private void createModeUi(final int mode) {
+        switch (mode) {
+            case WRITE_SP_TAG:
+                createPosterUi();
+                createTextUi();
+                createUrlUi();
+                createImageUi();
+                break;
+            case WRITE_URI_TAG:
+                createUrlUi();
+                break;
+            case WRITE_TEXT_TAG:
+                createTextUi();
+                break;
+            case WRITE_SMS_TAG:
+                createSmsUi();
+                createTextUi();
+                createPosterUi();
+                break;
+            case WRITE_ANNOTATED_URL_TAG:
+                createTextUi();
+                createUrlUi();
+                break;
+            case WRITE_IMAGE_TAG:
+                createImageUi();
+                break;
+            case WRITE_GEO_TAG:
+                createGeoUi();
+                break;
+            case WRITE_CUSTOM_TAG:
+                createCustomUi();
+                break;
+            case WRITE_COMBINATION_TAG:
+                createCustomUi();
+                createUrlUi();
+                break;
+            case WRITE_VCALENDAR_TAG:
+                createCalendarUi();
+                break;
+            case READ_RAW_TAG:
+            case WRITE_RAW_TAG:
+                createRawUi();
+                break;
+            case MIFARE_BLOCKS_TAG:
+                createBlockUi();
+                break;
+            case CLONE_TAG:
+                if (cloneTagStatus == null) {
+                    cloneTagStatus = new StringItem(null, null);
+                }
+                break;
+        }
+        if (isNdefWriteOperationMode(mode)) {
+            createWriteOptionsUi();
+        }
+    }
+    
+    /** URL field (URI tag, Smart Poster, Annotated URL). */
+    private void createUrlUi() {
+        if (tagUrl == null) {
+            tagUrl = new TextField("URL", "http://nokia.com/", 255, TextField.URL);
+        }
+    }
+    
+    /** Text field (Text only tag, Smart Poster). */
+    private void createTextUi() {
+        if (tagText == null) {
+            tagText = new TextField("Text", "Nokia", 255, TextField.ANY);
+            tagTextLanguage = new TextField("Language", "en", 5, TextField.ANY);
+        }
+    }
+    
+    /** Action and selection which messages to write (Smart Poster). */
+    private void createPosterUi() {
+        if (posterAction != null) {
+            return;
+        }
         posterAction = new ChoiceGroup("Action", ChoiceGroup.EXCLUSIVE);
         posterAction.append("Do the action", null);
         posterAction.append("Save for later", null);
         posterAction.append("Open for editing", null);
         posterAction.setSelectedIndex(0, true);
 
-        // Selection which messages to write (Smart Poster)
         posterEnabledMessages = new ChoiceGroup("Messages", ChoiceGroup.MULTIPLE);
         posterEnabledMessages.append("URL", null);
         posterEnabledMessages.append("Title", null);
@@ -234,19 +409,33 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
         posterEnabledMessages.append("Icon", null);
         boolean[] posterEnabledFlags = {true, true, false, false};
         posterEnabledMessages.setSelectedFlags(posterEnabledFlags);
-
-        // Custom tag
-        tagTypeUri = new TextField("Tag URI", "urn:nfc:ext:nokia.com:custom", 255, TextField.URL);
-        tagCustomPayload = new TextField("Payload", "Nokia", 255, TextField.ANY);
-
-        // Image chooser
+    }
+    
+    /** Custom tag. */
+    private void createCustomUi() {
+        if (tagTypeUri == null) {
+            tagTypeUri = new TextField("Tag URI", "urn:nfc:ext:nokia.com:custom", 255, TextField.URL);
+            tagCustomPayload = new TextField("Payload", "Nokia", 255, TextField.ANY);
+        }
+    }
+    
+    /** Image chooser. */
+    private void createImageUi() {
+        if (tagChooseImage != null) {
+            return;
+        }
         tagChooseImage = new ChoiceGroup("Choose image", ChoiceGroup.EXCLUSIVE);
         tagChooseImage.append("Minimal GIF (48 bytes)", null);
         tagChooseImage.append("Minimal PNG (80 bytes)", null);
         tagChooseImage.append("Nokia PNG (225 bytes)", null);
         tagChooseImage.setSelectedIndex(1, true);
-
-        // SMS
+    }
+    
+    /** SMS. */
+    private void createSmsUi() {
+        if (tagSmsEnabledMessages != null) {
+            return;
+        }
         tagSmsEnabledMessages = new ChoiceGroup("SMS Options", ChoiceGroup.MULTIPLE);
         tagSmsEnabledMessages.append("Title text (-> Sp)", null);
         tagSmsEnabledMessages.append("Action (-> Sp)", null);
@@ -254,37 +443,117 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
         tagSmsEnabledMessages.setSelectedFlags(smsEnabledFlags);
         tagSmsNumber = new TextField("SMS Recipient", "+1234", 255, TextField.PHONENUMBER);
         tagSmsBody = new TextField("SMS Body", "Hello", 255, TextField.ANY);
-
-        // Geo Uri
+    }
+    
+    /** Geo Uri. */
+    private void createGeoUi() {
+        if (tagLatitude != null) {
+            return;
+        }
         tagLatitude = new TextField("Latitude (dec deg., WGS-84)", "60.17", 255, TextField.DECIMAL);
         tagLongitude = new TextField("Longitude (dec deg., WGS-84)", "24.829", 255, TextField.DECIMAL);
         tagGeoType = new ChoiceGroup("Choose Geo tag type", ChoiceGroup.EXCLUSIVE);
         tagGeoType.append("geo: URI scheme", null); // http://geouri.org/
         tagGeoType.append("Nokia Maps link", null);
         tagGeoType.append("Generic redirect NfcInteractor.com", null);
-        tagGeoType.setSelectedIndex(0, true);
-        
-        // vCalendar
+        tagGeoType.append("Smallest encoded size", null);
+        tagGeoType.setSelectedIndex(GeoFormatter.TYPE_GEO_URI, true);
+        tagGeoDecimals = new TextField("Decimals (5 = approx. 1 m)", Integer.toString(GeoFormatter.DEFAULT_DECIMALS), 1, TextField.NUMERIC);
+    }
+    
+    /** vCalendar. */
+    private void createCalendarUi() {
+        if (tagCalSummary != null) {
+            return;
+        }
         tagCalSummary = new TextField("Summary", "Develop NFC app", 255, TextField.ANY);
         tagCalStart = new DateField("Start", DateField.DATE_TIME);
         tagCalEnd = new DateField("End", DateField.DATE_TIME);
         Date now = new Date();
         tagCalStart.setDate(now);
         tagCalEnd.setDate(new Date(now.getTime() + 3600000));   // 3 600 000 milliseconds = 60 minutes
-        
-        // Clone Tag
-        cloneTagStatus = new StringItem(null, null);
-        cloneStatus = 1;
+    }
+    
+    /** Write options, shared by all NDEF write modes. */
+    private void createWriteOptionsUi() {
+        if (writeOptions != null) {
+            return;
+        }
+        writeOptions = new ChoiceGroup("Write options", ChoiceGroup.MULTIPLE);
+        writeOptions.append("Batch: write serial into ## fields", null);
+        writeOptions.append("Only write if content differs", null);
+        writeOptions.append("Shrink Smart Poster to fit tag", null);
+        batchSerial = new TextField("Next serial", "1", 10, TextField.NUMERIC);
+        batchStatus = new StringItem("Batch", null);
+        updateBatchStatus();
+        writeTiming = new StringItem("Touch to write", null);
+        updateWriteTiming();
+    }
+    
+    /** Raw modes. */
+    private void createRawUi() {
+        if (rawProgress != null) {
+            return;
+        }
+        rawProgress = new Gauge("Progress", false, 1, 0);
+        rawWriteOptions = new ChoiceGroup("Raw write options", ChoiceGroup.MULTIPLE);
+        rawWriteOptions.append("Only write changed blocks", null);
+        rawWriteOptions.append("Include sector trailers (keys!)", null);
+        rawWriteOptions.setSelectedIndex(RAW_OPTION_CHANGED_ONLY, true);
+        notifier.setOutputs(tagContents, rawProgress);
+    }
+    
+    /** Mifare block operations. */
+    private void createBlockUi() {
+        if (blockOperation != null) {
+            return;
+        }
+        blockOperation = new ChoiceGroup("Operation", ChoiceGroup.EXCLUSIVE);
+        blockOperation.append("Read sectors", null);
+        blockOperation.append("Read value", null);
+        blockOperation.append("Increment value", null);
+        blockOperation.append("Decrement value", null);
+        blockOperation.append("Copy value to block", null);
+        blockOperation.setSelectedIndex(BLOCK_OP_READ_SECTORS, true);
+        blockSector = new TextField("Sector", "1", 2, TextField.NUMERIC);
+        blockSectorCount = new TextField("Number of sectors to read", "2", 2, TextField.NUMERIC);
+        blockIndex = new TextField("Value block", "1", 2, TextField.NUMERIC);
+        blockAmount = new TextField("Amount", "1", 9, TextField.NUMERIC);
+        blockTarget = new TextField("Copy to block", "2", 2, TextField.NUMERIC);
     }
 
     /**
-     * Call-back from the choice group that selects the operation mode.
+     * Call-back from the choice group that selects the operation mode, and
+     * from the items that define the message to write.
      */
     public void itemStateChanged(Item item) {
         if (item == operationModeSelector) {
             final int newOperationMode = operationModeSelector.getSelectedIndex();
             // Activate the new operation mode.
             activateOperationMode(newOperationMode);
+            batchProvisioner.invalidate();
+            requestPreEncoding();
+        } else if (item == writeOptions) {
+            if (nfcManager != null) {
+                nfcManager.setSkipIdenticalWrites(writeOptions.isSelected(OPTION_SKIP_IDENTICAL));
+            }
+            if (writeOptions.isSelected(OPTION_BATCH)) {
+                // Start a new batch
+                batchProvisioner.invalidate();
+                batchProvisioner.resetCounters();
+                updateBatchStatus();
+            }
+        } else if (item == batchSerial) {
+            try {
+                batchProvisioner.setNextSerial(Long.parseLong(batchSerial.getString()));
+            } catch (NumberFormatException ex) {
+                batchSerial.setString(String.valueOf(batchProvisioner.getNextSerial()));
+            }
+        } else {
+            // Settings of the message changed - compile the batch template
+            // again and prepare the new message in the background
+            batchProvisioner.invalidate();
+            requestPreEncoding();
         }
     }
 
@@ -296,6 +565,7 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
      */
     private void activateOperationMode(final int newOperationMode) {
         if (operationMode != newOperationMode) {            
+            createModeUi(newOperationMode);
             setupFormHeader(operationMode, newOperationMode);
             // Does this mode require the nfc manager to be in the NDEF mode,
             // or the raw mode?
@@ -341,6 +611,7 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
                     this.append(tagLatitude);
                     this.append(tagLongitude);
                     this.append(tagGeoType);
+                    this.append(tagGeoDecimals);
                     break;
                 case WRITE_CUSTOM_TAG:
                     this.append(tagTypeUri);
@@ -361,9 +632,25 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
                 case READ_RAW_TAG:
                     tagContents.setString("");
                     this.append(tagContents);
+                    rawProgress.setValue(0);
+                    this.append(rawProgress);
                     ndefMode = false;
                     break;
                 case WRITE_RAW_TAG:
+                    this.append(rawWriteOptions);
+                    rawProgress.setValue(0);
+                    this.append(rawProgress);
+                    ndefMode = false;
+                    break;
+                case MIFARE_BLOCKS_TAG:
+                    this.append(blockOperation);
+                    this.append(blockSector);
+                    this.append(blockSectorCount);
+                    this.append(blockIndex);
+                    this.append(blockAmount);
+                    this.append(blockTarget);
+                    tagContents.setString("");
+                    this.append(tagContents);
                     ndefMode = false;
                     break;
                 case CLONE_TAG:
@@ -372,19 +659,30 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
                     this.append(cloneTagStatus);
                     break;
             }
+            if (isNdefWriteOperationMode(newOperationMode)) {
+                this.append(writeOptions);
+                this.append(batchSerial);
+                this.append(batchStatus);
+                this.append(writeTiming);
+            }
             operationMode = newOperationMode;
             if (nfcManager != null) {
                 nfcManager.setNdefMode(ndefMode);
+                nfcManager.setOperationMode(newOperationMode);
             }
         }
     }
 
     /**
      * Callback when a tag was found. The NFC manager will then
-     * establish a new thread and call this method, so that commands can be issued
-     * to the tag.
+     * call this method from its worker thread, so that commands can be issued
+     * to the tag. Tags are processed one after another.
      */
     public void tagReady() {
+        scanResult = ScanHistory.RESULT_NONE;
+        // Show all alerts of this tag at once when it is done
+        notifier.beginSession();
+        showLastScan(nfcManager.getCurrentUid());
         try {
             /*if (operationMode != READ_TAG)
             {
@@ -394,47 +692,20 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
             // doesn't succeed at all.
             ndconn.readNDEF();
             }*/
+            if (isNdefWriteOperationMode(operationMode)) {
+                if (writeOptions.isSelected(OPTION_BATCH)) {
+                    // Write the pre-compiled message, personalized for this tag
+                    writeBatchTag();
+                } else {
+                    writeCurrentMessage();
+                }
+                return;
+            }
             // Call the handling method depending on the current operation mode.
             switch (operationMode) {
                 case READ_TAG:
                     nfcManager.readNDEFMessage();
                     break;
-                case WRITE_SP_TAG: {
-                    boolean writeMessages[] = new boolean[posterEnabledMessages.size()];
-                    posterEnabledMessages.getSelectedFlags(writeMessages);
-                    nfcManager.writeSmartPoster(writeMessages, tagUrl.getString(), tagText.getString(), (byte) posterAction.getSelectedIndex(), getSelectedImageName());
-                    break;
-                }
-                case WRITE_IMAGE_TAG:
-                    nfcManager.writeImage(getSelectedImageName());
-                    break;
-                case WRITE_URI_TAG:
-                    nfcManager.writeUri(tagUrl.getString());
-                    break;
-                case WRITE_TEXT_TAG:
-                    nfcManager.writeText(tagText.getString(), tagTextLanguage.getString());
-                    break;
-                case WRITE_SMS_TAG: {
-                    boolean writeMessages[] = new boolean[tagSmsEnabledMessages.size()];
-                    tagSmsEnabledMessages.getSelectedFlags(writeMessages);
-                    nfcManager.writeSms(writeMessages, tagSmsNumber.getString(), tagSmsBody.getString(), tagText.getString(), (byte) posterAction.getSelectedIndex());
-                    break;
-                }
-                case WRITE_ANNOTATED_URL_TAG:
-                    nfcManager.writeAnnotatedUrl(tagUrl.getString(), tagText.getString());
-                    break;
-                case WRITE_GEO_TAG:
-                    nfcManager.writeGeo(Double.parseDouble(tagLatitude.getString()), Double.parseDouble(tagLongitude.getString()), tagGeoType.getSelectedIndex());
-                    break;
-                case WRITE_CUSTOM_TAG:
-                    nfcManager.writeCustom(tagTypeUri.getString(), tagCustomPayload.getString().getBytes("utf-8"));
-                    break;
-                case WRITE_COMBINATION_TAG:
-                    nfcManager.writeCombination(tagUrl.getString(), tagTypeUri.getString(), tagCustomPayload.getString().getBytes("utf-8"));
-                    break;
-                case WRITE_VCALENDAR_TAG:
-                    nfcManager.writeVcalendar(tagCalSummary.getString(), tagCalStart.getDate(), tagCalEnd.getDate(), false);
-                    break;
                 case READ_RAW_TAG: {
                     nfcManager.readRawData();
                     break; }
@@ -444,10 +715,12 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
                         displayAlert("No data file", "Didn't find data file in " + TagFileManager.nfcDir(), AlertType.ERROR);
                     } else {
                         displayAlert("Using file", fileName, AlertType.INFO);
-                        byte[] data = TagFileManager.readFile(fileName);
-                        nfcManager.writeRawData(data);
+                        nfcManager.writeRawFile(fileName, rawWriteOptions.isSelected(RAW_OPTION_CHANGED_ONLY), rawWriteOptions.isSelected(RAW_OPTION_TRAILERS));
                     }
                     break; }
+                case MIFARE_BLOCKS_TAG:
+                    runBlockOperation();
+                    break;
                 case CLONE_TAG:
                     if (cloneStatus == 1) {
                         // Read tag
@@ -470,8 +743,374 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
 
         } catch (IOException ex) {
             displayAlert("IOException", "Error loading image" + ex.toString(), AlertType.ERROR);
-        } 
+        } catch (NumberFormatException ex) {
+            displayAlert("Invalid number", ex.toString(), AlertType.ERROR);
+        } catch (IllegalArgumentException ex) {
+            displayAlert("Unable to encode message", ex.toString(), AlertType.ERROR);
+        } finally {
+            scanHistory.add(nfcManager.getCurrentUid(),
+                    nfcManager.isNdefSession() ? ScanHistory.TARGET_NDEF : ScanHistory.TARGET_MIFARE,
+                    operationMode, scanResult, nfcManager.getDetectionTime(), nfcManager.getPayloadHash());
+            notifier.endSession();
+        }
+    }
+    
+    /**
+     * Inform about the previous scan of the tag, if it is in the history.
+     * @param uid UID of the current tag.
+     */
+    private void showLastScan(final String uid) {
+        final byte[] lastScan = scanHistory.getLastScan(uid);
+        if (lastScan != null) {
+            final int result = lastScan[ScanHistory.OFFSET_RESULT];
+            displayAlert("Scanned before", "Last scan of " + uid + ": "
+                    + new Date(ScanHistory.getTime(lastScan)) + ", "
+                    + ((result >= 0 && result < scanResultNames.length) ? scanResultNames[result] : "unknown"),
+                    AlertType.INFO);
+        }
+    }
 
+    /**
+     * Run the Mifare block operation selected in the UI. Only the blocks
+     * needed for the operation are transferred.
+     * @throws NumberFormatException if a number field is empty.
+     */
+    private void runBlockOperation() {
+        final int sector = Integer.parseInt(blockSector.getString());
+        switch (blockOperation.getSelectedIndex()) {
+            case BLOCK_OP_READ_SECTORS:
+                nfcManager.readMifareSectors(sector, Integer.parseInt(blockSectorCount.getString()));
+                break;
+            case BLOCK_OP_READ_VALUE:
+                nfcManager.readMifareValue(sector, Integer.parseInt(blockIndex.getString()));
+                break;
+            case BLOCK_OP_INCREMENT:
+                nfcManager.changeMifareValue(sector, Integer.parseInt(blockIndex.getString()), Integer.parseInt(blockAmount.getString()));
+                break;
+            case BLOCK_OP_DECREMENT:
+                nfcManager.changeMifareValue(sector, Integer.parseInt(blockIndex.getString()), -Integer.parseInt(blockAmount.getString()));
+                break;
+            case BLOCK_OP_TRANSFER:
+                nfcManager.transferMifareValue(sector, Integer.parseInt(blockIndex.getString()), Integer.parseInt(blockTarget.getString()));
+                break;
+        }
+    }
+    
+    /**
+     * Write the next tag in batch mode. The message is compiled from the
+     * current settings when writing the first tag, afterwards only the
+     * serial number is patched into the compiled message.
+     * @throws IOException if the message can't be encoded.
+     */
+    private void writeBatchTag() throws IOException {
+        if (!batchProvisioner.isCompiled()) {
+            encodeMessage(operationMode, tagEncoder);
+            if (batchProvisioner.compile(tagEncoder.getBuffer(), tagEncoder.getLength()) == 0) {
+                displayAlert("Batch", "No ## field found - writing the same message to every tag", AlertType.WARNING);
+            }
+        }
+        final long serial = batchProvisioner.getNextSerial();
+        final byte[] message = batchProvisioner.nextMessage(serial);
+        if (message == null) {
+            // Writing a truncated serial would create duplicates
+            displayAlert("Batch", "Serial " + serial + " doesn't fit into the ## field - tag not written", AlertType.ERROR);
+        } else if (nfcManager.writeMessage(message, message.length, "Tag " + serial + " written")) {
+            batchProvisioner.tagWritten();
+            batchSerial.setString(String.valueOf(batchProvisioner.getNextSerial()));
+        }
+        updateBatchStatus();
+        updateWriteTiming();
+    }
+    
+    /**
+     * Write the message of the current write mode. Uses the message
+     * pre-encoded in the background if it matches the current settings,
+     * otherwise the message is encoded now.
+     * @throws IOException if the message can't be encoded.
+     */
+    private void writeCurrentMessage() throws IOException {
+        byte[] message = preEncoder.getMessage(getMessageKey(operationMode));
+        final boolean prebuilt = (message != null);
+        int messageLength;
+        if (prebuilt) {
+            messageLength = message.length;
+        } else {
+            encodeMessage(operationMode, tagEncoder);
+            message = tagEncoder.getBuffer();
+            messageLength = tagEncoder.getLength();
+        }
+        // Only known once a write to this tag failed for lack of space
+        final int capacity = nfcManager.getLearnedTagCapacity();
+        int usedFallback = MessagePlanner.FALLBACK_NONE;
+        if (!MessagePlanner.fits(messageLength, capacity) && writeOptions.isSelected(OPTION_SHRINK_TO_FIT)) {
+            // Try the configured fallbacks, before touching the tag. Uses an
+            // own encoder, so that the message is kept if none of them fits.
+            for (int fallback = MessagePlanner.FALLBACK_DROP_ICON; fallback <= MessagePlanner.FALLBACK_DROP_TITLE; fallback++) {
+                if (encodeMessage(operationMode, fallbackEncoder, fallback) && MessagePlanner.fits(fallbackEncoder.getLength(), capacity)) {
+                    message = fallbackEncoder.getBuffer();
+                    messageLength = fallbackEncoder.getLength();
+                    usedFallback = fallback;
+                    displayAlert("Shrink to fit", "Left out " + getDroppedParts(operationMode, fallback) + " to fit the tag", AlertType.INFO);
+                    break;
+                }
+            }
+        }
+        if (!nfcManager.writeMessage(message, messageLength, getWriteSuccessText(operationMode))) {
+            if (nfcManager.isLastWriteOverflow() && writeOptions.isSelected(OPTION_SHRINK_TO_FIT)
+                    && (operationMode == WRITE_SP_TAG || operationMode == WRITE_SMS_TAG)
+                    && usedFallback < MessagePlanner.FALLBACK_DROP_TITLE) {
+                displayAlert("Shrink to fit", "Touch the tag again to write the message without optional parts", AlertType.INFO);
+            }
+        } else if (nfcManager.isLastWriteSkipped()) {
+            // Only reading the tag, not part of the write times
+            updateWriteTiming();
+        } else {
+            final long writeTime = System.currentTimeMillis() - nfcManager.getDetectionTime();
+            if (prebuilt) {
+                prebuiltWrites++;
+                prebuiltWriteTime += writeTime;
+            } else {
+                inlineWrites++;
+                inlineWriteTime += writeTime;
+            }
+            updateWriteTiming();
+        }
+    }
+    
+    /**
+     * @param mode WRITE_SP_TAG or WRITE_SMS_TAG.
+     * @param fallback one of the MessagePlanner.FALLBACK_* levels.
+     * @return description of the optional parts left out at the fallback level.
+     */
+    private static String getDroppedParts(final int mode, final int fallback) {
+        if (fallback >= MessagePlanner.FALLBACK_DROP_TITLE) {
+            return (mode == WRITE_SP_TAG) ? "the icon, action and title" : "the action and title";
+        } else if (fallback >= MessagePlanner.FALLBACK_DROP_ACTION) {
+            return (mode == WRITE_SP_TAG) ? "the icon and action" : "the action";
+        }
+        return "the icon";
+    }
+    
+    /**
+     * Start encoding the message of the current mode in the background.
+     */
+    private void requestPreEncoding() {
+        if (isNdefWriteOperationMode(operationMode)) {
+            preEncoder.request(operationMode);
+        }
+    }
+    
+    /**
+     * Show the average time from touching a tag until the message was
+     * written, with and without a pre-encoded message.
+     */
+    private void updateWriteTiming() {
+        writeTiming.setText("Pre-encoded: " + (prebuiltWrites > 0 ? prebuiltWriteTime / prebuiltWrites : 0) + " ms (" + prebuiltWrites + " tags)\n" +
+                "Encoded on touch: " + (inlineWrites > 0 ? inlineWriteTime / inlineWrites : 0) + " ms (" + inlineWrites + " tags)" +
+                (nfcManager != null ? "\nWritten: " + nfcManager.getPerformedWrites() + ", skipped identical: " + nfcManager.getSkippedWrites() : ""));
+    }
+    
+    /**
+     * Show the number of tags written and the speed of the current batch.
+     */
+    private void updateBatchStatus() {
+        batchStatus.setText(batchProvisioner.getTagsWritten() + " tags written, " + batchProvisioner.getTagsPerMinute() + " tags / min");
+    }
+    
+    /**
+     * Create a key from the operation mode and all settings that define
+     * the message to write.
+     * @param mode operation mode that defines the message type.
+     * @return key for the message, null if the mode doesn't write a message
+     * based on the settings.
+     */
+    public String getMessageKey(final int mode) {
+        if (!isNdefWriteOperationMode(mode)) {
+            return null;
+        }
+        StringBuffer key = new StringBuffer();
+        key.append(mode);
+        // The UI elements of modes that were never activated don't exist
+        appendKeyFlags(key, posterEnabledMessages);
+        appendKeyFlags(key, tagSmsEnabledMessages);
+        appendKeyIndex(key, posterAction);
+        appendKeyIndex(key, tagChooseImage);
+        appendKeyIndex(key, tagGeoType);
+        appendKeyText(key, tagUrl);
+        appendKeyText(key, tagText);
+        appendKeyText(key, tagTextLanguage);
+        appendKeyText(key, tagTypeUri);
+        appendKeyText(key, tagCustomPayload);
+        appendKeyText(key, tagSmsNumber);
+        appendKeyText(key, tagSmsBody);
+        appendKeyText(key, tagLatitude);
+        appendKeyText(key, tagLongitude);
+        appendKeyText(key, tagGeoDecimals);
+        appendKeyText(key, tagCalSummary);
+        appendKeyDate(key, tagCalStart);
+        appendKeyDate(key, tagCalEnd);
+        return key.toString();
+    }
+    
+    /**
+     * @return number of decimals for geo coordinates as entered in the UI,
+     * or the default if the field is empty.
+     */
+    private int getGeoDecimals() {
+        final String decimals = tagGeoDecimals.getString();
+        return decimals.length() == 0 ? GeoFormatter.DEFAULT_DECIMALS : Integer.parseInt(decimals);
+    }
+
+    /**
+     * Append the selection state of all entries of the choice group to the key.
+     */
+    private void appendKeyFlags(StringBuffer key, ChoiceGroup choiceGroup) {
+        key.append('|');
+        if (choiceGroup == null) {
+            return;
+        }
+        for (int i = 0; i < choiceGroup.size(); i++) {
+            key.append(choiceGroup.isSelected(i) ? '1' : '0');
+        }
+    }
+    
+    /**
+     * Append the selected index of the choice group to the key.
+     */
+    private void appendKeyIndex(StringBuffer key, ChoiceGroup choiceGroup) {
+        key.append('|');
+        if (choiceGroup != null) {
+            key.append(choiceGroup.getSelectedIndex());
+        }
+    }
+    
+    /**
+     * Append the contents of the text field to the key.
+     */
+    private void appendKeyText(StringBuffer key, TextField textField) {
+        key.append('|');
+        if (textField != null) {
+            key.append(textField.getString());
+        }
+    }
+    
+    /**
+     * Append the date of the date field to the key.
+     */
+    private void appendKeyDate(StringBuffer key, DateField dateField) {
+        key.append('|');
+        if (dateField != null && dateField.getDate() != null) {
+            key.append(dateField.getDate().getTime());
+        }
+    }
+    
+    /**
+     * @param mode NDEF write operation mode.
+     * @return text to show after the message of the mode was written.
+     */
+    private String getWriteSuccessText(final int mode) {
+        switch (mode) {
+            case WRITE_SP_TAG:
+                return "Smart Poster written";
+            case WRITE_URI_TAG:
+                return "URI written";
+            case WRITE_TEXT_TAG:
+                return "Text written";
+            case WRITE_SMS_TAG:
+                return "Sms tag written";
+            case WRITE_ANNOTATED_URL_TAG:
+                return "Annotated URL tag written";
+            case WRITE_IMAGE_TAG:
+                return "Image written";
+            case WRITE_GEO_TAG:
+                return "Geo URI written";
+            case WRITE_CUSTOM_TAG:
+                return "Custom tag written";
+            case WRITE_COMBINATION_TAG:
+                return "Combination tag written";
+            case WRITE_VCALENDAR_TAG:
+                return "vCalendar written";
+            default:
+                return "Tag written";
+        }
+    }
+    
+    /**
+     * Encode the message of an NDEF write mode, based on the current
+     * settings in the UI.
+     * @param mode operation mode that defines the message type.
+     * @param enc encoder that receives the message. Will be reset first.
+     * @return true if the mode writes an NDEF message and it was encoded,
+     * false for all other modes.
+     * @throws IOException if the message can't be encoded.
+     */
+    public boolean encodeMessage(final int mode, NdefEncoder enc) throws IOException {
+        return encodeMessage(mode, enc, MessagePlanner.FALLBACK_NONE);
+    }
+    
+    /**
+     * Encode the message of an NDEF write mode, leaving out optional parts
+     * of Smart Posters to make the message smaller.
+     * @param mode operation mode that defines the message type.
+     * @param enc encoder that receives the message. Will be reset first.
+     * @param fallback one of the MessagePlanner.FALLBACK_* levels.
+     * @return true if the message was encoded, false if the mode doesn't
+     * write an NDEF message or has no optional parts to leave out.
+     * @throws IOException if the message can't be encoded.
+     */
+    private boolean encodeMessage(final int mode, NdefEncoder enc, final int fallback) throws IOException {
+        if (fallback != MessagePlanner.FALLBACK_NONE && mode != WRITE_SP_TAG && mode != WRITE_SMS_TAG) {
+            return false;
+        }
+        enc.reset();
+        switch (mode) {
+            case WRITE_SP_TAG: {
+                boolean writeMessages[] = new boolean[posterEnabledMessages.size()];
+                posterEnabledMessages.getSelectedFlags(writeMessages);
+                // Flags: URL, Title, Action, Icon
+                writeMessages[3] &= fallback < MessagePlanner.FALLBACK_DROP_ICON;
+                writeMessages[2] &= fallback < MessagePlanner.FALLBACK_DROP_ACTION;
+                writeMessages[1] &= fallback < MessagePlanner.FALLBACK_DROP_TITLE;
+                nfcManager.encodeSmartPoster(enc, writeMessages, tagUrl.getString(), tagText.getString(), (byte) posterAction.getSelectedIndex(), getSelectedImageName());
+                break;
+            }
+            case WRITE_IMAGE_TAG:
+                nfcManager.encodeImage(enc, getSelectedImageName());
+                break;
+            case WRITE_URI_TAG:
+                nfcManager.encodeUri(enc, tagUrl.getString());
+                break;
+            case WRITE_TEXT_TAG:
+                nfcManager.encodeText(enc, tagText.getString(), tagTextLanguage.getString());
+                break;
+            case WRITE_SMS_TAG: {
+                boolean writeMessages[] = new boolean[tagSmsEnabledMessages.size()];
+                tagSmsEnabledMessages.getSelectedFlags(writeMessages);
+                // Flags: Title, Action
+                writeMessages[1] &= fallback < MessagePlanner.FALLBACK_DROP_ACTION;
+                writeMessages[0] &= fallback < MessagePlanner.FALLBACK_DROP_TITLE;
+                nfcManager.encodeSms(enc, writeMessages, tagSmsNumber.getString(), tagSmsBody.getString(), tagText.getString(), (byte) posterAction.getSelectedIndex());
+                break;
+            }
+            case WRITE_ANNOTATED_URL_TAG:
+                nfcManager.encodeAnnotatedUrl(enc, tagUrl.getString(), tagText.getString());
+                break;
+            case WRITE_GEO_TAG:
+                nfcManager.encodeGeo(enc, Double.parseDouble(tagLatitude.getString()), Double.parseDouble(tagLongitude.getString()), tagGeoType.getSelectedIndex(), getGeoDecimals());
+                break;
+            case WRITE_CUSTOM_TAG:
+                nfcManager.encodeCustom(enc, tagTypeUri.getString(), tagCustomPayload.getString().getBytes("utf-8"));
+                break;
+            case WRITE_COMBINATION_TAG:
+                nfcManager.encodeCombination(enc, tagUrl.getString(), tagTypeUri.getString(), tagCustomPayload.getString().getBytes("utf-8"));
+                break;
+            case WRITE_VCALENDAR_TAG:
+                nfcManager.encodeVcalendar(enc, tagCalSummary.getString(), tagCalStart.getDate(), tagCalEnd.getDate(), false);
+                break;
+            default:
+                return false;
+        }
+        return true;
     }
     
     /**
@@ -492,7 +1131,9 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
             operationModeSelector.setSelectedIndex(newOperationMode, true);
             this.append(operationModeSelector);
             String instructionsTxt;
-            if (newOperationMode == WRITE_RAW_TAG) {
+            if (newOperationMode == MIFARE_BLOCKS_TAG) {
+                instructionsTxt = "Touch a Mifare tag to run the selected operation";
+            } else if (newOperationMode == WRITE_RAW_TAG) {
                 final String fileName = TagFileManager.getNewestNfcFile();
                 if (fileName == null) {
                     instructionsTxt = "No data file available in " + TagFileManager.nfcDir() + "\nSave a raw tag first.";
@@ -564,6 +1205,16 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
         return !(operationMode == READ_TAG || operationMode == READ_RAW_TAG || operationMode == DELETE_TAG || operationMode == CLONE_TAG);
     }
     
+    /**
+     * Check if the specified operating mode writes an NDEF message that is
+     * based on the settings in the UI.
+     * @param operationMode operation mode to check
+     * @return true for all write modes except the raw / Mifare block modes.
+     */
+    private boolean isNdefWriteOperationMode(final int operationMode) {
+        return isWriteOperationMode(operationMode) && operationMode != WRITE_RAW_TAG && operationMode != MIFARE_BLOCKS_TAG;
+    }
+    
     private String getSelectedImageName() {
         switch (tagChooseImage.getSelectedIndex()) {
             case 0:
@@ -589,7 +1240,60 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
         } else if (command == backCommand) {
             // Go back to read mode
             activateOperationMode(READ_TAG);
+        } else if (command == diagnosticsCommand) {
+            showDiagnostics();
+        } else if (command == closeDiagnosticsCommand) {
+            Display.getDisplay(midlet).setCurrent(this);
+        } else if (command == exportCommand) {
+            // Writing the file may take a while, don't block the UI thread
+            new Thread(new Runnable() {
+                public void run() {
+                    exportDiagnostics();
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Show the startup times, the number of scans and the latency of each
+     * phase of processing a tag, per operation mode.
+     */
+    private void showDiagnostics() {
+        if (diagnosticsForm == null) {
+            diagnosticsForm = new Form("Diagnostics");
+            closeDiagnosticsCommand = new Command("Back", Command.BACK, 1);
+            exportCommand = new Command("Export", Command.SCREEN, 1);
+            diagnosticsForm.addCommand(closeDiagnosticsCommand);
+            diagnosticsForm.addCommand(exportCommand);
+            diagnosticsForm.setCommandListener(this);
         }
+        final long now = System.currentTimeMillis();
+        StringBuffer text = new StringBuffer(512);
+        text.append("Startup: UI ").append(startupUiTime).append(" ms, NFC ").append(startupNfcTime).append(" ms\n");
+        text.append("Scans: ").append(scanHistory.getScanCount(now - 3600000, now + 1))
+                .append(" in the last hour, ").append(scanHistory.getScanCount()).append(" total\n");
+        text.append("Latency p50 / p95 / p99:\n");
+        nfcManager.getLatencyStats().appendSummary(text, operatingModeNames);
+        diagnosticsForm.deleteAll();
+        diagnosticsForm.append(text.toString());
+        Display.getDisplay(midlet).setCurrent(diagnosticsForm);
+    }
+
+    /**
+     * Save the startup times and the latency histograms to a CSV file in
+     * the data directory and show where it was saved.
+     */
+    private void exportDiagnostics() {
+        StringBuffer text = new StringBuffer(2048);
+        text.append("# platform,").append(System.getProperty("microedition.platform")).append('\n');
+        text.append("# startup ui ms,").append(startupUiTime).append('\n');
+        text.append("# startup nfc ms,").append(startupNfcTime).append('\n');
+        nfcManager.getLatencyStats().appendCsv(text, operatingModeNames);
+        final byte[] data = text.toString().getBytes();
+        final String result = TagFileManager.saveDiagnostics("Latency", data, data.length);
+        Alert alert = new Alert("Export", result, null, AlertType.INFO);
+        alert.setTimeout(Alert.FOREVER);
+        Display.getDisplay(midlet).setCurrent(alert, diagnosticsForm);
     }
 
     /**
@@ -611,20 +1315,41 @@ public class NfcMenuForm extends Form implements CommandListener, ItemStateListe
 
     /**
      * Utility function to show a Java ME alert, as used for informing the user
-     * about events in this demo app.
+     * about events in this demo app. The alert is shown by the UI thread;
+     * all alerts of a tag are combined into one.
      * @param title title text to use for the message box.
      * @param text text to show as the main message in the box.
      * @param type one of the available alert types, defining the icon, sound
      * and display length.
      */
     public void displayAlert(final String title, final String text, final AlertType type) {
-        Alert al = new Alert(title, text, null, type);
-        Display.getDisplay(midlet).setCurrent(al, this);
+        if (type == AlertType.ERROR) {
+            setScanResult(ScanHistory.RESULT_ERROR);
+        } else if (type == AlertType.WARNING) {
+            setScanResult(ScanHistory.RESULT_WARNING);
+        } else if (type == AlertType.CONFIRMATION) {
+            setScanResult(ScanHistory.RESULT_SUCCESS);
+        }
+        notifier.alert(title, text, type);
+    }
+
+    /**
+     * Keep the more severe result for the tag that is currently processed.
+     * @param result one of ScanHistory.RESULT_*.
+     */
+    private void setScanResult(final int result) {
+        if (result > scanResult) {
+            scanResult = result;
+        }
     }
 
     public void logTagInfo(String text) {
         // Replace previous contents with new text
-        tagContents.setString(text);
+        notifier.setContents(text);
+    }
+
+    public void tagProgress(final String text, final int done, final int total) {
+        notifier.setProgress(text, done, total);
     }
 
     
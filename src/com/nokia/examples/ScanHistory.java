@@ -0,0 +1,404 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import java.util.Hashtable;
+import java.util.Vector;
+import javax.microedition.rms.RecordEnumeration;
+import javax.microedition.rms.RecordStore;
+import javax.microedition.rms.RecordStoreException;
+
+/**
+ * Persistent history of all processed tags, to audit what a station read
+ * and wrote.
+ *
+ * Each scan is stored as a record with a fixed size in the record store.
+ * Multi-byte numbers are big endian:
+ * <pre>
+ *   0  UID as ASCII string, padded with 0 (20)
+ *  20  target type (TARGET_*)
+ *  21  operation mode of the app
+ *  22  result (RESULT_*)
+ *  23  reserved
+ *  24  time when the tag was detected, ms since 1970 (8)
+ *  32  CRC-32 of the data read from / written to the tag, 0 if none (4)
+ * </pre>
+ * The records are loaded once into two indexes: the record of the last
+ * scan of each UID, and the record IDs sorted by time for finding the scans
+ * of a time range with a binary search. Afterwards, queries only read the
+ * matching records. The indexes are built by a background thread started
+ * with preload(), so that a tag is never delayed by walking the whole
+ * history; scans added in the meantime are only stored and indexed once
+ * the walk is done. The oldest scans are removed once the history is full.
+ *
+ * @author Andreas Jakl
+ */
+public class ScanHistory {
+    /** Target type: NDEF tag. */
+    public static final int TARGET_NDEF = 1;
+    /** Target type: Mifare tag accessed without NDEF. */
+    public static final int TARGET_MIFARE = 2;
+    /** Result: no result was reported. */
+    public static final int RESULT_NONE = 0;
+    /** Result: the operation was successful. */
+    public static final int RESULT_SUCCESS = 1;
+    /** Result: the operation was incomplete, e.g. the tag was removed too early. */
+    public static final int RESULT_WARNING = 2;
+    /** Result: the operation failed. */
+    public static final int RESULT_ERROR = 3;
+
+    /** Offset of the UID. */
+    public static final int OFFSET_UID = 0;
+    /** Offset of the target type. */
+    public static final int OFFSET_TARGET_TYPE = 20;
+    /** Offset of the operation mode. */
+    public static final int OFFSET_MODE = 21;
+    /** Offset of the result. */
+    public static final int OFFSET_RESULT = 22;
+    /** Offset of the time stamp. */
+    public static final int OFFSET_TIME = 24;
+    /** Offset of the payload checksum. */
+    public static final int OFFSET_PAYLOAD_HASH = 32;
+    /** Size of a record. */
+    public static final int RECORD_SIZE = 36;
+
+    /** Name of the record store. */
+    private static final String recordStoreName = "ScanHistory";
+    /** Maximum length of the UID string. */
+    private static final int maxUidLength = OFFSET_TARGET_TYPE - OFFSET_UID;
+    /** Maximum number of scans to keep. The oldest scans are removed first. */
+    private static final int maxScans = 1000;
+
+    /** Whether the indexes have been loaded. */
+    private boolean loaded = false;
+    /** Whether a thread is currently building the indexes. */
+    private boolean loading = false;
+    /** Record IDs of the scans added while the indexes were built (Integer). */
+    private final Vector pendingIds = new Vector();
+    /** Record ID of the last scan of each UID (String -> Integer). */
+    private final Hashtable lastScans = new Hashtable();
+    /** Record IDs of all scans, sorted by time. */
+    private int[] recordIds = new int[16];
+    /** Time of each scan of recordIds. */
+    private long[] times = new long[16];
+    /** Number of scans in the indexes. */
+    private int numScans = 0;
+    /** Buffer for writing a record. */
+    private final byte[] record = new byte[RECORD_SIZE];
+
+    /**
+     * Build the indexes in an own thread, so that they are ready when the
+     * first tag is touched.
+     */
+    public void preload() {
+        new Thread() {
+            public void run() {
+                load();
+            }
+        }.start();
+    }
+
+    /**
+     * Add a scan to the history. Doesn't wait for the indexes to be built.
+     * @param uid UID of the tag.
+     * @param targetType TARGET_* type of the connection to the tag.
+     * @param mode operation mode of the app.
+     * @param result RESULT_* of the operation.
+     * @param time time when the tag was detected.
+     * @param payloadHash CRC-32 of the data read from / written to the tag.
+     */
+    public synchronized void add(final String uid, final int targetType, final int mode, final int result,
+            final long time, final int payloadHash) {
+        // Clear the record, as the buffer is reused
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            record[i] = 0;
+        }
+        final int uidLength = (uid == null) ? 0 : Math.min(uid.length(), maxUidLength);
+        for (int i = 0; i < uidLength; i++) {
+            record[OFFSET_UID + i] = (byte) uid.charAt(i);
+        }
+        record[OFFSET_TARGET_TYPE] = (byte) targetType;
+        record[OFFSET_MODE] = (byte) mode;
+        record[OFFSET_RESULT] = (byte) result;
+        MifareDump.writeInt(record, OFFSET_TIME, (int) (time >>> 32));
+        MifareDump.writeInt(record, OFFSET_TIME + 4, (int) time);
+        MifareDump.writeInt(record, OFFSET_PAYLOAD_HASH, payloadHash);
+        RecordStore rs = null;
+        try {
+            rs = RecordStore.openRecordStore(recordStoreName, true);
+            final int recordId = rs.addRecord(record, 0, RECORD_SIZE);
+            if (loaded) {
+                addToIndex(recordId, getUid(record), time);
+                while (numScans > maxScans) {
+                    removeOldest(rs);
+                }
+            } else {
+                pendingIds.addElement(new Integer(recordId));
+            }
+        } catch (RecordStoreException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeRecordStore(rs);
+        }
+    }
+
+    /**
+     * @param uid UID of the tag.
+     * @return record of the last scan of the tag, null if the tag is
+     * not part of the history or the indexes are not built yet.
+     */
+    public synchronized byte[] getLastScan(final String uid) {
+        if (!loaded || uid == null) {
+            return null;
+        }
+        final Integer recordId = (Integer) lastScans.get(uid);
+        if (recordId == null) {
+            return null;
+        }
+        RecordStore rs = null;
+        try {
+            rs = RecordStore.openRecordStore(recordStoreName, true);
+            return rs.getRecord(recordId.intValue());
+        } catch (RecordStoreException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeRecordStore(rs);
+        }
+        return null;
+    }
+
+    /**
+     * @param from start of the time range, inclusive.
+     * @param to end of the time range, exclusive.
+     * @return number of scans within the time range.
+     */
+    public int getScanCount(final long from, final long to) {
+        load();
+        synchronized (this) {
+            return Math.max(findTime(to) - findTime(from), 0);
+        }
+    }
+
+    /**
+     * @param from start of the time range, inclusive.
+     * @param to end of the time range, exclusive.
+     * @return records of the scans within the time range, oldest first.
+     */
+    public Vector getScans(final long from, final long to) {
+        load();
+        synchronized (this) {
+            final int first = findTime(from);
+            final int end = findTime(to);
+            Vector scans = new Vector(Math.max(end - first, 0));
+            if (end <= first) {
+                return scans;
+            }
+            RecordStore rs = null;
+            try {
+                rs = RecordStore.openRecordStore(recordStoreName, true);
+                for (int i = first; i < end; i++) {
+                    scans.addElement(rs.getRecord(recordIds[i]));
+                }
+            } catch (RecordStoreException ex) {
+                ex.printStackTrace();
+            } finally {
+                closeRecordStore(rs);
+            }
+            return scans;
+        }
+    }
+
+    /**
+     * @return total number of scans in the history.
+     */
+    public int getScanCount() {
+        load();
+        synchronized (this) {
+            return numScans;
+        }
+    }
+
+    /**
+     * @param record record of a scan.
+     * @return UID of the tag.
+     */
+    public static String getUid(final byte[] record) {
+        StringBuffer uid = new StringBuffer(maxUidLength);
+        for (int i = 0; i < maxUidLength && record[OFFSET_UID + i] != 0; i++) {
+            uid.append((char) (record[OFFSET_UID + i] & 0xFF));
+        }
+        return uid.toString();
+    }
+
+    /**
+     * @param record record of a scan.
+     * @return time when the tag was detected.
+     */
+    public static long getTime(final byte[] record) {
+        return ((long) MifareDump.readInt(record, OFFSET_TIME) << 32)
+                | (MifareDump.readInt(record, OFFSET_TIME + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param record record of a scan.
+     * @return CRC-32 of the data read from / written to the tag.
+     */
+    public static int getPayloadHash(final byte[] record) {
+        return MifareDump.readInt(record, OFFSET_PAYLOAD_HASH);
+    }
+
+    /**
+     * Build the indexes from the record store, only done once. If another
+     * thread is already building them, waits until it is done.
+     * The records are walked without holding the lock, so that add() can
+     * store new scans in the meantime; the indexes are not accessed by
+     * other threads until loaded is set.
+     */
+    private void load() {
+        synchronized (this) {
+            while (loading) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // Check again
+                }
+            }
+            if (loaded) {
+                return;
+            }
+            loading = true;
+        }
+        int lastWalkedId = 0;
+        RecordStore rs = null;
+        try {
+            rs = RecordStore.openRecordStore(recordStoreName, true);
+            RecordEnumeration re = rs.enumerateRecords(null, null, false);
+            byte[] buffer = new byte[RECORD_SIZE];
+            while (re.hasNextElement()) {
+                final int recordId = re.nextRecordId();
+                if (rs.getRecordSize(recordId) == RECORD_SIZE) {
+                    rs.getRecord(recordId, buffer, 0);
+                    addToIndex(recordId, getUid(buffer), getTime(buffer));
+                }
+                lastWalkedId = Math.max(lastWalkedId, recordId);
+            }
+            re.destroy();
+        } catch (RecordStoreException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeRecordStore(rs);
+        }
+        synchronized (this) {
+            rs = null;
+            try {
+                rs = RecordStore.openRecordStore(recordStoreName, true);
+                // Scans added during the walk; record IDs increase with every
+                // added record, so the walk included those up to lastWalkedId
+                for (int i = 0; i < pendingIds.size(); i++) {
+                    final int recordId = ((Integer) pendingIds.elementAt(i)).intValue();
+                    if (recordId > lastWalkedId) {
+                        final byte[] pending = rs.getRecord(recordId);
+                        addToIndex(recordId, getUid(pending), getTime(pending));
+                    }
+                }
+                while (numScans > maxScans) {
+                    removeOldest(rs);
+                }
+            } catch (RecordStoreException ex) {
+                ex.printStackTrace();
+            } finally {
+                closeRecordStore(rs);
+            }
+            pendingIds.removeAllElements();
+            loaded = true;
+            loading = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Add a scan to the indexes, keeping them sorted by time.
+     */
+    private void addToIndex(final int recordId, final String uid, final long time) {
+        if (numScans == recordIds.length) {
+            int[] newIds = new int[numScans * 2];
+            long[] newTimes = new long[numScans * 2];
+            System.arraycopy(recordIds, 0, newIds, 0, numScans);
+            System.arraycopy(times, 0, newTimes, 0, numScans);
+            recordIds = newIds;
+            times = newTimes;
+        }
+        // Usually appended at the end, as scans are added in order
+        int pos = numScans;
+        while (pos > 0 && times[pos - 1] > time) {
+            pos--;
+        }
+        System.arraycopy(recordIds, pos, recordIds, pos + 1, numScans - pos);
+        System.arraycopy(times, pos, times, pos + 1, numScans - pos);
+        recordIds[pos] = recordId;
+        times[pos] = time;
+        numScans++;
+        // Record IDs increase with every added record
+        final Integer last = (Integer) lastScans.get(uid);
+        if (last == null || last.intValue() < recordId) {
+            lastScans.put(uid, new Integer(recordId));
+        }
+    }
+
+    /**
+     * Remove the oldest scan from the record store and the indexes.
+     */
+    private void removeOldest(RecordStore rs) throws RecordStoreException {
+        final int recordId = recordIds[0];
+        byte[] oldest = rs.getRecord(recordId);
+        rs.deleteRecord(recordId);
+        numScans--;
+        System.arraycopy(recordIds, 1, recordIds, 0, numScans);
+        System.arraycopy(times, 1, times, 0, numScans);
+        final String uid = getUid(oldest);
+        final Integer last = (Integer) lastScans.get(uid);
+        if (last != null && last.intValue() == recordId) {
+            lastScans.remove(uid);
+        }
+    }
+
+    /**
+     * Binary search in the time index.
+     * @return position of the first scan at or after the time.
+     */
+    private int findTime(final long time) {
+        int low = 0;
+        int high = numScans;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void closeRecordStore(RecordStore rs) {
+        if (rs != null) {
+            try {
+                rs.closeRecordStore();
+            } catch (RecordStoreException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
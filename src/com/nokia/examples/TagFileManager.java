@@ -14,13 +14,16 @@
 ****************************************************************************/
 package com.nokia.examples;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Calendar;
 import java.util.Enumeration;
+import java.util.Vector;
 import javax.microedition.io.Connector;
 import javax.microedition.io.file.FileConnection;
+import javax.microedition.io.file.FileSystemListener;
 import javax.microedition.io.file.FileSystemRegistry;
 
 /**
@@ -43,6 +46,45 @@ public class TagFileManager {
      * File extension of the log files.
      */
     private final static String fileExt = ".txt";
+    /**
+     * File extension of binary tag dumps (see MifareDump).
+     */
+    public final static String DUMP_FILE_EXT = ".nfcd";
+    /**
+     * File extension of exported diagnostics. Not a data file extension,
+     * so that exports are never mistaken for tag data.
+     */
+    private final static String diagnosticsFileExt = ".csv";
+    /**
+     * Index of all data files in the data directory, in the order they
+     * were created. Consists of records with a fixed size, so that the
+     * newest files can be found without scanning the directory.
+     */
+    private final static String indexFileName = "index.dat";
+    /**
+     * Size of a record in the index file: length of the file name
+     * (2 bytes), followed by the UTF-8 encoded file name.
+     */
+    private final static int indexRecordSize = 128;
+    /** Number of bytes requested with each read when reading a file. */
+    private final static int readChunkSize = 512;
+    /** Name of the newest data file, null if not known yet. */
+    private static String newestFile = null;
+    /**
+     * Drive and directory of the data directory, null if it has to be
+     * resolved again from the available roots.
+     */
+    private static String cachedNfcDir = null;
+    /** True if the data directory on the cached root is known to exist. */
+    private static boolean dirChecked = false;
+    /** Listener that resets the cache when a drive is added or removed. */
+    private static FileSystemListener rootListener = null;
+    /** Background writer for queueTagInfo(), created when first needed. */
+    private static DumpWriter dumpWriter = null;
+    /** Last file name created without the counter, to detect names within the same second. */
+    private static String lastBaseName = null;
+    /** Number of file names created with lastBaseName so far. */
+    private static int sameNameCount = 0;
     
     /***
      * Log information about the tag to a file.
@@ -55,27 +97,170 @@ public class TagFileManager {
      * Error message if unsuccessful.
      */
     public static String logTagInfo(String tagType, final byte[] tagData) {
+        return logTagInfo(tagType, tagData, tagData.length, fileExt);
+    }
+    
+    /***
+     * Log information about the tag to a file.
+     * The file name will be selected automatically.
+     * @param tagType Class name of the tag type implementation. Will be added
+     * to the file name - everything after the last "." in the name.
+     * @param tagData Buffer containing the data to write into the log file.
+     * @param length Number of bytes of the buffer to write.
+     * @param extension File extension, including the ".".
+     * @return Drive, directory and filename of the created log file if
+     * successful. Doesn't include "file:///".
+     * Error message if unsuccessful.
+     */
+    public static String logTagInfo(String tagType, final byte[] tagData, final int length, final String extension) {
+        final String fileName = createFileName(tagType, extension);
+        final String result = writeDataFile(fileName, tagData, length);
+        if (result == null) {
+            return "Error: unable to write " + fileName;
+        }
+        Vector names = new Vector(1);
+        names.addElement(fileName);
+        addToIndex(names);
+        return result;
+    }
+    
+    /**
+     * Save diagnostic information of the app to a new file in the data
+     * directory. The file isn't a data file, so it isn't added to the index.
+     * @param name Name of the diagnostics, added to the file name.
+     * @param data Buffer containing the text to write.
+     * @param length Number of bytes of the buffer to write.
+     * @return Drive, directory and filename of the created file if
+     * successful. Doesn't include "file:///".
+     * Error message if unsuccessful.
+     */
+    public static String saveDiagnostics(final String name, final byte[] data, final int length) {
+        final String fileName = createFileName(name, diagnosticsFileExt);
+        final String result = writeDataFile(fileName, data, length);
+        if (result == null) {
+            return "Error: unable to write " + fileName;
+        }
+        return result;
+    }
+    
+    /**
+     * Queue information about the tag to be written to a file by the
+     * background writer, so that the caller doesn't have to wait for the
+     * file system. Waits if too many files are waiting to be written.
+     * The file can be read through readFile() right away.
+     * @param tagType Class name of the tag type implementation. Will be added
+     * to the file name - everything after the last "." in the name.
+     * @param tagData Buffer containing the data to write into the log file.
+     * Copied, so it can be reused after the call.
+     * @param length Number of bytes of the buffer to write.
+     * @param extension File extension, including the ".".
+     * @param callback informed if the file can't be written later on.
+     * @return Drive, directory and filename of the log file. Doesn't
+     * include "file:///".
+     */
+    public static String queueTagInfo(String tagType, final byte[] tagData, final int length, final String extension,
+            final InfoInterface callback) {
+        final String fileName = createFileName(tagType, extension);
+        if (!getDumpWriter().queue(fileName, tagData, length, callback)) {
+            return logTagInfo(tagType, tagData, length, extension);
+        }
+        synchronized (TagFileManager.class) {
+            newestFile = fileName;
+        }
+        return nfcDir() + fileName;
+    }
+    
+    /**
+     * Wait until all queued files are written.
+     */
+    public static void flush() {
+        final DumpWriter writer = dumpWriter;
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+    
+    /**
+     * Write all queued files and end the background writer.
+     * Called when the app is closed.
+     */
+    public static void shutdown() {
+        final DumpWriter writer = dumpWriter;
+        if (writer != null) {
+            writer.stop();
+        }
+    }
+    
+    private static synchronized DumpWriter getDumpWriter() {
+        if (dumpWriter == null) {
+            dumpWriter = new DumpWriter();
+        }
+        return dumpWriter;
+    }
+    
+    /**
+     * Compile the name of a new data file from the date and time.
+     * Names created within the same second get a counter after the time
+     * ("_01", "_02", ...), as existing files would be appended to. The
+     * counter keeps the names sorted in the order they were created.
+     * @param tagType Class name of the tag type implementation. Will be added
+     * to the file name - everything after the last "." in the name.
+     * @param extension File extension, including the ".".
+     * @return the file name, without directory.
+     */
+    private static synchronized String createFileName(String tagType, final String extension) {
         // Only use last part of tagType (after last ".")
         final int lastDotPos = tagType.lastIndexOf('.');
         tagType = tagType.substring(lastDotPos + 1, tagType.length());
         
         // Get date and time and compile the filename
         Calendar cal = Calendar.getInstance();
-        String fileName = ensureTwoCharNumber(cal.get(Calendar.YEAR)) + "." + 
+        final String time = ensureTwoCharNumber(cal.get(Calendar.YEAR)) + "." + 
                 ensureTwoCharNumber(cal.get(Calendar.MONTH)) + "." + 
                 ensureTwoCharNumber(cal.get(Calendar.DAY_OF_MONTH)) + " " +
                 ensureTwoCharNumber(cal.get(Calendar.HOUR_OF_DAY)) + "-" + 
                 ensureTwoCharNumber(cal.get(Calendar.MINUTE)) + "-" + 
-                ensureTwoCharNumber(cal.get(Calendar.SECOND)) + " " + 
-                tagType + fileExt;
-        
+                ensureTwoCharNumber(cal.get(Calendar.SECOND));
+        final String baseName = time + " " + tagType + extension;
+        if (!baseName.equals(lastBaseName)) {
+            lastBaseName = baseName;
+            sameNameCount = 0;
+            return baseName;
+        }
+        sameNameCount++;
+        return time + "_" + ensureTwoCharNumber(sameNameCount) + " " + tagType + extension;
+    }
+    
+    /**
+     * Write a data file to the data directory. If the file exists already,
+     * the data is appended. The file isn't added to the index.
+     * @param fileName name of the file, without directory.
+     * @param data Buffer containing the data to write.
+     * @param length Number of bytes of the buffer to write.
+     * @return Drive, directory and filename of the file if successful,
+     * null otherwise. Doesn't include "file:///".
+     */
+    static String writeDataFile(final String fileName, final byte[] data, final int length) {
+        return writeDataFile(fileName, data, 0, length);
+    }
+    
+    /**
+     * Write a data file to the data directory. If the file exists already,
+     * the data is appended. The file isn't added to the index.
+     * @param fileName name of the file, relative to the data directory.
+     * @param data Buffer containing the data to write.
+     * @param offset Start of the data in the buffer.
+     * @param length Number of bytes of the buffer to write.
+     * @return Drive, directory and filename of the file if successful,
+     * null otherwise. Doesn't include "file:///".
+     */
+    static String writeDataFile(final String fileName, final byte[] data, final int offset, final int length) {
+        FileConnection fc = null;
+        OutputStream outputStream = null;
         try {
             final String fileDir = nfcDir();
             final String completeFileDir = "file:///" + fileDir;
-            FileConnection fc = (FileConnection) Connector.open(completeFileDir, Connector.READ_WRITE);
-            if (!fc.exists()) {
-                fc.mkdir();
-            }
+            ensureDirectory(completeFileDir);
             
             // Create file
             fc = (FileConnection) Connector.open(completeFileDir + fileName, Connector.READ_WRITE);
@@ -84,40 +269,238 @@ public class TagFileManager {
             }
             
             // Write tag contents to the file
-            OutputStream outputStream = fc.openOutputStream(fc.fileSize());
-            outputStream.write(tagData);
+            outputStream = fc.openOutputStream(fc.fileSize());
+            outputStream.write(data, offset, length);
             outputStream.flush();
-            fc.close();
             
-            // Return name of created file
             return fileDir + fileName;
         } catch (Exception ex) {
             ex.printStackTrace();
-            return "Error: " + ex.toString();
+            return null;
+        } finally {
+            close(outputStream, fc);
         }
     }
     
     /**
-     * Search the data directory and return the newest (= last) file found.
-     * @return Filename of the last file in the data directory.
+     * Get the newest data file, based on the index of the data directory.
+     * @return Filename of the newest file in the data directory, null if
+     * there is none.
      */
     public static String getNewestNfcFile() {
-        String fileName = null;
+        if (newestFile == null) {
+            final String[] files = getRecentNfcFiles(1);
+            if (files.length > 0) {
+                newestFile = files[0];
+            }
+        }
+        return newestFile;
+    }
+    
+    /**
+     * Get the newest data files, based on the index of the data directory.
+     * Only the last records of the index are read. If the index doesn't
+     * exist yet, it is created by scanning the directory once.
+     * @param count maximum number of files to return.
+     * @return Filenames of the newest files, the newest file first.
+     */
+    public static String[] getRecentNfcFiles(final int count) {
+        FileConnection fc = null;
+        InputStream is = null;
         try {
-            // Create full URL to the data dir
             final String completeFileDir = "file:///" + nfcDir();
-            // Open the directory
-            FileConnection fc = (FileConnection) Connector.open(completeFileDir, Connector.READ);
-            // List all files with the right extension
-            Enumeration fileList = fc.list("*" + fileExt, false);  
-            // Iterate over the whole array and keep the last element.
-            while(fileList.hasMoreElements()) {
-                fileName = (String) fileList.nextElement();
+            fc = (FileConnection) Connector.open(completeFileDir + indexFileName, Connector.READ_WRITE);
+            if (!fc.exists()) {
+                fc.close();
+                fc = null;
+                rebuildIndex(completeFileDir);
+                fc = (FileConnection) Connector.open(completeFileDir + indexFileName, Connector.READ);
+            }
+            final int numRecords = (int) (fc.fileSize() / indexRecordSize);
+            final int numFiles = Math.min(count, numRecords);
+            // Skip all records except the last ones
+            is = fc.openInputStream();
+            long toSkip = (long) (numRecords - numFiles) * indexRecordSize;
+            while (toSkip > 0) {
+                final long skipped = is.skip(toSkip);
+                if (skipped <= 0) {
+                    throw new IOException("Index file truncated");
+                }
+                toSkip -= skipped;
+            }
+            byte[] records = new byte[numFiles * indexRecordSize];
+            new DataInputStream(is).readFully(records);
+            String[] files = new String[numFiles];
+            for (int i = 0; i < numFiles; i++) {
+                // Newest file first
+                final int pos = (numFiles - 1 - i) * indexRecordSize;
+                final int nameLength = ((records[pos] & 0xFF) << 8) | (records[pos + 1] & 0xFF);
+                files[i] = new String(records, pos + 2, Math.min(nameLength, indexRecordSize - 2), "utf-8");
+            }
+            return files;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (SecurityException ex) {
+            ex.printStackTrace();
+        } finally {
+            close(is, fc);
+        }
+        return new String[0];
+    }
+    
+    /**
+     * Append data files to the index. If the index doesn't exist yet,
+     * it is created with all data files of the directory.
+     * @param fileNames names of the new data files, oldest first.
+     */
+    static void addToIndex(final Vector fileNames) {
+        if (fileNames.size() == 0) {
+            return;
+        }
+        synchronized (TagFileManager.class) {
+            // Files queued after these ones may be newer already
+            final String fileName = (String) fileNames.lastElement();
+            if (newestFile == null || newestFile.compareTo(fileName) < 0) {
+                newestFile = fileName;
+            }
+        }
+        FileConnection fc = null;
+        OutputStream os = null;
+        try {
+            final String completeFileDir = "file:///" + nfcDir();
+            fc = (FileConnection) Connector.open(completeFileDir + indexFileName, Connector.READ_WRITE);
+            if (!fc.exists()) {
+                fc.close();
+                fc = null;
+                // The new files are part of the directory already
+                rebuildIndex(completeFileDir);
+                return;
+            }
+            os = fc.openOutputStream(fc.fileSize());
+            for (int i = 0; i < fileNames.size(); i++) {
+                writeIndexRecord(os, (String) fileNames.elementAt(i));
+            }
+            os.flush();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            close(os, fc);
+        }
+    }
+    
+    /**
+     * Create the index file from the data files found in the directory.
+     * The file names start with the date and time, so sorting them by name
+     * results in the order they were created.
+     * @param completeFileDir URL of the data directory.
+     */
+    private static void rebuildIndex(final String completeFileDir) throws IOException {
+        Vector names = new Vector();
+        FileConnection fc = (FileConnection) Connector.open(completeFileDir, Connector.READ);
+        try {
+            if (fc.exists()) {
+                Enumeration fileList = fc.list("*", false);
+                while (fileList.hasMoreElements()) {
+                    final String name = (String) fileList.nextElement();
+                    if (isDataFile(name)) {
+                        // Insertion sort, only done once
+                        int pos = names.size();
+                        while (pos > 0 && ((String) names.elementAt(pos - 1)).compareTo(name) > 0) {
+                            pos--;
+                        }
+                        names.insertElementAt(name, pos);
+                    }
+                }
+            }
+        } finally {
+            fc.close();
+        }
+        
+        OutputStream os = null;
+        fc = (FileConnection) Connector.open(completeFileDir + indexFileName, Connector.READ_WRITE);
+        try {
+            if (!fc.exists()) {
+                fc.create();
+            }
+            fc.truncate(0);
+            os = fc.openOutputStream();
+            for (int i = 0; i < names.size(); i++) {
+                writeIndexRecord(os, (String) names.elementAt(i));
+            }
+            os.flush();
+        } finally {
+            close(os, fc);
+        }
+        if (names.size() > 0) {
+            final String fileName = (String) names.lastElement();
+            synchronized (TagFileManager.class) {
+                if (newestFile == null || newestFile.compareTo(fileName) < 0) {
+                    newestFile = fileName;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write a record with the file name to the index.
+     */
+    private static void writeIndexRecord(OutputStream os, final String fileName) throws IOException {
+        byte[] record = new byte[indexRecordSize];
+        final byte[] name = fileName.getBytes("utf-8");
+        final int nameLength = Math.min(name.length, indexRecordSize - 2);
+        record[0] = (byte) (nameLength >> 8);
+        record[1] = (byte) nameLength;
+        System.arraycopy(name, 0, record, 2, nameLength);
+        os.write(record);
+    }
+    
+    /**
+     * @return true if the file name is a data file created by logTagInfo(),
+     * which start with the date.
+     */
+    private static boolean isDataFile(final String name) {
+        return name.length() > 0 && Character.isDigit(name.charAt(0))
+                && (name.endsWith(fileExt) || name.endsWith(DUMP_FILE_EXT));
+    }
+    
+    /**
+     * Close the stream and the file connection, ignoring errors.
+     * Both can be null.
+     */
+    private static void close(InputStream is, FileConnection fc) {
+        try {
+            if (is != null) {
+                is.close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        close(fc);
+    }
+    
+    /**
+     * Close the stream and the file connection, ignoring errors.
+     * Both can be null.
+     */
+    private static void close(OutputStream os, FileConnection fc) {
+        try {
+            if (os != null) {
+                os.close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        close(fc);
+    }
+    
+    private static void close(FileConnection fc) {
+        try {
+            if (fc != null) {
+                fc.close();
             }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
-        return fileName;
     }
     
     /**
@@ -126,19 +509,159 @@ public class TagFileManager {
      * @return contents of the file as a byte array, null if unsuccessful.
      */
     public static byte[] readFile(String fileName) {
+        final byte[] queued = getQueuedData(fileName);
+        if (queued != null) {
+            byte[] fileContents = new byte[queued.length];
+            System.arraycopy(queued, 0, fileContents, 0, queued.length);
+            return fileContents;
+        }
+        FileConnection fc = null;
+        InputStream is = null;
         try {
-            FileConnection fc = (FileConnection) Connector.open("file:///" + nfcDir() + fileName, Connector.READ);
-            InputStream is = fc.openInputStream();
-            int fileSize = (int) fc.fileSize();
-            byte[] fileContents = new byte[fileSize];
-            is.read(fileContents, 0, fileSize);
-            fc.close();
+            fc = (FileConnection) Connector.open("file:///" + nfcDir() + fileName, Connector.READ);
+            byte[] fileContents = new byte[(int) fc.fileSize()];
+            is = fc.openInputStream();
+            if (readChunks(is, fileContents, fileContents.length) != fileContents.length) {
+                // File truncated while reading
+                return null;
+            }
+            if (DumpStore.isDelta(fileContents, fileContents.length)) {
+                byte[] dump = new byte[DumpStore.getExpandedSize(fileContents)];
+                System.arraycopy(fileContents, 0, dump, 0, fileContents.length);
+                return (DumpStore.expand(dump, fileContents.length) < 0) ? null : dump;
+            }
             return fileContents;
         } catch (IOException ex) {
             ex.printStackTrace();
+        } catch (SecurityException ex) {
+            ex.printStackTrace();
+        } finally {
+            close(is, fc);
         }
         return null;
-    } 
+    }
+    
+    /**
+     * Read a data file into an existing buffer, so that the buffer can be
+     * reused for reading the next file.
+     * @param fileName file to open, searched for in the default data directory.
+     * @param buffer buffer that receives the contents of the file.
+     * @param maxSize maximum size of the file. Larger files are rejected
+     * without reading them.
+     * @return number of bytes read, -1 if unsuccessful or if the file is
+     * larger than maxSize or the buffer.
+     */
+    public static int readFile(String fileName, byte[] buffer, int maxSize) {
+        final int length = readStoredFile(fileName, buffer, maxSize);
+        if (length < 0 || !DumpStore.isDelta(buffer, length)) {
+            return length;
+        }
+        if (DumpStore.getExpandedSize(buffer) > Math.min(maxSize, buffer.length)) {
+            return -1;
+        }
+        return DumpStore.expand(buffer, length);
+    }
+    
+    /**
+     * Read a file into an existing buffer as it is stored, without
+     * restoring packed dumps.
+     * @param fileName file to open, relative to the data directory.
+     * @param buffer buffer that receives the contents of the file.
+     * @param maxSize maximum size of the file.
+     * @return number of bytes read, -1 if unsuccessful or if the file is
+     * larger than maxSize or the buffer.
+     */
+    static int readStoredFile(String fileName, byte[] buffer, int maxSize) {
+        maxSize = Math.min(maxSize, buffer.length);
+        final byte[] queued = getQueuedData(fileName);
+        if (queued != null) {
+            if (queued.length > maxSize) {
+                return -1;
+            }
+            System.arraycopy(queued, 0, buffer, 0, queued.length);
+            return queued.length;
+        }
+        FileConnection fc = null;
+        InputStream is = null;
+        try {
+            fc = (FileConnection) Connector.open("file:///" + nfcDir() + fileName, Connector.READ);
+            if (fc.fileSize() > maxSize) {
+                return -1;
+            }
+            is = fc.openInputStream();
+            final int length = readChunks(is, buffer, maxSize);
+            if (length == maxSize && is.read() >= 0) {
+                // File grew while reading
+                return -1;
+            }
+            return length;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (SecurityException ex) {
+            ex.printStackTrace();
+        } finally {
+            close(is, fc);
+        }
+        return -1;
+    }
+    
+    /**
+     * @param fileName file name, relative to the data directory.
+     * @return true if the file exists.
+     */
+    static boolean fileExists(final String fileName) throws IOException {
+        FileConnection fc = (FileConnection) Connector.open("file:///" + nfcDir() + fileName, Connector.READ);
+        try {
+            return fc.exists();
+        } finally {
+            fc.close();
+        }
+    }
+    
+    /**
+     * Create a directory below the data directory if it doesn't exist yet.
+     * @param dirName directory name, relative to the data directory,
+     * ending with "/".
+     */
+    static void createDirectory(final String dirName) throws IOException {
+        final String completeFileDir = "file:///" + nfcDir();
+        ensureDirectory(completeFileDir);
+        FileConnection fc = (FileConnection) Connector.open(completeFileDir + dirName, Connector.READ_WRITE);
+        try {
+            if (!fc.exists()) {
+                fc.mkdir();
+            }
+        } finally {
+            fc.close();
+        }
+    }
+    
+    /**
+     * @return contents of a file that is still queued for writing, null if
+     * the file isn't queued.
+     */
+    private static byte[] getQueuedData(final String fileName) {
+        final DumpWriter writer = dumpWriter;
+        return (writer != null) ? writer.getQueuedData(fileName) : null;
+    }
+    
+    /**
+     * Read from the stream in chunks until the end of the stream is
+     * reached or the buffer is full. A single read() may return less data
+     * than available.
+     * @return number of bytes read.
+     */
+    private static int readChunks(InputStream is, byte[] buffer, final int maxSize) throws IOException {
+        int pos = 0;
+        while (pos < maxSize) {
+            final int read = is.read(buffer, pos, Math.min(readChunkSize, maxSize - pos));
+            if (read < 0) {
+                break;
+            }
+            pos += read;
+        }
+        return pos;
+    }
     
     /**
      * Return the number as a String with at least two characters.
@@ -154,10 +677,81 @@ public class TagFileManager {
      * Get the default data directory.
      * Will use the preferred drive if available, otherwise the first (default)
      * drive. Data directory name can be defined through the member variables.
+     * The result is cached until a drive is added or removed.
      * @return drive and directory of the data directory. Doesn't contain
      * "file:///" designator.
      */
-    public static String nfcDir() {
+    public static synchronized String nfcDir() {
+        if (cachedNfcDir == null) {
+            registerRootListener();
+            cachedNfcDir = findNfcDir();
+            dirChecked = false;
+        }
+        return cachedNfcDir;
+    }
+    
+    /**
+     * Forget the resolved data directory, e.g. when the memory card was
+     * inserted or removed. The next access resolves it again.
+     */
+    public static void invalidateNfcDir() {
+        synchronized (TagFileManager.class) {
+            cachedNfcDir = null;
+            dirChecked = false;
+            newestFile = null;
+        }
+        // Outside of the lock, DumpStore calls back into this class
+        DumpStore.reset();
+    }
+    
+    /**
+     * Create the data directory if it doesn't exist yet. Only checked
+     * once for each resolved root.
+     * @param completeFileDir directory including "file:///".
+     */
+    private static void ensureDirectory(final String completeFileDir) throws IOException {
+        synchronized (TagFileManager.class) {
+            if (dirChecked) {
+                return;
+            }
+        }
+        FileConnection fc = (FileConnection) Connector.open(completeFileDir, Connector.READ_WRITE);
+        try {
+            if (!fc.exists()) {
+                fc.mkdir();
+            }
+        } finally {
+            fc.close();
+        }
+        synchronized (TagFileManager.class) {
+            // Only valid if the root didn't change in the meantime
+            if (completeFileDir.equals("file:///" + cachedNfcDir)) {
+                dirChecked = true;
+            }
+        }
+    }
+    
+    /**
+     * Register a listener that invalidates the cached data directory
+     * when a drive is added or removed.
+     */
+    private static void registerRootListener() {
+        if (rootListener != null) {
+            return;
+        }
+        rootListener = new FileSystemListener() {
+            public void rootChanged(int state, String rootName) {
+                invalidateNfcDir();
+            }
+        };
+        FileSystemRegistry.addFileSystemListener(rootListener);
+    }
+    
+    /**
+     * Scan the available drives for the preferred drive.
+     * @return drive and directory of the data directory.
+     */
+    private static String findNfcDir() {
         Enumeration rootsEnum = FileSystemRegistry.listRoots();
 
         // Scan returned drives, use E if found, otherwise return
@@ -0,0 +1,121 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import java.io.IOException;
+import javax.microedition.contactless.ndef.NDEFTagConnection;
+import javax.microedition.io.Connection;
+
+/**
+ * Describes one detection of a tag: the connection that was opened for it,
+ * its UID and when it was detected. Sessions are created by the target
+ * listener and processed one after another by the worker thread of the
+ * NfcManager. Each session owns its connection, which is closed once the
+ * session has been processed.
+ * 
+ * @author Andreas Jakl
+ */
+public class TagSession {
+    /** UID of the tag, null if not available. */
+    private final String uid;
+    /** Mapping (tag type) of the tag, null if not available. */
+    private final String mapping;
+    /** NDEF connection to the tag, null for raw sessions. */
+    private final NDEFTagConnection ndefConnection;
+    /** Tag-specific low-level connection (e.g., Mifare), null for NDEF sessions. */
+    private final Connection rawConnection;
+    /** Time when the tag was detected, in milliseconds. */
+    private final long detectionTime;
+    /** Time when the connection was opened (= session created), in milliseconds. */
+    private final long openTime;
+    /** Set once the connection was closed. */
+    private boolean closed = false;
+
+    /**
+     * Create a new session.
+     * @param uid UID of the tag, can be null.
+     * @param mapping mapping (tag type) of the tag, can be null.
+     * @param ndefConnection NDEF connection to the tag, null for raw sessions.
+     * @param rawConnection low-level connection to the tag, null for NDEF sessions.
+     * @param detectionTime time when the tag was detected.
+     */
+    public TagSession(String uid, String mapping, NDEFTagConnection ndefConnection, Connection rawConnection, long detectionTime) {
+        this.uid = uid;
+        this.mapping = mapping;
+        this.ndefConnection = ndefConnection;
+        this.rawConnection = rawConnection;
+        this.detectionTime = detectionTime;
+        openTime = System.currentTimeMillis();
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public String getMapping() {
+        return mapping;
+    }
+
+    public NDEFTagConnection getNdefConnection() {
+        return ndefConnection;
+    }
+
+    public Connection getRawConnection() {
+        return rawConnection;
+    }
+
+    public long getDetectionTime() {
+        return detectionTime;
+    }
+
+    public long getOpenTime() {
+        return openTime;
+    }
+
+    /**
+     * @return true if the session has an NDEF connection, false if it has
+     * a low-level connection.
+     */
+    public boolean isNdef() {
+        return ndefConnection != null;
+    }
+
+    /**
+     * Check if both sessions belong to the same physical tag.
+     * @param other session to compare with.
+     * @return true if both sessions have the same UID.
+     */
+    public boolean isSameTag(TagSession other) {
+        return uid != null && other != null && uid.equals(other.uid);
+    }
+
+    /**
+     * Close the connection of the session. Can be called multiple times.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (ndefConnection != null) {
+                ndefConnection.close();
+            }
+            if (rawConnection != null) {
+                rawConnection.close();
+            }
+        } catch (IOException ex) { }
+    }
+}
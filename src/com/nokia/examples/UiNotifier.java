@@ -0,0 +1,234 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+import javax.microedition.lcdui.Alert;
+import javax.microedition.lcdui.AlertType;
+import javax.microedition.lcdui.Display;
+import javax.microedition.lcdui.Displayable;
+import javax.microedition.lcdui.Gauge;
+import javax.microedition.lcdui.TextField;
+
+/**
+ * Delivers status updates to the UI thread through Display.callSerially(),
+ * so that the thread processing a tag never waits for the UI.
+ *
+ * Updates that arrive before the UI thread renders them are collapsed:
+ * only the latest results text and progress are shown. While a tag
+ * session is active, alerts are collected and shown as a single alert
+ * when the session ends, instead of switching the screen for each of them.
+ *
+ * @author Andreas Jakl
+ */
+public class UiNotifier implements Runnable {
+    /** Display to show the alerts on. */
+    private final Display display;
+    /** Screen to return to after an alert. */
+    private final Displayable screen;
+    /** Text field that receives the results text, null if not created yet. */
+    private TextField contents = null;
+    /** Gauge that shows the progress, null if not created yet. */
+    private Gauge progress = null;
+
+    /** True while a tag session collects its alerts. */
+    private boolean inSession = false;
+    /** True if run() is already queued on the UI thread. */
+    private boolean scheduled = false;
+    /** Title of the pending alert, null if none. */
+    private String alertTitle = null;
+    /** Collected texts of the pending alert. */
+    private final StringBuffer alertText = new StringBuffer();
+    /** Type of the pending alert, the most severe of the collected alerts. */
+    private AlertType alertType = null;
+    /** Number of alerts collected in the pending alert. */
+    private int numAlerts = 0;
+    /** Pending results text, null if unchanged. */
+    private String pendingContents = null;
+    /** Pending progress description, null if unchanged. */
+    private String progressText = null;
+    /** Pending number of steps completed. */
+    private int progressDone;
+    /** Pending total number of steps. */
+    private int progressTotal;
+
+    /**
+     * Create a new notifier.
+     * @param display display to show the alerts on.
+     * @param screen screen to return to after an alert.
+     */
+    public UiNotifier(Display display, Displayable screen) {
+        this.display = display;
+        this.screen = screen;
+    }
+
+    /**
+     * Set the UI elements that receive the results text and the progress.
+     */
+    public synchronized void setOutputs(TextField contents, Gauge progress) {
+        this.contents = contents;
+        this.progress = progress;
+    }
+
+    /**
+     * Start collecting the alerts of a tag session.
+     */
+    public synchronized void beginSession() {
+        inSession = true;
+    }
+
+    /**
+     * Show all alerts and the results collected since beginSession().
+     */
+    public synchronized void endSession() {
+        inSession = false;
+        schedule();
+    }
+
+    /**
+     * Show an alert. During a session, the alert is combined with the other
+     * alerts of the session. Otherwise, an alert that wasn't shown yet is
+     * replaced.
+     */
+    public synchronized void alert(final String title, final String text, final AlertType type) {
+        if (!inSession) {
+            numAlerts = 0;
+        }
+        if (numAlerts == 0) {
+            // Start a new alert, the type of a previous one doesn't count
+            alertText.setLength(0);
+            alertTitle = title;
+            alertType = null;
+        } else {
+            if (numAlerts == 1) {
+                // Repeat the title of the first alert within the text
+                alertText.insert(0, alertTitle + ":\n");
+            }
+            alertText.append("\n\n").append(title).append(":\n");
+        }
+        alertText.append(text);
+        if (getSeverity(type) >= getSeverity(alertType)) {
+            alertType = type;
+            if (numAlerts > 0) {
+                alertTitle = title;
+            }
+        }
+        numAlerts++;
+        schedule();
+    }
+
+    /**
+     * Replace the results text.
+     */
+    public synchronized void setContents(final String text) {
+        pendingContents = text;
+        schedule();
+    }
+
+    /**
+     * Update the progress. Shown right away, even during a session.
+     */
+    public synchronized void setProgress(final String text, final int done, final int total) {
+        progressText = text;
+        progressDone = done;
+        progressTotal = total;
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        display.callSerially(this);
+    }
+
+    /**
+     * Render the pending updates. Called on the UI thread.
+     */
+    public void run() {
+        String title;
+        String text = null;
+        AlertType type;
+        String newContents;
+        String newProgress;
+        int done;
+        int total;
+        TextField contentsField;
+        Gauge progressGauge;
+        synchronized (this) {
+            contentsField = contents;
+            progressGauge = progress;
+            scheduled = false;
+            if (!inSession && numAlerts > 0) {
+                text = alertText.toString();
+                alertText.setLength(0);
+                numAlerts = 0;
+            }
+            title = alertTitle;
+            type = alertType;
+            if (text != null) {
+                alertTitle = null;
+                alertType = null;
+            }
+            newContents = inSession ? null : pendingContents;
+            if (newContents != null) {
+                pendingContents = null;
+            }
+            newProgress = progressText;
+            progressText = null;
+            done = progressDone;
+            total = progressTotal;
+        }
+        if (newProgress != null && progressGauge != null) {
+            progressGauge.setLabel(newProgress + " (" + done + " / " + total + ")");
+            progressGauge.setMaxValue(total > 0 ? total : 1);
+            progressGauge.setValue(done);
+        }
+        if (newContents != null && contentsField != null) {
+            // The text field rejects texts that are longer than its maximum size
+            if (newContents.length() > contentsField.getMaxSize()) {
+                newContents = newContents.substring(0, contentsField.getMaxSize());
+            }
+            contentsField.setString(newContents);
+        }
+        if (text != null) {
+            display.setCurrent(new Alert(title, text, null, type), screen);
+        }
+    }
+
+    /**
+     * Queue run() on the UI thread, unless a session collects the updates
+     * or it is queued already.
+     */
+    private void schedule() {
+        if (inSession || scheduled) {
+            return;
+        }
+        scheduled = true;
+        display.callSerially(this);
+    }
+
+    /**
+     * @return rank of the alert type, higher is more severe.
+     */
+    private static int getSeverity(final AlertType type) {
+        if (type == AlertType.ERROR) {
+            return 4;
+        } else if (type == AlertType.WARNING) {
+            return 3;
+        } else if (type == AlertType.CONFIRMATION) {
+            return 2;
+        } else if (type == AlertType.INFO) {
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,162 @@
+/****************************************************************************
+**
+** Copyright (C) 2011-2013 Andreas Jakl.
+** All rights reserved.
+** Contact: Andreas Jakl (andreas.jakl@mopius.com)
+**
+** This file may be used under the terms of the GNU General
+** Public License version 3.0 as published by the Free Software Foundation
+** and appearing in the file LICENSE included in the packaging of this
+** file. Please review the following information to ensure the GNU General
+** Public License version 3.0 requirements will be met:
+** http://www.gnu.org/copyleft/gpl.html.
+**
+****************************************************************************/
+package com.nokia.examples;
+
+/**
+ * URI identifier codes of the NFC Forum URI record type definition.
+ * The abbreviations are stored in a prefix trie, so that the longest
+ * matching abbreviation is found in a single pass over the URI.
+ * For example, "urn:nfc:ext:..." is stored using "urn:nfc:" (0x23)
+ * instead of the shorter "urn:" (0x13).
+ *
+ * @author Andreas Jakl
+ */
+public class UriAbbreviations {
+    /** Standardized abbreviations used to save bytes on NDEF URI records. */
+    private static final String uriAbbreviations[] = {
+        "",
+        "http://www.",
+        "https://www.",
+        "http://",
+        "https://",
+        "tel:",
+        "mailto:",
+        "ftp://anonymous:anonymous@",
+        "ftp://ftp.",
+        "ftps://",
+        "sftp://",
+        "smb://",
+        "nfs://",
+        "ftp://",
+        "dav://",
+        "news:",
+        "telnet://",
+        "imap:",
+        "rtsp://",
+        "urn:",
+        "pop:",
+        "sip:",
+        "sips:",
+        "tftp:",
+        "btspp://",
+        "btl2cap://",
+        "btgoep://",
+        "tcpobex://",
+        "irdaobex://",
+        "file://",
+        "urn:epc:id:",
+        "urn:epc:tag:",
+        "urn:epc:pat:",
+        "urn:epc:raw:",
+        "urn:epc:",
+        "urn:nfc:"};
+
+    // Trie of all abbreviations. Node 0 is the root, every other node
+    // represents one character. Children of a node are stored as a linked
+    // list through the nextSibling array.
+    /** Character of each node. */
+    private static final char[] nodeChar;
+    /** Index of the first child node, -1 if the node is a leaf. */
+    private static final int[] firstChild;
+    /** Index of the next node with the same parent, -1 if none. */
+    private static final int[] nextSibling;
+    /** Identifier code if an abbreviation ends at this node, 0 otherwise. */
+    private static final int[] nodeCode;
+
+    static {
+        int maxNodes = 1;
+        for (int i = 1; i < uriAbbreviations.length; i++) {
+            maxNodes += uriAbbreviations[i].length();
+        }
+        nodeChar = new char[maxNodes];
+        firstChild = new int[maxNodes];
+        nextSibling = new int[maxNodes];
+        nodeCode = new int[maxNodes];
+        firstChild[0] = -1;
+        nextSibling[0] = -1;
+        int numNodes = 1;
+
+        for (int code = 1; code < uriAbbreviations.length; code++) {
+            final String abbreviation = uriAbbreviations[code];
+            int node = 0;
+            for (int i = 0; i < abbreviation.length(); i++) {
+                final char c = abbreviation.charAt(i);
+                int child = findChild(node, c);
+                if (child < 0) {
+                    // Add a new node as first child of the current node
+                    child = numNodes++;
+                    nodeChar[child] = c;
+                    firstChild[child] = -1;
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+                node = child;
+            }
+            nodeCode[node] = code;
+        }
+    }
+
+    /**
+     * Find the longest abbreviation that is a prefix of the URI.
+     * @param uri full URI.
+     * @return identifier code of the abbreviation, 0 if none applies.
+     */
+    public static int longestMatch(final String uri) {
+        final int uriLength = uri.length();
+        int node = 0;
+        int bestCode = 0;
+        for (int i = 0; i < uriLength; i++) {
+            node = findChild(node, uri.charAt(i));
+            if (node < 0) {
+                break;
+            }
+            if (nodeCode[node] != 0) {
+                bestCode = nodeCode[node];
+            }
+        }
+        return bestCode;
+    }
+
+    /**
+     * @param code identifier code as stored in the first byte of a URI record.
+     * @return abbreviation for the code. Empty string for 0 and for codes
+     * that are reserved for future use.
+     */
+    public static String get(final int code) {
+        if (code < 0 || code >= uriAbbreviations.length) {
+            return "";
+        }
+        return uriAbbreviations[code];
+    }
+
+    /**
+     * @return number of defined identifier codes, including 0 (no abbreviation).
+     */
+    public static int count() {
+        return uriAbbreviations.length;
+    }
+
+    /**
+     * @return index of the child node of the node that has the character,
+     * or -1 if there is none.
+     */
+    private static int findChild(final int node, final char c) {
+        int child = firstChild[node];
+        while (child >= 0 && nodeChar[child] != c) {
+            child = nextSibling[child];
+        }
+        return child;
+    }
+}